@@ -0,0 +1,43 @@
+package benchmarks;
+
+import hello.Application;
+import hello.constants.FileConstants;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.util.Random;
+
+/* Starts the application on files left by no earlier run, and makes uploads of distinct content */
+final class BenchmarkApplication {
+
+    static final String CLIENT_SECRET = "benchmark";
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private BenchmarkApplication() {
+    }
+
+    static ConfigurableApplicationContext start(String... args) {
+        FileSystemUtils.deleteRecursively(new File(FileConstants.ROOT_PATH));
+        return SpringApplication.run(Application.class, args);
+    }
+
+    /* Random content behind a PNG signature, so it passes the type checks and doesn't compress */
+    static byte[] pngContent(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        System.arraycopy(PNG_SIGNATURE, 0, content, 0, PNG_SIGNATURE.length);
+        return content;
+    }
+
+    /* Stamps the content with a version, so deduplication doesn't turn repeated uploads into lookups */
+    static MockMultipartFile multipartFile(byte[] content, long version) {
+        for (int i = 0; i < Long.BYTES; i++) {
+            content[PNG_SIGNATURE.length + i] = (byte) (version >>> (8 * i));
+        }
+        return new MockMultipartFile("file", "benchmark.png", "image/png", content);
+    }
+}
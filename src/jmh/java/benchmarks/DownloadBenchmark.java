@@ -0,0 +1,87 @@
+package benchmarks;
+
+import hello.constants.FileConstants;
+import hello.services.FileService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Full downloads over HTTP, from the request reaching the controller to the last byte copied into the response.
+ * Without the cache every download decrypts the stored file, with it the decrypted content is only copied. The
+ * client reads into one buffer per thread and reuses its connections, so what it allocates is mostly the server's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"65536", "1048576"})
+    private int size;
+
+    @Param({"true", "false"})
+    private boolean cached;
+
+    private ConfigurableApplicationContext context;
+    private URL url;
+
+    @Setup
+    public void setUp() throws Exception {
+        context = BenchmarkApplication.start("--server.port=0", "--cache.max-bytes=" + (cached ? 64 * 1024 * 1024 : 0));
+        String fileId = context.getBean(FileService.class).storeFile(
+                BenchmarkApplication.multipartFile(BenchmarkApplication.pngContent(size, size), 0),
+                FileConstants.ROOT_PATH, BenchmarkApplication.CLIENT_SECRET);
+        url = new URL("http://localhost:" + context.getEnvironment().getProperty("local.server.port") + "/file/" + fileId);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private final byte[] buffer = new byte[64 * 1024];
+    }
+
+    @Benchmark
+    public long getFile(Client client) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IllegalStateException("Download failed with " + connection.getResponseCode());
+        }
+        long read = 0;
+        try (InputStream body = connection.getInputStream()) {
+            for (int n; (n = body.read(client.buffer)) >= 0; ) {
+                read += n;
+            }
+        }
+        return read;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public long getFileConcurrently(Client client) throws IOException {
+        return getFile(client);
+    }
+}
@@ -0,0 +1,78 @@
+package benchmarks;
+
+import hello.util.ByteBufferChannel;
+import hello.util.ByteBufferOutputStream;
+import hello.util.EncryptionUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Whole payloads through the cipher both ways, from a single file up to the upload limit, and a range decrypted out
+ * of a stored file like downloads do. The threaded variants show how the shared key and the cipher reuse scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    @Param({"1024", "65536", "1048576", "20971520"})
+    private int size;
+
+    private byte[] plaintext;
+    private byte[] encrypted;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        plaintext = new byte[size];
+        new Random(size).nextBytes(plaintext);
+        encrypted = EncryptionUtil.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws GeneralSecurityException {
+        return EncryptionUtil.encrypt(plaintext);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws GeneralSecurityException {
+        return EncryptionUtil.decrypt(encrypted);
+    }
+
+    /* The last half of the file, read from a channel over the stored bytes into a buffer sized up front */
+    @Benchmark
+    public ByteBuffer decryptRange() throws Exception {
+        ByteBuffer range = ByteBuffer.allocate(size - size / 2);
+        EncryptionUtil.decrypt(new ByteBufferChannel(ByteBuffer.wrap(encrypted)), size / 2, size - 1, new ByteBufferOutputStream(range));
+        return range;
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] encryptConcurrently() throws GeneralSecurityException {
+        return EncryptionUtil.encrypt(plaintext);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public byte[] decryptConcurrently() throws GeneralSecurityException {
+        return EncryptionUtil.decrypt(encrypted);
+    }
+}
@@ -0,0 +1,167 @@
+package benchmarks;
+
+import hello.constants.FileConstants;
+import hello.models.AppFile;
+import hello.models.FileMetadata;
+import hello.models.FileQuery;
+import hello.models.FileSort;
+import hello.services.FileIndex;
+import hello.services.FileService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.ResponseEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+ * Uploads, updates and listings through the service, without HTTP, over an index already holding the given number of
+ * files. The prefilled entries have no content, they only make the index as big as it would be on a busy server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class FileServiceBenchmark {
+
+    private static final int FILE_SIZE = 64 * 1024;
+
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1000", "100000", "1000000"})
+    private int entries;
+
+    private ConfigurableApplicationContext context;
+    private FileService fileService;
+    private final ConcurrentLinkedQueue<String> uploaded = new ConcurrentLinkedQueue<>();
+    private final List<String> prefilled = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        context = BenchmarkApplication.start("--spring.main.web-environment=false");
+        fileService = context.getBean(FileService.class);
+        FileIndex fileIndex = context.getBean(FileIndex.class);
+        for (int i = 0; i < entries; i++) {
+            FileMetadata metadata = new FileMetadata();
+            metadata.setOwner(BenchmarkApplication.CLIENT_SECRET);
+            metadata.setSize(FILE_SIZE);
+            metadata.setContentType("image/png");
+            metadata.setCreatedAt(i);
+            metadata.setModifiedAt(i);
+            String fileId = String.format("prefilled-%07d.png", i);
+            fileIndex.put(fileId, metadata);
+            prefilled.add(fileId);
+        }
+    }
+
+    /* Files uploaded during an iteration are deleted after it, so the index stays the size being measured */
+    @TearDown(Level.Iteration)
+    public void deleteUploads() throws Exception {
+        List<String> fileIds = new ArrayList<>(uploaded);
+        uploaded.clear();
+        for (int i = 0; i < fileIds.size(); i += PAGE_SIZE) {
+            fileService.deleteFiles(fileIds.subList(i, Math.min(i + PAGE_SIZE, fileIds.size())),
+                    FileConstants.ROOT_PATH, BenchmarkApplication.CLIENT_SECRET);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    /* Content and a file of its own for each benchmark thread, so updates measure the service rather than one file lock */
+    @State(Scope.Thread)
+    public static class Upload {
+        private byte[] content;
+        private String fileId;
+        private long version;
+
+        @Setup
+        public void setUp(FileServiceBenchmark benchmark) throws Exception {
+            content = BenchmarkApplication.pngContent(FILE_SIZE, System.identityHashCode(this));
+            fileId = benchmark.fileService.storeFile(BenchmarkApplication.multipartFile(content, version++),
+                    FileConstants.ROOT_PATH, BenchmarkApplication.CLIENT_SECRET);
+        }
+
+        @TearDown
+        public void tearDown(FileServiceBenchmark benchmark) throws Exception {
+            benchmark.fileService.deleteFile(fileId, FileConstants.ROOT_PATH, BenchmarkApplication.CLIENT_SECRET);
+        }
+    }
+
+    @Benchmark
+    public Object uploadFile(Upload upload) throws Exception {
+        ResponseEntity<?> response = fileService.uploadFile(BenchmarkApplication.multipartFile(upload.content, upload.version++),
+                FileConstants.ROOT_PATH, BenchmarkApplication.CLIENT_SECRET);
+        uploaded.add((String) response.getBody());
+        return response;
+    }
+
+    @Benchmark
+    public Object updateFile(Upload upload) throws Exception {
+        return fileService.updateFile(BenchmarkApplication.multipartFile(upload.content, upload.version++),
+                FileConstants.ROOT_PATH, upload.fileId, BenchmarkApplication.CLIENT_SECRET, null);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object uploadFileConcurrently(Upload upload) throws Exception {
+        return uploadFile(upload);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object updateFileConcurrently(Upload upload) throws Exception {
+        return updateFile(upload);
+    }
+
+    /* A page in name order from a random cursor, walking the sorted ids */
+    @Benchmark
+    public Object getFilesByName() {
+        FileQuery query = new FileQuery();
+        query.setLimit(PAGE_SIZE);
+        query.setCursor(cursor());
+        return fileService.getFiles(FileConstants.ROOT_PATH, query).collect(Collectors.toList());
+    }
+
+    /* The first page by size, which has to go over every file of the index */
+    @Benchmark
+    public Object getFilesBySize() {
+        FileQuery query = new FileQuery();
+        query.setSort(FileSort.SIZE);
+        query.setLimit(PAGE_SIZE);
+        return fileService.getFiles(FileConstants.ROOT_PATH, query).collect(Collectors.toList());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object getFilesByNameConcurrently() {
+        return getFilesByName();
+    }
+
+    private String cursor() {
+        AppFile after = new AppFile();
+        after.setName(prefilled.get(ThreadLocalRandom.current().nextInt(prefilled.size())));
+        return fileService.getCursor(after);
+    }
+}
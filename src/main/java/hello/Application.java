@@ -1,31 +1,54 @@
 package hello;
 
 import hello.constants.FileConstants;
+import hello.services.ClusterService;
+import hello.services.FileService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.servlet.MultipartConfigFactory;
 import org.springframework.context.annotation.Bean;
-import org.springframework.util.FileSystemUtils;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
 
 import javax.servlet.MultipartConfigElement;
-import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
 @SpringBootApplication
 public class Application {
 
+    private static final Log log = LogFactory.getLog(Application.class);
     private static Long MAX_FILE_SIZE =  1024 * 1024 * 20L;
+    /* Batch uploads carry many files in one request, each of them still limited to MAX_FILE_SIZE */
+    private static Long MAX_REQUEST_SIZE =  1024 * 1024 * 256L;
     public static void main(String[] args) {
               SpringApplication.run(Application.class, args);
     }
     @Bean
-    CommandLineRunner init() {
+    CommandLineRunner init(FileService fileService, ClusterService clusterService) {
         return (args) -> {
-            FileSystemUtils.deleteRecursively(new File(FileConstants.ROOT_PATH));
+            Files.createDirectories(Paths.get(FileConstants.ROOT_PATH));
 
-            Files.createDirectory(Paths.get(FileConstants.ROOT_PATH));
+            // Stored files survive restarts, only leftovers of writes interrupted before this run are cleaned up, after
+            // files from the flat layout of earlier versions are moved into their shards. In a cluster, files are then
+            // copied to the owners missing them, in case the instances changed while this one was down
+            long startedAt = ManagementFactory.getRuntimeMXBean().getStartTime();
+            Thread cleanup = new Thread(() -> {
+                try {
+                    fileService.migrateLayout(FileConstants.ROOT_PATH);
+                    fileService.removeOrphans(FileConstants.ROOT_PATH, startedAt);
+                    clusterService.rebalance();
+                } catch (IOException e) {
+                    log.error("Cleaning up after the previous run failed", e);
+                }
+            }, "orphan-cleanup");
+            cleanup.setDaemon(true);
+            cleanup.start();
         };
     }
 
@@ -34,10 +57,18 @@ public class Application {
         // Setup the application container to be accept multipart requests
         MultipartConfigFactory factory = new MultipartConfigFactory();
         factory.setMaxFileSize(MAX_FILE_SIZE);
-        factory.setMaxRequestSize(MAX_FILE_SIZE);
+        factory.setMaxRequestSize(MAX_REQUEST_SIZE);
 
         // Return the configuration to setup multipart in the container
         return factory.createMultipartConfig();
     }
 
+    @Bean
+    public MultipartResolver multipartResolver() {
+        // Uploads are parsed when the upload pool reads them, instead of on the container thread before the handler
+        StandardServletMultipartResolver resolver = new StandardServletMultipartResolver();
+        resolver.setResolveLazily(true);
+        return resolver;
+    }
+
 }
\ No newline at end of file
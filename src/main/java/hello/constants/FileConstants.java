@@ -3,4 +3,30 @@ package hello.constants;
 public class FileConstants {
     public static final String ROOT_PATH = "upload-dir";
     public static final String CLIENT_SECRET_HEADER = "client_secret";
+    /* Files can be replaced under the same URL, so caches have to revalidate them before every use */
+    public static final String CACHE_CONTROL = "no-cache";
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final int MAX_PAGE_SIZE = 10000;
+    public static final int MAX_BATCH_SIZE = 1000;
+    public static final String ARCHIVE_NAME = "files.zip";
+    /* Seconds a client turned away with 503 is asked to wait */
+    public static final String RETRY_AFTER_SECONDS = "1";
+    public static final String TEMP_SUFFIX = ".tmp";
+    public static final String METADATA_DIR = ".metadata";
+    public static final String CONTENT_DIR = ".content";
+    public static final String PACKS_DIR = ".packs";
+    public static final String UPLOADS_DIR = ".uploads";
+    public static final String RENDITIONS_DIR = ".renditions";
+    public static final String TUS_RESUMABLE_HEADER = "Tus-Resumable";
+    public static final String TUS_VERSION = "1.0.0";
+    public static final String UPLOAD_LENGTH_HEADER = "Upload-Length";
+    public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+    public static final String UPLOAD_EXPIRES_HEADER = "Upload-Expires";
+    public static final String UPLOAD_CHUNK_TYPE = "application/offset+octet-stream";
+    /* Under the home directory, away from the stored files and the sources */
+    public static final String KEY_PATH = ".file-store/key.key";
+    /* Shared secret that instances of a cluster send along with the requests they make to each other */
+    public static final String CLUSTER_SECRET_HEADER = "X-Cluster-Secret";
+    public static final String CLUSTER_METADATA_HEADER = "X-Cluster-Metadata";
+    public static final String CLUSTER_PROPAGATED_HEADER = "X-Cluster-Propagated";
 }
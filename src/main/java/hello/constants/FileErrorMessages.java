@@ -6,4 +6,26 @@ public class FileErrorMessages {
     public static final String FORMAT_NOT_ALLOWED = "The file format to be uploaded is not allowed";
     public static final String AUTHORIZATION_REQUIRED = "The client secret is a required header";
     public static final String FORBIDDEN = "The client secret does not own this resource";
+    public static final String INVALID_CURSOR = "The cursor is not valid for this listing";
+    public static final String CURSOR_NOT_SUPPORTED = "Only listings sorted by name can be paged with a cursor";
+    public static final String EMPTY_BATCH = "At least one file id is required";
+    public static final String BATCH_TOO_LARGE = "The batch holds more files than allowed";
+    public static final String INVALID_QUERY = "The sort, order or limit parameter is not valid";
+    public static final String PRECONDITION_FAILED = "The file has changed since the given ETag";
+    public static final String RANGE_NOT_SATISFIABLE = "None of the requested ranges can be satisfied";
+    public static final String UPLOAD_NOT_FOUND = "The upload has not been found or has expired";
+    public static final String INVALID_UPLOAD_LENGTH = "The upload length is missing or not valid";
+    public static final String UPLOAD_TOO_LARGE = "The upload is larger than the maximum allowed length";
+    public static final String UPLOAD_OFFSET_MISMATCH = "The chunk offset does not match the offset of the upload";
+    public static final String UPLOAD_LENGTH_EXCEEDED = "The chunk goes past the length of the upload";
+    public static final String SERVER_BUSY = "The server is busy with other transfers, try again later";
+    public static final String UPLOAD_INCOMPLETE = "The upload has not received all of its bytes yet";
+    public static final String TOO_MANY_CONCURRENT_REQUESTS = "The client secret has too many requests in progress, try again later";
+    public static final String TOO_MANY_REQUESTS = "The client secret has sent too many requests, try again later";
+    public static final String INVALID_RENDITION_SIZE = "The rendition width and height must be positive and within the maximum size";
+    public static final String RENDITION_UNAVAILABLE = "Renditions can only be made of PNG, JPEG and GIF images";
+    public static final String RENDITION_SOURCE_TOO_LARGE = "Renditions can't be made of images this large";
+    public static final String CLUSTER_FORBIDDEN = "The cluster secret is missing or wrong";
+    public static final String CLUSTER_NODE_UNAVAILABLE = "The instance holding the file could not be reached";
+    public static final String QUOTA_EXCEEDED = "The client secret has no storage left for this file";
 }
@@ -0,0 +1,132 @@
+package hello.controllers;
+
+import hello.constants.FileConstants;
+import hello.exceptions.InsufficientStorageException;
+import hello.exceptions.TooManyRequestsException;
+import hello.services.AdmissionControl;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/*
+ * Admits requests by the limits of their owner before the body is read or any handler runs, counting them in progress
+ * until their response, asynchronous or not, is complete
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+public class AdmissionFilter implements Filter, AsyncListener {
+
+    private static final String OWNER_ATTRIBUTE = AdmissionFilter.class.getName() + ".owner";
+
+    private static final String FILE_PATH = "/file/";
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String owner = httpRequest.getHeader(FileConstants.CLIENT_SECRET_HEADER);
+        if (request.getDispatcherType() != DispatcherType.REQUEST || owner == null) {
+            // Dispatches of a request already admitted, and requests that will be turned away for having no owner
+            chain.doFilter(request, response);
+            return;
+        }
+        try {
+            admissionControl.admit(owner, storedBytes(httpRequest), replacedFileId(httpRequest));
+        } catch (TooManyRequestsException e) {
+            ((HttpServletResponse) response).setHeader(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+            ((HttpServletResponse) response).sendError(HttpStatus.TOO_MANY_REQUESTS.value(), e.getMessage());
+            return;
+        } catch (InsufficientStorageException e) {
+            ((HttpServletResponse) response).sendError(HttpStatus.INSUFFICIENT_STORAGE.value(), e.getMessage());
+            return;
+        }
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.setAttribute(OWNER_ATTRIBUTE, owner);
+                request.getAsyncContext().addListener(this);
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                admissionControl.release(owner);
+            }
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        ServletRequest request = event.getSuppliedRequest() != null ? event.getSuppliedRequest() : event.getAsyncContext().getRequest();
+        admissionControl.release((String) request.getAttribute(OWNER_ATTRIBUTE));
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // A new asynchronous cycle of the same request, which needs the listener again
+        event.getAsyncContext().addListener(this);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /* Bytes a request may add to the owner's files, one for a body of unknown length */
+    private static long storedBytes(HttpServletRequest request) {
+        String method = request.getMethod();
+        if (!method.equals(RequestMethod.POST.name()) && !method.equals(RequestMethod.PUT.name()) && !method.equals(RequestMethod.PATCH.name())) {
+            return 0;
+        }
+        String uploadLength = request.getHeader(FileConstants.UPLOAD_LENGTH_HEADER);
+        if (uploadLength != null) {
+            try {
+                return Long.parseLong(uploadLength);
+            } catch (NumberFormatException e) {
+                // Turned away by the upload controller
+                return 0;
+            }
+        }
+        long contentLength = request.getContentLengthLong();
+        return contentLength < 0 ? 1 : contentLength;
+    }
+
+    /* The file an update replaces, whose bytes stop counting against the quota */
+    private static String replacedFileId(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (request.getMethod().equals(RequestMethod.PUT.name()) && path.startsWith(FILE_PATH)) {
+            return path.substring(FILE_PATH.length());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+package hello.controllers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hello.constants.FileConstants;
+import hello.constants.FileErrorMessages;
+import hello.exceptions.ForbiddenException;
+import hello.models.ClusterStatus;
+import hello.models.FileMetadata;
+import hello.services.ClusterService;
+import hello.services.FileService;
+import hello.services.FileIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/* Endpoints the instances of a cluster use with each other, behind the shared secret */
+@RestController
+public class ClusterController {
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private TransferExecutors transferExecutors;
+
+    /* Metadata of the copy held here, for the sender to tell whether it is up to date */
+    @RequestMapping(method = RequestMethod.HEAD, value = "cluster/files/{fileName:.+}")
+    public ResponseEntity<?> getReplica(@PathVariable String fileName, HttpServletRequest request) throws IOException {
+        checkSecret(request);
+        FileMetadata metadata = fileIndex.get(fileName);
+        if (metadata == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok().header(FileConstants.CLUSTER_METADATA_HEADER, objectMapper.writeValueAsString(metadata)).build();
+    }
+
+    /* Store a copy, read and encrypted on the upload pool */
+    @RequestMapping(method = RequestMethod.PUT, value = "cluster/files/{fileName:.+}")
+    public DeferredResult<ResponseEntity<?>> putReplica(@PathVariable String fileName, HttpServletRequest request) throws IOException {
+        checkSecret(request);
+        FileMetadata metadata = objectMapper.readValue(request.getHeader(FileConstants.CLUSTER_METADATA_HEADER), FileMetadata.class);
+        return transferExecutors.submitUpload(() -> {
+            fileService.storeReplica(fileName, request.getInputStream(), metadata, FileConstants.ROOT_PATH);
+            return ResponseEntity.noContent().build();
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.DELETE, value = "cluster/files/{fileName:.+}")
+    public ResponseEntity<?> deleteReplica(@PathVariable String fileName, @RequestParam(name = "modifiedAt") long modifiedAt,
+                                           HttpServletRequest request) throws IOException {
+        checkSecret(request);
+        fileService.removeReplica(fileName, FileConstants.ROOT_PATH, modifiedAt);
+        return ResponseEntity.noContent().build();
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "cluster/nodes")
+    public ClusterStatus getNodes(HttpServletRequest request) {
+        checkSecret(request);
+        return clusterService.getStatus();
+    }
+
+    /* Replace the instances, on all of them unless this was passed on by another one, and rebalance the files */
+    @RequestMapping(method = RequestMethod.PUT, value = "cluster/nodes")
+    public ClusterStatus setNodes(@RequestBody List<String> nodes, HttpServletRequest request) {
+        checkSecret(request);
+        clusterService.setNodes(nodes, request.getHeader(FileConstants.CLUSTER_PROPAGATED_HEADER) == null);
+        return clusterService.getStatus();
+    }
+
+    @RequestMapping(method = RequestMethod.POST, value = "cluster/rebalance")
+    public ClusterStatus rebalance(HttpServletRequest request) {
+        checkSecret(request);
+        clusterService.rebalance();
+        return clusterService.getStatus();
+    }
+
+    private void checkSecret(HttpServletRequest request) {
+        if (!clusterService.isInternal(request)) {
+            throw new ForbiddenException(FileErrorMessages.CLUSTER_FORBIDDEN);
+        }
+    }
+
+    @ExceptionHandler(ForbiddenException.class)
+    protected void handleForbiddenException(ForbiddenException ex, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.FORBIDDEN.value(), ex.getMessage());
+    }
+}
@@ -0,0 +1,257 @@
+package hello.controllers;
+
+import hello.constants.FileErrorMessages;
+import hello.services.ClusterService;
+import hello.services.FileIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.util.UriUtils;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Relays requests about a file to an instance owning it when the cluster is on, and streams its response back.
+ * Runs before admission, so requests only count against the limits where they are served
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class ClusterFilter implements Filter {
+
+    private static final String FILE_PATH = "/file/";
+    private static final String UPLOADS_PATH = "/uploads/";
+    private static final String FILES_PATH = "/files";
+    private static final String IDS_PARAMETER = "ids";
+    private static final String METHOD_OVERRIDE_HEADER = "X-HTTP-Method-Override";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /* Headers of a single connection, which the relay sets up again for its own */
+    private static final List<String> HOP_HEADERS = Arrays.asList("connection", "keep-alive", "transfer-encoding", "upgrade",
+            "te", "trailer", "proxy-authorization", "proxy-connection");
+    private static final List<String> REQUEST_HEADERS_SET = Arrays.asList("host", "content-length", "expect");
+    private static final List<String> RESPONSE_HEADERS_SET = Arrays.asList("date", "server");
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        if (!clusterService.isEnabled() || request.getDispatcherType() != DispatcherType.REQUEST || clusterService.isInternal(httpRequest)) {
+            // Requests another instance sent here are always served here
+            chain.doFilter(request, response);
+            return;
+        }
+
+        String path = httpRequest.getRequestURI().substring(httpRequest.getContextPath().length());
+        String method = httpRequest.getMethod();
+        boolean read = method.equals(RequestMethod.GET.name()) || method.equals(RequestMethod.HEAD.name());
+        if (path.startsWith(FILE_PATH)) {
+            String fileId = UriUtils.decode(path.substring(FILE_PATH.length()), "UTF-8");
+            if (!route(fileId, read, httpRequest, httpResponse)) {
+                chain.doFilter(request, response);
+            }
+        } else if (path.startsWith(UPLOADS_PATH)) {
+            String uploadId = path.substring(UPLOADS_PATH.length()).split("/", 2)[0];
+            if (!route(uploadId, false, httpRequest, httpResponse)) {
+                chain.doFilter(request, response);
+            }
+        } else if (path.equals(FILES_PATH) && method.equals(RequestMethod.DELETE.name())) {
+            if (!deleteBatch(httpRequest, httpResponse)) {
+                chain.doFilter(request, response);
+            }
+        } else {
+            chain.doFilter(request, response);
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    /* Relays the request to the owners of the id in order until one answers, false when it is to be served here */
+    private boolean route(String id, boolean read, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (read && clusterService.isLocal(id)) {
+            return false;
+        }
+        String pathAndQuery = request.getRequestURI() + (request.getQueryString() == null ? "" : "?" + request.getQueryString());
+        List<String> owners = clusterService.owners(id);
+        boolean unreachable = false;
+        for (String node : owners) {
+            if (node.equals(clusterService.getSelf())) {
+                if (read) {
+                    continue;
+                }
+                return false;
+            }
+            HttpURLConnection connection = connect(node, pathAndQuery, request);
+            if (connection == null) {
+                unreachable = true;
+                continue;
+            }
+            if (read && connection.getResponseCode() == HttpStatus.NOT_FOUND.value()) {
+                // Not copied there yet, another owner or a copy here may have it
+                connection.disconnect();
+                continue;
+            }
+            relay(connection, request, response);
+            return true;
+        }
+        if (owners.isEmpty() || (read && (!unreachable || fileIndex.get(id) != null))) {
+            // Still here while being moved to its owners, or found nowhere, which the handler answers
+            return false;
+        }
+        response.sendError(HttpStatus.BAD_GATEWAY.value(), FileErrorMessages.CLUSTER_NODE_UNAVAILABLE);
+        return true;
+    }
+
+    /* Relays each part of a batch delete to the primary owner of its files, stopping at the first part that fails */
+    private boolean deleteBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String[] values = request.getParameterValues(IDS_PARAMETER);
+        Map<String, List<String>> parts = new LinkedHashMap<>();
+        for (String value : values == null ? new String[0] : values) {
+            for (String id : value.split(",")) {
+                if (!id.trim().isEmpty()) {
+                    List<String> owners = clusterService.owners(id.trim());
+                    String primary = owners.isEmpty() ? clusterService.getSelf() : owners.get(0);
+                    parts.computeIfAbsent(primary, node -> new ArrayList<>()).add(id.trim());
+                }
+            }
+        }
+        if (parts.isEmpty() || parts.keySet().equals(Collections.singleton(clusterService.getSelf()))) {
+            return false;
+        }
+        HttpURLConnection last = null;
+        for (Map.Entry<String, List<String>> part : parts.entrySet()) {
+            String pathAndQuery = request.getRequestURI() + "?" + IDS_PARAMETER + "=" + UriUtils.encodeQueryParam(String.join(",", part.getValue()), "UTF-8");
+            HttpURLConnection connection = connect(part.getKey(), pathAndQuery, request);
+            if (connection == null) {
+                response.sendError(HttpStatus.BAD_GATEWAY.value(), FileErrorMessages.CLUSTER_NODE_UNAVAILABLE);
+                return true;
+            }
+            if (connection.getResponseCode() / 100 != 2) {
+                relay(connection, request, response);
+                return true;
+            }
+            if (last != null) {
+                last.disconnect();
+            }
+            last = connection;
+        }
+        relay(last, request, response);
+        return true;
+    }
+
+    /* Sends the request to the instance, null when it can't be reached and the request can still go elsewhere */
+    private HttpURLConnection connect(String node, String pathAndQuery, HttpServletRequest request) throws IOException {
+        String method = request.getMethod();
+        HttpURLConnection connection = clusterService.open(node, pathAndQuery,
+                method.equals(RequestMethod.PATCH.name()) ? RequestMethod.POST.name() : method);
+        if (method.equals(RequestMethod.PATCH.name())) {
+            // Not a method HttpURLConnection sends, the upload controller takes the override instead
+            connection.setRequestProperty(METHOD_OVERRIDE_HEADER, RequestMethod.PATCH.name());
+        }
+        Enumeration<String> names = request.getHeaderNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            String lowerCase = name.toLowerCase(Locale.ROOT);
+            if (!HOP_HEADERS.contains(lowerCase) && !REQUEST_HEADERS_SET.contains(lowerCase)) {
+                Enumeration<String> values = request.getHeaders(name);
+                while (values.hasMoreElements()) {
+                    connection.addRequestProperty(name, values.nextElement());
+                }
+            }
+        }
+        long contentLength = request.getContentLengthLong();
+        boolean body = contentLength > 0 || request.getHeader(HttpHeaders.TRANSFER_ENCODING) != null;
+        if (body) {
+            connection.setDoOutput(true);
+            if (contentLength >= 0) {
+                connection.setFixedLengthStreamingMode(contentLength);
+            } else {
+                connection.setChunkedStreamingMode(BUFFER_SIZE);
+            }
+        }
+        try {
+            connection.connect();
+            if (!body) {
+                // A pooled connection to an instance that went down only fails here
+                connection.getResponseCode();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        clusterService.countForwarded();
+        if (body) {
+            try (InputStream input = request.getInputStream(); OutputStream output = connection.getOutputStream()) {
+                copy(input, output);
+            }
+        }
+        return connection;
+    }
+
+    /* Streams the status, headers and body the instance answered with back to the client */
+    private void relay(HttpURLConnection connection, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try {
+            int status = connection.getResponseCode();
+            response.setStatus(status);
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                if (header.getKey() == null || HOP_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT))
+                        || RESPONSE_HEADERS_SET.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    response.addHeader(header.getKey(), value);
+                }
+            }
+            InputStream input = status >= HttpStatus.BAD_REQUEST.value() ? connection.getErrorStream() : connection.getInputStream();
+            if (input != null && !request.getMethod().equals(RequestMethod.HEAD.name())) {
+                try (InputStream body = input) {
+                    copy(body, response.getOutputStream());
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+    }
+}
@@ -1,112 +1,384 @@
 package hello.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import hello.constants.FileConstants;
 import hello.constants.FileErrorMessages;
 import hello.exceptions.BadRequestException;
 import hello.exceptions.FileNotInStorageException;
 import hello.exceptions.ForbiddenException;
+import hello.exceptions.InsufficientStorageException;
+import hello.exceptions.PreconditionFailedException;
+import hello.exceptions.RangeNotSatisfiableException;
+import hello.exceptions.ServiceUnavailableException;
 import hello.models.AppFile;
+import hello.models.BatchResult;
+import hello.models.FileMetadata;
+import hello.models.FileQuery;
+import hello.models.FileSort;
 import hello.services.FileService;
+import hello.services.ClusterService;
+import hello.services.Metrics;
+import hello.services.RenditionService;
+import hello.util.ByteBufferOutputStream;
+import hello.util.ChunkSource;
+import hello.util.ContentEncoding;
 import hello.util.EncryptionUtil;
-import org.apache.commons.io.IOUtils;
+import hello.util.NonBlockingWriter;
+import hello.util.ZipChunkSource;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.support.StandardMultipartHttpServletRequest;
+import org.springframework.web.util.WebUtils;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 @RestController
 public class FileController {
 
+    private static final Log log = LogFactory.getLog(FileController.class);
 
     @Autowired
     private FileService fileService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private RenditionService renditionService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private TransferExecutors transferExecutors;
+
+    @Autowired
+    private Metrics metrics;
+
     private final String contentDisposition = "attachment;filename=%s";
+    private final String contentRange = "bytes %d-%d/%d";
+    private final String unsatisfiedContentRange = "bytes */%d";
+    private final String multipartByteRanges = "multipart/byteranges; boundary=%s";
+    private final String rangePartHeader = "\r\n--%s\r\nContent-Type: %s\r\nContent-Range: bytes %d-%d/%d\r\n\r\n";
+    private final String rangesEnd = "\r\n--%s--\r\n";
+    private static final int MAX_RANGES = 16;
+    private static final String ARCHIVE_TYPE = "application/zip";
+    /* Bodies are produced this many plaintext bytes at a time, in whole segments */
+    private static final int CHUNK_SIZE = 4 * EncryptionUtil.SEGMENT_SIZE;
 
-    /* Get file */
+    /* Get file. Validators are checked here, and the body is read, decrypted and written without blocking on the download pool */
     @RequestMapping(method = RequestMethod.GET, value = "file/{fileName:.+}")
-    public void getFile(@PathVariable String fileName, HttpServletResponse response) throws IOException, GeneralSecurityException {
+    public void getFile(@PathVariable String fileName, @RequestParam(name = "w", required = false) Integer width,
+                        @RequestParam(name = "h", required = false) Integer height,
+                        HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (width != null || height != null) {
+            getRendition(fileName, width == null ? 0 : width, height == null ? 0 : height, request, response);
+            return;
+        }
 
-        Path filePath = Paths.get(FileConstants.ROOT_PATH, fileName);
-        if (!Files.exists(filePath)) {
-            throw new FileNotInStorageException(FileErrorMessages.FILE_NOT_FOUND);
+        // Compressed files are sent as stored when the client accepts their coding, and decoded on the fly otherwise
+        FileMetadata metadata = fileService.getMetadata(fileName);
+        ContentEncoding encoding = ContentEncoding.of(metadata.getEncoding());
+        boolean encoded = encoding != null && encoding.isAcceptedBy(request.getHeader(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding != null) {
+            response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
         }
-        byte[] actualFile = EncryptionUtil.decrypt(Files.readAllBytes(filePath));
 
-        InputStream myStream = new ByteArrayInputStream(actualFile);
-        response.addHeader("Content-disposition", String.format(contentDisposition, fileName));
-        response.setContentType(Files.probeContentType(filePath));
-        IOUtils.copy(myStream, response.getOutputStream());
-        response.flushBuffer();
+        // Validators come from the index, so unchanged files are answered without opening them
+        String etag = encoded ? encoding.tag(metadata.getEtag()) : metadata.getEtag();
+        response.setHeader(HttpHeaders.CACHE_CONTROL, FileConstants.CACHE_CONTROL);
+        if (new ServletWebRequest(request, response).checkNotModified(etag, metadata.getModifiedAt())) {
+            return;
+        }
 
+        transferExecutors.startDownload();
+        AsyncContext async = request.startAsync(request, response);
+        // Downloads are bounded by how many are admitted rather than by time, slow clients just take longer
+        async.setTimeout(0);
+        transferExecutors.getDownloadExecutor().execute(() -> startBody(fileName, metadata, encoded ? null : encoding, async));
     }
 
+    /* Scaled down image fitting in the given width and height, made or fetched on the download pool */
+    private void getRendition(String fileName, int width, int height, HttpServletRequest request, HttpServletResponse response) {
+        FileMetadata metadata = fileService.getMetadata(fileName);
+        renditionService.checkRendition(metadata, width, height);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, FileConstants.CACHE_CONTROL);
+        if (new ServletWebRequest(request, response).checkNotModified(renditionService.getEtag(metadata, width, height), metadata.getModifiedAt())) {
+            return;
+        }
 
-    /* Upload File */
-    @RequestMapping(method = RequestMethod.POST, value = "/file")
-    public ResponseEntity<?> handleFileUpload(HttpServletRequest request, @RequestParam(name = "file", required = false) MultipartFile file) throws Exception{
-        // It's being set the file as not required to override the validation with a bad request status
-        if (file != null && !file.isEmpty()) {
-            if (!fileService.isValid(file)) {
-                throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+        transferExecutors.startDownload();
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(0);
+        transferExecutors.getDownloadExecutor().execute(() -> {
+            try {
+                ByteBuffer rendition = renditionService.getRendition(fileName, FileConstants.ROOT_PATH, metadata, width, height);
+                ChunkSource body = rangesBody(fileName, renditionService.getContentType(metadata), rendition.remaining(), request, response,
+                        rangeWriter(rendition, null));
+                if (request.getMethod().equals(RequestMethod.HEAD.name())) {
+                    body = ChunkSource.empty();
+                }
+                new NonBlockingWriter(async, fileName, transferExecutors.getDownloadExecutor(), metered(body), transferExecutors::finishDownload).start();
+            } catch (Exception e) {
+                transferExecutors.finishDownload();
+                sendError(response, e);
+                async.complete();
             }
-            if (request.getHeader(FileConstants.CLIENT_SECRET_HEADER) == null) {
-                throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
+        });
+    }
+
+    /* Opens the file and sets the headers for the requested ranges, then hands the body to a non-blocking writer */
+    private void startBody(String fileName, FileMetadata metadata, ContentEncoding decodedEncoding, AsyncContext async) {
+        HttpServletRequest request = (HttpServletRequest) async.getRequest();
+        HttpServletResponse response = (HttpServletResponse) async.getResponse();
+        String contentType = metadata.getContentType() == null ? MediaType.APPLICATION_OCTET_STREAM_VALUE : metadata.getContentType();
+        SeekableByteChannel channel = null;
+        try {
+            ByteBuffer content = fileService.getContent(fileName, FileConstants.ROOT_PATH);
+            channel = content == null ? fileService.openFile(fileName, FileConstants.ROOT_PATH) : null;
+            long length = content != null ? content.remaining() : EncryptionUtil.plaintextSize(channel.size());
+            RangeWriter writer = rangeWriter(content, channel);
+
+            ContentEncoding encoding = ContentEncoding.of(metadata.getEncoding());
+            ChunkSource body;
+            if (decodedEncoding == null) {
+                if (encoding != null) {
+                    response.setHeader(HttpHeaders.CONTENT_ENCODING, encoding.getName());
+                }
+                body = rangesBody(fileName, contentType, length, request, response, writer);
+            } else {
+                // Ranges of the decoded content would need decoding from the start, so they are ignored
+                response.addHeader("Content-disposition", String.format(contentDisposition, fileName));
+                response.setContentType(contentType);
+                response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(metadata.getSize()));
+                body = decodedBody(writer, decodedEncoding.getHeaderSize(), length - 1 - decodedEncoding.getTrailerSize(), decodedEncoding);
             }
-            return fileService.uploadFile(file, FileConstants.ROOT_PATH, request.getHeader(FileConstants.CLIENT_SECRET_HEADER));
-        } else {
-            throw new BadRequestException(FileErrorMessages.EMPTY_FILE);
+            if (request.getMethod().equals(RequestMethod.HEAD.name())) {
+                closeQuietly(body);
+                body = ChunkSource.empty();
+            }
+
+            SeekableByteChannel opened = channel;
+            ChunkSource sent = body;
+            new NonBlockingWriter(async, fileName, transferExecutors.getDownloadExecutor(), metered(body), () -> {
+                closeQuietly(sent);
+                closeQuietly(opened);
+                transferExecutors.finishDownload();
+            }).start();
+        } catch (Exception e) {
+            closeQuietly(channel);
+            transferExecutors.finishDownload();
+            sendError(response, e);
+            async.complete();
         }
     }
 
-    /* Update file */
+    /* Upload File, parsed, checked and stored on the upload pool */
+    @RequestMapping(method = RequestMethod.POST, value = "/file")
+    public DeferredResult<ResponseEntity<?>> handleFileUpload(HttpServletRequest request) {
+        String clientSecret = request.getHeader(FileConstants.CLIENT_SECRET_HEADER);
+        return transferExecutors.submitUpload(() -> {
+            // It's being set the file as not required to override the validation with a bad request status
+            MultipartFile file = getMultipartFile(request);
+            if (file != null && !file.isEmpty()) {
+                if (!fileService.isValid(file)) {
+                    throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+                }
+                if (clientSecret == null) {
+                    throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
+                }
+                return fileService.uploadFile(file, FileConstants.ROOT_PATH, clientSecret);
+            } else {
+                throw new BadRequestException(FileErrorMessages.EMPTY_FILE);
+            }
+        });
+    }
+
+    /* Update file, parsed, checked and stored on the upload pool */
     @RequestMapping(method = RequestMethod.PUT, value = "file/{fileName:.+}")
-    public ResponseEntity<?> handleFileUpdate(HttpServletRequest request, @RequestParam(name = "file", required = false) MultipartFile file,
-                                   @PathVariable String fileName) throws Exception {
+    public DeferredResult<ResponseEntity<?>> handleFileUpdate(HttpServletRequest request, @PathVariable String fileName) {
+        String clientSecret = request.getHeader(FileConstants.CLIENT_SECRET_HEADER);
+        String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        return transferExecutors.submitUpload(() -> {
+            // It's being set the file as not required to override the validation with a bad request status
+            MultipartFile file = getMultipartFile(request);
+            if (file != null && !file.isEmpty()) {
 
-        // It's being set the file as not required to override the validation with a bad request status
-        if (file != null && !file.isEmpty()) {
+                if (!fileService.isValid(file)) {
+                    throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+                }
+                if (clientSecret == null) {
+                    throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
+                }
 
-            if (!fileService.isValid(file)) {
-                throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+                return fileService.updateFile(file, FileConstants.ROOT_PATH, fileName, clientSecret, ifMatch);
+            } else {
+                throw new BadRequestException(FileErrorMessages.EMPTY_FILE);
             }
-            if (request.getHeader(FileConstants.CLIENT_SECRET_HEADER) == null) {
+        });
+    }
+
+    /* Upload files, every file part of the request stored in parallel on the upload pool, each with its own result */
+    @RequestMapping(method = RequestMethod.POST, value = "files")
+    public DeferredResult<ResponseEntity<?>> handleFilesUpload(HttpServletRequest request) {
+        String clientSecret = request.getHeader(FileConstants.CLIENT_SECRET_HEADER);
+        return transferExecutors.submitUpload(() -> {
+            if (clientSecret == null) {
                 throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
             }
+            List<MultipartFile> files = getMultipartFiles(request);
+            if (files.isEmpty()) {
+                throw new BadRequestException(FileErrorMessages.EMPTY_FILE);
+            }
+            if (files.size() > FileConstants.MAX_BATCH_SIZE) {
+                throw new BadRequestException(FileErrorMessages.BATCH_TOO_LARGE);
+            }
+            List<Supplier<BatchResult>> uploads = files.stream()
+                    .map(file -> (Supplier<BatchResult>) () -> storeBatchFile(file, clientSecret))
+                    .collect(Collectors.toList());
+            return ResponseEntity.ok(transferExecutors.runAll(uploads));
+        });
+    }
 
-            return fileService.updateFile(file, FileConstants.ROOT_PATH, fileName, request.getHeader(FileConstants.CLIENT_SECRET_HEADER));
-        } else {
-            throw new BadRequestException(FileErrorMessages.EMPTY_FILE);
+    /* Get a ZIP of the given files, every entry decrypted and written as the archive is sent, on the download pool */
+    @RequestMapping(method = RequestMethod.GET, value = "files/archive")
+    public void getArchive(@RequestParam(name = "ids") List<String> ids, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Set<String> fileIds = getBatchIds(ids);
+        for (String fileId : fileIds) {
+            if (clusterService.isLocal(fileId)) {
+                fileService.getMetadata(fileId);
+            } else {
+                checkRemote(fileId);
+            }
         }
 
+        transferExecutors.startDownload();
+        AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(0);
+        response.setContentType(ARCHIVE_TYPE);
+        response.addHeader("Content-disposition", String.format(contentDisposition, FileConstants.ARCHIVE_NAME));
+        // The allowed formats are compressed already, so entries are only stored
+        ChunkSource body = new ZipChunkSource(fileIds.iterator(), this::entryBody, Deflater.NO_COMPRESSION);
+        try {
+            new NonBlockingWriter(async, "archive of " + String.join(",", fileIds), transferExecutors.getDownloadExecutor(), metered(body), () -> {
+                closeQuietly(body);
+                transferExecutors.finishDownload();
+            }).start();
+        } catch (IOException e) {
+            transferExecutors.finishDownload();
+            async.complete();
+            throw e;
+        }
     }
 
-    /* Get files */
+    /* Get files, a page at a time when a limit is given */
     @RequestMapping(method = RequestMethod.GET, value = "files")
-    public List<AppFile> getFiles() {
-        return fileService.getFiles(FileConstants.ROOT_PATH);
+    public void getFiles(HttpServletRequest request, HttpServletResponse response,
+                         @RequestParam(name = "owned", defaultValue = "false") boolean owned,
+                         @RequestParam(name = "sort", defaultValue = "name") String sort,
+                         @RequestParam(name = "order", defaultValue = "asc") String order,
+                         @RequestParam(name = "cursor", required = false) String cursor,
+                         @RequestParam(name = "limit", required = false) Integer limit) throws IOException {
+
+        FileQuery query = new FileQuery();
+        if (owned) {
+            if (request.getHeader(FileConstants.CLIENT_SECRET_HEADER) == null) {
+                throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
+            }
+            query.setOwner(request.getHeader(FileConstants.CLIENT_SECRET_HEADER));
+        }
+        try {
+            query.setSort(FileSort.valueOf(sort.toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(FileErrorMessages.INVALID_QUERY);
+        }
+        if (!order.equalsIgnoreCase("asc") && !order.equalsIgnoreCase("desc")) {
+            throw new BadRequestException(FileErrorMessages.INVALID_QUERY);
+        }
+        if (limit != null && (limit < 1 || limit > FileConstants.MAX_PAGE_SIZE)) {
+            throw new BadRequestException(FileErrorMessages.INVALID_QUERY);
+        }
+        query.setDescending(order.equalsIgnoreCase("desc"));
+        query.setCursor(cursor);
+        query.setLimit(limit);
+
+        Stream<AppFile> files = fileService.getFiles(FileConstants.ROOT_PATH, query);
+        if (clusterService.isEnabled() && !clusterService.isInternal(request)) {
+            // Every instance lists its own files for the same query, and the pages are merged in the query's order,
+            // each file once however many copies there are
+            Set<String> names = new HashSet<>();
+            files = Stream.concat(files, clusterService.getPeerFiles(request.getQueryString(),
+                    request.getHeader(FileConstants.CLIENT_SECRET_HEADER)).stream())
+                    .filter(file -> names.add(file.getName()))
+                    .sorted(fileService.getOrder(query));
+            if (limit != null) {
+                files = files.limit(limit);
+            }
+        }
+        if (limit != null) {
+            // A page is small enough to collect first, so the next cursor can go in the headers
+            List<AppFile> page = files.collect(Collectors.toList());
+            if (page.size() == limit && query.getSort() == FileSort.NAME) {
+                response.setHeader(FileConstants.NEXT_CURSOR_HEADER, fileService.getCursor(page.get(limit - 1)));
+            }
+            files = page.stream();
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.writeStartArray();
+            Iterator<AppFile> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                generator.writeObject(iterator.next());
+            }
+            generator.writeEndArray();
+        }
     }
 
     /* Delete File */
     @RequestMapping(method = RequestMethod.DELETE, value = "file/{fileName:.+}")
-    public ResponseEntity<?> handleFileDeletion(HttpServletRequest request, @PathVariable String fileName) {
+    public ResponseEntity<?> handleFileDeletion(HttpServletRequest request, @PathVariable String fileName) throws IOException {
         if (request.getHeader(FileConstants.CLIENT_SECRET_HEADER) == null) {
             throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
         }
@@ -114,6 +386,303 @@ public class FileController {
     }
 
 
+    /* Delete files, either all of them or none when any is missing or owned by someone else */
+    @RequestMapping(method = RequestMethod.DELETE, value = "files")
+    public ResponseEntity<?> handleFilesDeletion(HttpServletRequest request, @RequestParam(name = "ids") List<String> ids) throws IOException {
+        if (request.getHeader(FileConstants.CLIENT_SECRET_HEADER) == null) {
+            throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
+        }
+        return fileService.deleteFiles(getBatchIds(ids), FileConstants.ROOT_PATH, request.getHeader(FileConstants.CLIENT_SECRET_HEADER));
+    }
+
+
+    /* Stores one file of a batch upload, its failure only affecting its own result */
+    private BatchResult storeBatchFile(MultipartFile file, String clientSecret) {
+        BatchResult result = new BatchResult();
+        result.setName(file.getOriginalFilename());
+        try {
+            if (file.isEmpty()) {
+                throw new BadRequestException(FileErrorMessages.EMPTY_FILE);
+            }
+            if (!fileService.isValid(file)) {
+                throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+            }
+            result.setId(fileService.storeFile(file, FileConstants.ROOT_PATH, clientSecret));
+            result.setStatus(HttpStatus.CREATED.value());
+        } catch (BadRequestException e) {
+            result.setStatus(HttpStatus.BAD_REQUEST.value());
+            result.setError(e.getMessage());
+        } catch (InsufficientStorageException e) {
+            result.setStatus(HttpStatus.INSUFFICIENT_STORAGE.value());
+            result.setError(e.getMessage());
+        } catch (Exception | InternalError e) {
+            log.error("Storing " + file.getOriginalFilename() + " of a batch failed", e);
+            result.setStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+        return result;
+    }
+
+    /* Decoded content of a file as an archive entry, or null when the file was deleted since the archive was asked for */
+    private ChunkSource entryBody(String fileId) throws IOException, GeneralSecurityException {
+        if (!clusterService.isLocal(fileId)) {
+            return remoteEntryBody(fileId);
+        }
+        FileMetadata metadata;
+        ByteBuffer content;
+        SeekableByteChannel channel;
+        try {
+            metadata = fileService.getMetadata(fileId);
+            content = fileService.getContent(fileId, FileConstants.ROOT_PATH);
+            channel = content == null ? fileService.openFile(fileId, FileConstants.ROOT_PATH) : null;
+        } catch (FileNotInStorageException e) {
+            return null;
+        }
+        long length = content != null ? content.remaining() : EncryptionUtil.plaintextSize(channel.size());
+        RangeWriter writer = rangeWriter(content, channel);
+        ContentEncoding encoding = ContentEncoding.of(metadata.getEncoding());
+        ChunkSource body = encoding == null ? rangeBody(writer, 0, length - 1)
+                : decodedBody(writer, encoding.getHeaderSize(), length - 1 - encoding.getTrailerSize(), encoding);
+        return new ChunkSource() {
+            @Override
+            public byte[] next() throws IOException, GeneralSecurityException {
+                return body.next();
+            }
+
+            @Override
+            public void close() {
+                closeQuietly(body);
+                closeQuietly(channel);
+            }
+        };
+    }
+
+    /* Fails like a missing local file when no owner of a file held by other instances has it */
+    private void checkRemote(String fileId) throws IOException {
+        HttpURLConnection connection;
+        try {
+            connection = clusterService.openRemote(fileId, RequestMethod.HEAD.name());
+        } catch (IOException e) {
+            throw new ServiceUnavailableException(FileErrorMessages.CLUSTER_NODE_UNAVAILABLE);
+        }
+        if (connection == null) {
+            throw new FileNotInStorageException(FileErrorMessages.FILE_NOT_FOUND);
+        }
+        connection.disconnect();
+    }
+
+    /* Decoded content of a file held by other instances, read from the owner that has it a chunk at a time */
+    private ChunkSource remoteEntryBody(String fileId) throws IOException {
+        HttpURLConnection connection = clusterService.openRemote(fileId, RequestMethod.GET.name());
+        if (connection == null) {
+            return null;
+        }
+        InputStream input = connection.getInputStream();
+        return new ChunkSource() {
+            @Override
+            public byte[] next() throws IOException {
+                return ChunkSource.readChunk(input, CHUNK_SIZE);
+            }
+
+            @Override
+            public void close() {
+                closeQuietly(input);
+                connection.disconnect();
+            }
+        };
+    }
+
+    /* Distinct ids of a batch, in the order they were given */
+    private Set<String> getBatchIds(List<String> ids) {
+        Set<String> fileIds = new LinkedHashSet<>(ids);
+        fileIds.remove("");
+        if (fileIds.isEmpty()) {
+            throw new BadRequestException(FileErrorMessages.EMPTY_BATCH);
+        }
+        if (fileIds.size() > FileConstants.MAX_BATCH_SIZE) {
+            throw new BadRequestException(FileErrorMessages.BATCH_TOO_LARGE);
+        }
+        return fileIds;
+    }
+
+    /* Reads plaintext from cached content, or decrypts it from the open file when the content isn't cached */
+    private RangeWriter rangeWriter(ByteBuffer content, SeekableByteChannel channel) {
+        if (content != null) {
+            return (start, end, out) -> {
+                ByteBuffer range = content.duplicate();
+                range.position((int) start).limit((int) end + 1);
+                Channels.newChannel(out).write(range);
+            };
+        }
+        return (start, end, out) -> {
+            long started = System.nanoTime();
+            EncryptionUtil.decrypt(channel, start, end, out);
+            metrics.stage(Metrics.Stage.DECRYPT).recordSince(started);
+        };
+    }
+
+    /* Times producing every chunk of a body, reading and decrypting included, and counts the bytes sent */
+    private ChunkSource metered(ChunkSource body) {
+        return () -> {
+            long started = System.nanoTime();
+            byte[] chunk = body.next();
+            metrics.stage(Metrics.Stage.COPY).recordSince(started);
+            if (chunk != null) {
+                metrics.bytesWritten(chunk.length);
+            }
+            return chunk;
+        };
+    }
+
+    /* Sets the headers for the whole file, a single range or several ranges as multipart/byteranges, depending on the Range header, and returns the body */
+    private ChunkSource rangesBody(String fileName, String contentType, long length, HttpServletRequest request, HttpServletResponse response,
+                                   RangeWriter writer) {
+        List<HttpRange> ranges = getRanges(request.getHeader(HttpHeaders.RANGE), length);
+
+        response.addHeader("Content-disposition", String.format(contentDisposition, fileName));
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (ranges.isEmpty()) {
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(length));
+            return rangeBody(writer, 0, length - 1);
+        } else if (ranges.size() == 1) {
+            long start = ranges.get(0).getRangeStart(length);
+            long end = ranges.get(0).getRangeEnd(length);
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, String.format(contentRange, start, end, length));
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(end - start + 1));
+            return rangeBody(writer, start, end);
+        } else {
+            String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+            response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+            response.setContentType(String.format(multipartByteRanges, boundary));
+            List<ChunkSource> parts = new ArrayList<>();
+            for (HttpRange range : ranges) {
+                long start = range.getRangeStart(length);
+                long end = range.getRangeEnd(length);
+                parts.add(ChunkSource.of(String.format(rangePartHeader, boundary, contentType, start, end, length)));
+                parts.add(rangeBody(writer, start, end));
+            }
+            parts.add(ChunkSource.of(String.format(rangesEnd, boundary)));
+            return ChunkSource.concat(parts);
+        }
+    }
+
+    /* The bytes from start to end, inclusive, read a chunk of whole segments at a time */
+    private ChunkSource rangeBody(RangeWriter writer, long start, long end) {
+        return new ChunkSource() {
+            private long position = start;
+
+            @Override
+            public byte[] next() throws IOException, GeneralSecurityException {
+                if (position > end) {
+                    return null;
+                }
+                long chunkEnd = Math.min(end, (position / CHUNK_SIZE + 1) * CHUNK_SIZE - 1);
+                byte[] chunk = new byte[(int) (chunkEnd - position + 1)];
+                writer.write(position, chunkEnd, new ByteBufferOutputStream(ByteBuffer.wrap(chunk)));
+                position = chunkEnd + 1;
+                return chunk;
+            }
+        };
+    }
+
+    /* The decoded content of the stored bytes from start to end, inflated a chunk at a time on demand */
+    private ChunkSource decodedBody(RangeWriter writer, long start, long end, ContentEncoding encoding) {
+        InputStream decoded = encoding.decode(rangeBody(writer, start, end).toInputStream());
+        return new ChunkSource() {
+            @Override
+            public byte[] next() throws IOException {
+                return ChunkSource.readChunk(decoded, CHUNK_SIZE);
+            }
+
+            @Override
+            public void close() {
+                closeQuietly(decoded);
+            }
+        };
+    }
+
+    /* Multipart requests are parsed lazily, so this is where the upload is read */
+    private MultipartFile getMultipartFile(HttpServletRequest request) {
+        long started = System.nanoTime();
+        MultipartHttpServletRequest multipartRequest = getMultipartRequest(request);
+        MultipartFile file = multipartRequest == null ? null : multipartRequest.getFile("file");
+        metrics.stage(Metrics.Stage.PARSE).recordSince(started);
+        return file;
+    }
+
+    private List<MultipartFile> getMultipartFiles(HttpServletRequest request) {
+        long started = System.nanoTime();
+        MultipartHttpServletRequest multipartRequest = getMultipartRequest(request);
+        List<MultipartFile> files = multipartRequest == null ? Collections.emptyList() : multipartRequest.getFiles("file");
+        metrics.stage(Metrics.Stage.PARSE).recordSince(started);
+        return files;
+    }
+
+    private MultipartHttpServletRequest getMultipartRequest(HttpServletRequest request) {
+        MultipartHttpServletRequest multipartRequest = WebUtils.getNativeRequest(request, MultipartHttpServletRequest.class);
+        if (multipartRequest == null && request.getContentType() != null
+                && request.getContentType().toLowerCase(Locale.ROOT).startsWith(MediaType.MULTIPART_FORM_DATA.getType())) {
+            // The resolver only wraps POST requests, updates are parsed the same way here
+            multipartRequest = new StandardMultipartHttpServletRequest(request);
+        }
+        return multipartRequest;
+    }
+
+    /* Errors of downloads that failed on the download pool, before anything was written */
+    private void sendError(HttpServletResponse response, Exception e) {
+        try {
+            if (e instanceof RangeNotSatisfiableException) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, String.format(unsatisfiedContentRange, ((RangeNotSatisfiableException) e).getLength()));
+                response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value(), e.getMessage());
+            } else if (e instanceof FileNotInStorageException) {
+                response.sendError(HttpStatus.NOT_FOUND.value(), e.getMessage());
+            } else if (e instanceof BadRequestException) {
+                response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+            } else {
+                log.error("Download failed", e);
+                response.sendError(HttpStatus.INTERNAL_SERVER_ERROR.value());
+            }
+        } catch (IOException ignored) {
+            // The client is gone
+        }
+    }
+
+    private static void closeQuietly(Closeable channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /* Satisfiable ranges of the Range header, or none when the whole file has to be sent */
+    private List<HttpRange> getRanges(String rangeHeader, long length) {
+        if (rangeHeader == null) {
+            return Collections.emptyList();
+        }
+        List<HttpRange> ranges;
+        try {
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            // An invalid Range header is ignored and the full representation is sent
+            return Collections.emptyList();
+        }
+        if (ranges.size() > MAX_RANGES) {
+            return Collections.emptyList();
+        }
+        List<HttpRange> satisfiable = ranges.stream()
+                .filter(range -> length > 0 && range.getRangeStart(length) < length)
+                .collect(Collectors.toList());
+        if (satisfiable.isEmpty()) {
+            throw new RangeNotSatisfiableException(FileErrorMessages.RANGE_NOT_SATISFIABLE, length);
+        }
+        return satisfiable;
+    }
+
+
     /* Exception handlers */
 
     @ExceptionHandler(BadRequestException.class)
@@ -134,4 +703,35 @@ public class FileController {
         response.sendError(HttpStatus.NOT_FOUND.value(), ex.getMessage());
     }
 
-}
\ No newline at end of file
+    @ExceptionHandler(PreconditionFailedException.class)
+    protected void handlePreconditionFailedException(PreconditionFailedException ex,
+                                                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.PRECONDITION_FAILED.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(InsufficientStorageException.class)
+    protected void handleInsufficientStorageException(InsufficientStorageException ex,
+                                                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.INSUFFICIENT_STORAGE.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(ServiceUnavailableException.class)
+    protected void handleServiceUnavailableException(ServiceUnavailableException ex,
+                                                     HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, FileConstants.RETRY_AFTER_SECONDS);
+        response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(RangeNotSatisfiableException.class)
+    protected void handleRangeNotSatisfiableException(RangeNotSatisfiableException ex,
+                                                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.CONTENT_RANGE, String.format(unsatisfiedContentRange, ex.getLength()));
+        response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value(), ex.getMessage());
+    }
+
+    /* Writes the plaintext bytes from start to end, inclusive */
+    private interface RangeWriter {
+        void write(long start, long end, OutputStream output) throws IOException, GeneralSecurityException;
+    }
+
+}
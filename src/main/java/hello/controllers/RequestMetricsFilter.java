@@ -0,0 +1,96 @@
+package hello.controllers;
+
+import hello.services.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+
+/* Times every request by the handler mapping it matched, until its response, asynchronous or not, is complete */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class RequestMetricsFilter implements Filter, AsyncListener {
+
+    private static final String STARTED_ATTRIBUTE = RequestMetricsFilter.class.getName() + ".started";
+
+    @Autowired
+    private Metrics metrics;
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        if (request.getDispatcherType() != DispatcherType.REQUEST) {
+            // Dispatches of a request already being timed
+            chain.doFilter(request, response);
+            return;
+        }
+        long started = System.nanoTime();
+        metrics.requestStarted(request.getContentLengthLong());
+        boolean async = false;
+        try {
+            chain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.setAttribute(STARTED_ATTRIBUTE, started);
+                request.getAsyncContext().addListener(this);
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                finish((HttpServletRequest) request, started);
+            }
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        ServletRequest request = event.getSuppliedRequest() != null ? event.getSuppliedRequest() : event.getAsyncContext().getRequest();
+        finish((HttpServletRequest) request, (Long) request.getAttribute(STARTED_ATTRIBUTE));
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        // A new asynchronous cycle of the same request, which needs the listener again
+        event.getAsyncContext().addListener(this);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private void finish(HttpServletRequest request, long started) {
+        metrics.requestFinished();
+        RequestMethod method;
+        try {
+            method = RequestMethod.valueOf(request.getMethod());
+        } catch (IllegalArgumentException e) {
+            // Not a method any handler could map
+            return;
+        }
+        metrics.endpoint((String) request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE), method).recordSince(started);
+    }
+}
@@ -0,0 +1,75 @@
+package hello.controllers;
+
+import hello.models.CacheStats;
+import hello.models.CryptoStats;
+import hello.models.PackStats;
+import hello.services.ContentCache;
+import hello.services.ContentStore;
+import hello.services.Metrics;
+import hello.services.PackStore;
+import hello.util.EncryptionUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+
+@RestController
+public class StatsController {
+
+    @Autowired
+    private ContentCache contentCache;
+
+    @Autowired
+    private ContentStore contentStore;
+
+    @Autowired
+    private Metrics metrics;
+
+    private static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /* Get every metric in the Prometheus text format */
+    @RequestMapping(method = RequestMethod.GET, value = "metrics")
+    public void getMetrics(HttpServletResponse response) throws IOException {
+        response.setContentType(PROMETHEUS_TYPE);
+        Writer writer = response.getWriter();
+        metrics.write(writer);
+        writer.flush();
+    }
+
+    /* Get crypto stats */
+    @RequestMapping(method = RequestMethod.GET, value = "stats/crypto")
+    public CryptoStats getCryptoStats() {
+        CryptoStats stats = new CryptoStats();
+        stats.setCiphersAllocated(EncryptionUtil.getCiphersAllocated());
+        stats.setCiphersReused(EncryptionUtil.getCiphersReused());
+        return stats;
+    }
+
+    /* Get content cache stats */
+    @RequestMapping(method = RequestMethod.GET, value = "stats/cache")
+    public CacheStats getCacheStats() {
+        CacheStats stats = new CacheStats();
+        stats.setHits(contentCache.getHits());
+        stats.setMisses(contentCache.getMisses());
+        stats.setEvictions(contentCache.getEvictions());
+        stats.setSize(contentCache.getSize());
+        stats.setMaxSize(contentCache.getMaxSize());
+        return stats;
+    }
+
+    /* Get pack storage stats */
+    @RequestMapping(method = RequestMethod.GET, value = "stats/packs")
+    public PackStats getPackStats() {
+        PackStore packs = contentStore.getPacks();
+        PackStats stats = new PackStats();
+        stats.setObjects(packs.getObjects());
+        stats.setSegments(packs.getSegments());
+        stats.setSegmentBytes(packs.getSegmentBytes());
+        stats.setLiveBytes(packs.getLiveBytes());
+        return stats;
+    }
+}
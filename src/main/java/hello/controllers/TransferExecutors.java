@@ -0,0 +1,149 @@
+package hello.controllers;
+
+import hello.constants.FileErrorMessages;
+import hello.exceptions.ServiceUnavailableException;
+import hello.services.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/*
+ * Bounded pools running the disk and crypto work of transfers, answering 503 once uploads queue or downloads run past
+ * their limits
+ */
+@Component
+public class TransferExecutors {
+
+    /* Asynchronous requests don't time out, the work they wait for is bounded by the pools instead */
+    private static final long NO_TIMEOUT = 0L;
+
+    private final ThreadPoolExecutor uploadExecutor;
+    private final ThreadPoolExecutor downloadExecutor;
+    private final Semaphore downloads;
+
+    @Autowired
+    public TransferExecutors(@Value("${transfers.upload-threads:0}") int uploadThreads,
+                             @Value("${transfers.upload-queue:64}") int uploadQueue,
+                             @Value("${transfers.download-threads:0}") int downloadThreads,
+                             @Value("${transfers.max-downloads:256}") int maxDownloads,
+                             Metrics metrics) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        uploadExecutor = new ThreadPoolExecutor(threads(uploadThreads, processors), threads(uploadThreads, processors), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(uploadQueue), threadFactory("upload-worker"));
+        downloadExecutor = new ThreadPoolExecutor(threads(downloadThreads, processors), threads(downloadThreads, processors), 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory("download-worker"));
+        downloads = new Semaphore(maxDownloads);
+        metrics.gauge("upload_pool_active_threads", "Upload pool threads running a task", uploadExecutor::getActiveCount);
+        metrics.gauge("upload_pool_queued_tasks", "Uploads waiting for an upload pool thread", () -> uploadExecutor.getQueue().size());
+        metrics.gauge("downloads_in_flight", "Downloads admitted and not completed yet", () -> maxDownloads - downloads.availablePermits());
+    }
+
+    /* Runs the work of an upload on the upload pool, its exceptions going to the controller's handlers */
+    public <T> DeferredResult<T> submitUpload(Callable<T> work) {
+        DeferredResult<T> result = new DeferredResult<>(NO_TIMEOUT);
+        try {
+            uploadExecutor.execute(() -> {
+                try {
+                    result.setResult(work.call());
+                } catch (Throwable e) {
+                    result.setErrorResult(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new ServiceUnavailableException(FileErrorMessages.SERVER_BUSY);
+        }
+        return result;
+    }
+
+    /*
+     * Runs the tasks of a batch in parallel on the upload pool from a task already on it, returning their results in order.
+     * The caller runs whatever tasks no helper has claimed, so a busy pool can't deadlock it
+     */
+    public <T> List<T> runAll(List<Supplier<T>> tasks) throws InterruptedException {
+        List<T> results = new ArrayList<>(Collections.nCopies(tasks.size(), null));
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(tasks.size());
+        Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < tasks.size()) {
+                try {
+                    results.set(index, tasks.get(index).get());
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        int helpers = Math.min(tasks.size(), uploadExecutor.getMaximumPoolSize()) - 1;
+        try {
+            for (int i = 0; i < helpers; i++) {
+                uploadExecutor.execute(worker);
+            }
+        } catch (RejectedExecutionException e) {
+            // Fewer helpers, the caller takes their share
+        }
+        worker.run();
+        done.await();
+        if (failure.get() instanceof Error) {
+            throw (Error) failure.get();
+        } else if (failure.get() != null) {
+            throw (RuntimeException) failure.get();
+        }
+        return results;
+    }
+
+    /* Admits a download, which has to call finishDownload once its response is complete */
+    public void startDownload() {
+        if (!downloads.tryAcquire()) {
+            throw new ServiceUnavailableException(FileErrorMessages.SERVER_BUSY);
+        }
+    }
+
+    public void finishDownload() {
+        downloads.release();
+    }
+
+    public Executor getDownloadExecutor() {
+        return downloadExecutor;
+    }
+
+    @PreDestroy
+    public void close() {
+        uploadExecutor.shutdownNow();
+        downloadExecutor.shutdownNow();
+    }
+
+    private static int threads(int configured, int processors) {
+        return configured > 0 ? configured : Math.max(2, processors);
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
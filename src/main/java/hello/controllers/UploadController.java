@@ -0,0 +1,155 @@
+package hello.controllers;
+
+import hello.constants.FileConstants;
+import hello.constants.FileErrorMessages;
+import hello.exceptions.BadRequestException;
+import hello.exceptions.ConflictException;
+import hello.exceptions.FileNotInStorageException;
+import hello.exceptions.ForbiddenException;
+import hello.exceptions.InsufficientStorageException;
+import hello.exceptions.PayloadTooLargeException;
+import hello.exceptions.ServiceUnavailableException;
+import hello.models.UploadStatus;
+import hello.services.UploadService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+
+/* Resumable uploads following the core of the tus protocol, with X-HTTP-Method-Override for clients that can't PATCH */
+@RestController
+public class UploadController {
+
+    @Autowired
+    private UploadService uploadService;
+
+    @Autowired
+    private TransferExecutors transferExecutors;
+
+    private final String uploadLocation = "/uploads/%s";
+
+    /* Create upload */
+    @RequestMapping(method = RequestMethod.POST, value = "uploads")
+    public ResponseEntity<?> createUpload(HttpServletRequest request) throws IOException, GeneralSecurityException {
+        String id = uploadService.create(getClientSecret(request), getLongHeader(request, FileConstants.UPLOAD_LENGTH_HEADER,
+                FileErrorMessages.INVALID_UPLOAD_LENGTH));
+        return ResponseEntity.created(URI.create(String.format(uploadLocation, id)))
+                .header(FileConstants.TUS_RESUMABLE_HEADER, FileConstants.TUS_VERSION)
+                .header(FileConstants.UPLOAD_OFFSET_HEADER, "0")
+                .build();
+    }
+
+    /* Get upload offset */
+    @RequestMapping(method = RequestMethod.HEAD, value = "uploads/{id}")
+    public void getUploadOffset(@PathVariable String id, HttpServletRequest request, HttpServletResponse response) {
+        UploadStatus status = uploadService.getStatus(id, getClientSecret(request));
+        response.setHeader(FileConstants.TUS_RESUMABLE_HEADER, FileConstants.TUS_VERSION);
+        response.setHeader(FileConstants.UPLOAD_OFFSET_HEADER, Long.toString(status.getOffset()));
+        response.setHeader(FileConstants.UPLOAD_LENGTH_HEADER, Long.toString(status.getLength()));
+        response.setDateHeader(FileConstants.UPLOAD_EXPIRES_HEADER, status.getExpiresAt());
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-store");
+    }
+
+    /* Append chunk, read and encrypted on the upload pool */
+    @RequestMapping(method = RequestMethod.PATCH, value = "uploads/{id}", consumes = FileConstants.UPLOAD_CHUNK_TYPE)
+    public DeferredResult<ResponseEntity<?>> appendChunk(@PathVariable String id, HttpServletRequest request) {
+        String clientSecret = getClientSecret(request);
+        long offset = getLongHeader(request, FileConstants.UPLOAD_OFFSET_HEADER, FileErrorMessages.UPLOAD_OFFSET_MISMATCH);
+        long chunkLength = request.getContentLengthLong();
+        return transferExecutors.submitUpload(() -> {
+            long newOffset = uploadService.append(id, clientSecret, offset, chunkLength, request.getInputStream());
+            return ResponseEntity.noContent()
+                    .header(FileConstants.TUS_RESUMABLE_HEADER, FileConstants.TUS_VERSION)
+                    .header(FileConstants.UPLOAD_OFFSET_HEADER, Long.toString(newOffset))
+                    .build();
+        });
+    }
+
+    @RequestMapping(method = RequestMethod.POST, value = "uploads/{id}", consumes = FileConstants.UPLOAD_CHUNK_TYPE,
+            headers = "X-HTTP-Method-Override=PATCH")
+    public DeferredResult<ResponseEntity<?>> appendChunkOverride(@PathVariable String id, HttpServletRequest request) {
+        return appendChunk(id, request);
+    }
+
+    /* Finish upload into a file on the upload pool */
+    @RequestMapping(method = RequestMethod.POST, value = "uploads/{id}/complete")
+    public DeferredResult<ResponseEntity<?>> completeUpload(@PathVariable String id, HttpServletRequest request) {
+        String clientSecret = getClientSecret(request);
+        return transferExecutors.submitUpload(() ->
+                new ResponseEntity<>(uploadService.complete(id, clientSecret, FileConstants.ROOT_PATH), null, HttpStatus.CREATED));
+    }
+
+    /* Abort upload */
+    @RequestMapping(method = RequestMethod.DELETE, value = "uploads/{id}")
+    public ResponseEntity<?> abortUpload(@PathVariable String id, HttpServletRequest request) throws IOException {
+        uploadService.abort(id, getClientSecret(request));
+        return ResponseEntity.noContent().header(FileConstants.TUS_RESUMABLE_HEADER, FileConstants.TUS_VERSION).build();
+    }
+
+
+    private String getClientSecret(HttpServletRequest request) {
+        if (request.getHeader(FileConstants.CLIENT_SECRET_HEADER) == null) {
+            throw new ForbiddenException(FileErrorMessages.AUTHORIZATION_REQUIRED);
+        }
+        return request.getHeader(FileConstants.CLIENT_SECRET_HEADER);
+    }
+
+    private long getLongHeader(HttpServletRequest request, String name, String message) {
+        try {
+            return Long.parseLong(request.getHeader(name));
+        } catch (NumberFormatException e) {
+            throw new BadRequestException(message);
+        }
+    }
+
+
+    /* Exception handlers */
+
+    @ExceptionHandler(BadRequestException.class)
+    protected void handleBadRequestException(BadRequestException ex, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.BAD_REQUEST.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(ForbiddenException.class)
+    protected void handleForbiddenException(ForbiddenException ex, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.FORBIDDEN.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(FileNotInStorageException.class)
+    protected void handleFileNotInStorageException(FileNotInStorageException ex, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.NOT_FOUND.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(ConflictException.class)
+    protected void handleConflictException(ConflictException ex, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.CONFLICT.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(InsufficientStorageException.class)
+    protected void handleInsufficientStorageException(InsufficientStorageException ex, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.INSUFFICIENT_STORAGE.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(ServiceUnavailableException.class)
+    protected void handleServiceUnavailableException(ServiceUnavailableException ex, HttpServletResponse response) throws IOException {
+        response.setHeader(HttpHeaders.RETRY_AFTER, FileConstants.RETRY_AFTER_SECONDS);
+        response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), ex.getMessage());
+    }
+
+    @ExceptionHandler(PayloadTooLargeException.class)
+    protected void handlePayloadTooLargeException(PayloadTooLargeException ex, HttpServletResponse response) throws IOException {
+        response.sendError(HttpStatus.PAYLOAD_TOO_LARGE.value(), ex.getMessage());
+    }
+}
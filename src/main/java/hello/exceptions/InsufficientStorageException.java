@@ -0,0 +1,11 @@
+package hello.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.INSUFFICIENT_STORAGE)
+public class InsufficientStorageException extends RuntimeException {
+    public InsufficientStorageException(String message) {
+        super(message);
+    }
+}
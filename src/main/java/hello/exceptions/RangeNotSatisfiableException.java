@@ -0,0 +1,18 @@
+package hello.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+public class RangeNotSatisfiableException extends RuntimeException {
+    private final long length;
+
+    public RangeNotSatisfiableException(String message, long length) {
+        super(message);
+        this.length = length;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
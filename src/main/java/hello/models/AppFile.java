@@ -9,4 +9,5 @@ public class AppFile {
     private String type;
     private String name;
     private String path;
+    private Long created;
 }
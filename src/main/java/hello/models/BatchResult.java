@@ -0,0 +1,12 @@
+package hello.models;
+
+import lombok.Data;
+
+@Data
+public class BatchResult {
+
+    private String name;
+    private String id;
+    private int status;
+    private String error;
+}
@@ -0,0 +1,13 @@
+package hello.models;
+
+import lombok.Data;
+
+@Data
+public class CacheStats {
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long size;
+    private long maxSize;
+}
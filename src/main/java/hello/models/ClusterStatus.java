@@ -0,0 +1,14 @@
+package hello.models;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ClusterStatus {
+
+    private String self;
+    private List<String> nodes;
+    private int replicas;
+    private boolean rebalancing;
+}
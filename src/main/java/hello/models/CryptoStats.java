@@ -0,0 +1,10 @@
+package hello.models;
+
+import lombok.Data;
+
+@Data
+public class CryptoStats {
+
+    private long ciphersAllocated;
+    private long ciphersReused;
+}
@@ -0,0 +1,16 @@
+package hello.models;
+
+import lombok.Data;
+
+@Data
+public class FileMetadata {
+
+    private String owner;
+    private long size;
+    private String contentType;
+    private long createdAt;
+    private long modifiedAt;
+    private String etag;
+    private String contentKey;
+    private String encoding;
+}
@@ -0,0 +1,13 @@
+package hello.models;
+
+import lombok.Data;
+
+@Data
+public class FileQuery {
+
+    private String owner;
+    private FileSort sort = FileSort.NAME;
+    private boolean descending;
+    private String cursor;
+    private Integer limit;
+}
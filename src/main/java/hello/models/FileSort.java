@@ -0,0 +1,20 @@
+package hello.models;
+
+import java.util.Comparator;
+
+public enum FileSort {
+
+    NAME(Comparator.comparing(AppFile::getName)),
+    SIZE(Comparator.comparing(AppFile::getSize).thenComparing(AppFile::getName)),
+    CREATED(Comparator.comparing(AppFile::getCreated).thenComparing(AppFile::getName));
+
+    private final Comparator<AppFile> comparator;
+
+    FileSort(Comparator<AppFile> comparator) {
+        this.comparator = comparator;
+    }
+
+    public Comparator<AppFile> getComparator() {
+        return comparator;
+    }
+}
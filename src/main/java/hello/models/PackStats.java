@@ -0,0 +1,12 @@
+package hello.models;
+
+import lombok.Data;
+
+@Data
+public class PackStats {
+
+    private long objects;
+    private long segments;
+    private long segmentBytes;
+    private long liveBytes;
+}
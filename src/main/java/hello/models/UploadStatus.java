@@ -0,0 +1,11 @@
+package hello.models;
+
+import lombok.Data;
+
+@Data
+public class UploadStatus {
+
+    private long offset;
+    private long length;
+    private long expiresAt;
+}
@@ -0,0 +1,164 @@
+package hello.services;
+
+import hello.constants.FileErrorMessages;
+import hello.exceptions.InsufficientStorageException;
+import hello.exceptions.TooManyRequestsException;
+import hello.models.FileMetadata;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Per-owner limits on requests in progress, request rate and stored bytes, where a limit of zero is disabled. The rate
+ * is a token bucket kept as the time it is full again, and commits reserve their bytes until the index counts them, so
+ * concurrent commits of an owner can't go past the quota together
+ */
+@Component
+public class AdmissionControl {
+
+    /* Owners known past this many, those with nothing in progress and a full bucket are forgotten */
+    private static final int MAX_IDLE_OWNERS = 10000;
+
+    private final int maxConcurrent;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final long quotaBytes;
+    private final ConcurrentHashMap<String, Owner> owners = new ConcurrentHashMap<>();
+    private final LongAdder concurrencyRejections = new LongAdder();
+    private final LongAdder rateRejections = new LongAdder();
+    private final LongAdder quotaRejections = new LongAdder();
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    public AdmissionControl(@Value("${limits.max-concurrent:32}") int maxConcurrent,
+                            @Value("${limits.requests-per-second:200}") double requestsPerSecond,
+                            @Value("${limits.burst:400}") int burst,
+                            @Value("${limits.quota-bytes:0}") long quotaBytes,
+                            Metrics metrics) {
+        this.maxConcurrent = maxConcurrent;
+        this.intervalNanos = requestsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : 0;
+        this.burstNanos = intervalNanos * Math.max(burst, 1);
+        this.quotaBytes = quotaBytes;
+        metrics.counter("admission_rejections_total{reason=\"concurrency\"}", "Requests turned away by the limits of their owner", concurrencyRejections::sum);
+        metrics.counter("admission_rejections_total{reason=\"rate\"}", "Requests turned away by the limits of their owner", rateRejections::sum);
+        metrics.counter("admission_rejections_total{reason=\"quota\"}", "Requests turned away by the limits of their owner", quotaRejections::sum);
+    }
+
+    /* Admits a request of the owner, which has to be released once it is over */
+    public void admit(String owner, long storedBytes, String replacedFileId) {
+        if (quotaBytes > 0 && storedBytes > 0) {
+            FileMetadata replaced = replacedFileId == null ? null : fileIndex.get(replacedFileId);
+            long freed = replaced != null && owner.equals(replaced.getOwner()) ? replaced.getSize() : 0;
+            if (fileIndex.getUsage(owner) - freed + storedBytes > quotaBytes) {
+                quotaRejections.increment();
+                throw new InsufficientStorageException(FileErrorMessages.QUOTA_EXCEEDED);
+            }
+        }
+
+        Owner state = ownerFor(owner);
+        if (maxConcurrent > 0 && state.inFlight.incrementAndGet() > maxConcurrent) {
+            state.inFlight.decrementAndGet();
+            concurrencyRejections.increment();
+            throw new TooManyRequestsException(FileErrorMessages.TOO_MANY_CONCURRENT_REQUESTS, 1);
+        }
+        if (intervalNanos > 0) {
+            long waitNanos = takeToken(state);
+            if (waitNanos > 0) {
+                release(state);
+                rateRejections.increment();
+                throw new TooManyRequestsException(FileErrorMessages.TOO_MANY_REQUESTS,
+                        Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1)));
+            }
+        }
+    }
+
+    /* Reserves the bytes a commit adds net of the file it replaces, to be settled once the file is indexed or failed to be */
+    public long reserve(String owner, long size, FileMetadata replaced) {
+        if (quotaBytes <= 0 || owner == null) {
+            return 0;
+        }
+        long freed = replaced != null && owner.equals(replaced.getOwner()) ? replaced.getSize() : 0;
+        long added = Math.max(0, size - freed);
+        Owner state = ownerFor(owner);
+        synchronized (state) {
+            if (added > 0 && fileIndex.getUsage(owner) + state.reserved.get() + added > quotaBytes) {
+                quotaRejections.increment();
+                throw new InsufficientStorageException(FileErrorMessages.QUOTA_EXCEEDED);
+            }
+            state.reserved.addAndGet(added);
+        }
+        return added;
+    }
+
+    public void settle(String owner, long reserved) {
+        Owner state = reserved > 0 ? owners.get(owner) : null;
+        if (state != null) {
+            state.reserved.addAndGet(-reserved);
+        }
+    }
+
+    public void release(String owner) {
+        Owner state = owners.get(owner);
+        if (state != null) {
+            release(state);
+        }
+    }
+
+    /* Never below zero, for requests admitted on the state of an owner that was forgotten since */
+    private void release(Owner state) {
+        if (maxConcurrent > 0) {
+            state.inFlight.updateAndGet(inFlight -> inFlight > 0 ? inFlight - 1 : 0);
+        }
+    }
+
+    /* Takes a token, or tells how long until one is available without taking it */
+    private long takeToken(Owner state) {
+        while (true) {
+            long now = System.nanoTime();
+            long full = state.full.get();
+            long next = (full - now < 0 ? now : full) + intervalNanos;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            if (state.full.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private Owner ownerFor(String owner) {
+        Owner state = owners.get(owner);
+        if (state == null) {
+            if (owners.size() >= MAX_IDLE_OWNERS) {
+                forgetIdleOwners();
+            }
+            state = owners.computeIfAbsent(owner, key -> new Owner());
+        }
+        return state;
+    }
+
+    /*
+     * An owner with nothing in progress or reserved and a full bucket is the same as an unknown one. A request admitted
+     * just as its owner is removed isn't counted by the new state, so it can let one more request in
+     */
+    private void forgetIdleOwners() {
+        long now = System.nanoTime();
+        owners.values().removeIf(state -> state.inFlight.get() == 0 && state.reserved.get() == 0 && state.full.get() - now <= 0);
+    }
+
+    private static class Owner {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        /* When the bucket holds every token again, as a System.nanoTime() */
+        private final AtomicLong full = new AtomicLong(System.nanoTime());
+        /* Bytes of commits in progress, changed while holding the state's monitor */
+        private final AtomicLong reserved = new AtomicLong();
+    }
+}
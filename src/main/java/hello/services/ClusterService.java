@@ -0,0 +1,445 @@
+package hello.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hello.constants.FileConstants;
+import hello.exceptions.FileNotInStorageException;
+import hello.models.AppFile;
+import hello.models.ClusterStatus;
+import hello.models.FileMetadata;
+import hello.util.EncryptionUtil;
+import hello.util.HashRing;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/*
+ * Shards files over instances on a consistent-hash ring, each stored by the first `replicas` instances from its id.
+ * Copies of a file are sent on a replication lane picked by its id, so owners get its changes in order
+ */
+@Component
+public class ClusterService {
+
+    private static final Log log = LogFactory.getLog(ClusterService.class);
+    private static final String FILES_PATH = "/cluster/files/";
+    private static final String NODES_PATH = "/cluster/nodes";
+
+    /* New ids are drawn this many times at most for one owned by this instance, then the last one is kept */
+    private static final int MAX_ID_DRAWS = 256;
+
+    /* Files being rebalanced at once, each waiting on its lane */
+    private static final int REBALANCE_WINDOW = 64;
+
+    private final String self;
+    private final int virtualNodes;
+    private final int replicas;
+    private final byte[] secret;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean enabled;
+    private volatile HashRing ring;
+    private final ExecutorService[] lanes;
+    private final ExecutorService rebalancer;
+    private final AtomicBoolean rebalancePending = new AtomicBoolean();
+    private volatile boolean rebalancing;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder copies = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    public ClusterService(@Value("${cluster.nodes:}") String nodes,
+                          @Value("${cluster.self:http://localhost:${server.port:8080}}") String self,
+                          @Value("${cluster.virtual-nodes:160}") int virtualNodes,
+                          @Value("${cluster.replicas:1}") int replicas,
+                          @Value("${cluster.secret:}") String secret,
+                          @Value("${cluster.replication-threads:4}") int replicationThreads,
+                          @Value("${cluster.connect-timeout-ms:2000}") int connectTimeout,
+                          @Value("${cluster.read-timeout-ms:60000}") int readTimeout,
+                          Metrics metrics) {
+        List<String> ring = normalize(Arrays.asList(nodes.split(",")));
+        this.enabled = !ring.isEmpty();
+        if (enabled && secret.isEmpty()) {
+            throw new IllegalStateException("cluster.secret is required along with cluster.nodes");
+        }
+        this.self = normalize(self);
+        this.virtualNodes = virtualNodes;
+        this.replicas = Math.max(replicas, 1);
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.ring = new HashRing(ring, virtualNodes);
+        this.lanes = new ExecutorService[enabled ? Math.max(replicationThreads, 1) : 0];
+        for (int i = 0; i < lanes.length; i++) {
+            String name = "cluster-replication-" + (i + 1);
+            lanes[i] = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, name));
+        }
+        this.rebalancer = enabled ? Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "cluster-rebalance")) : null;
+        metrics.gauge("cluster_nodes", "Instances on the hash ring", () -> this.ring.getNodes().size());
+        metrics.counter("cluster_forwarded_total", "Requests forwarded to the instance owning their file", forwarded::sum);
+        metrics.counter("cluster_copies_total", "Files copied to another instance", copies::sum);
+        metrics.counter("cluster_failures_total", "Copies, deletes and listings another instance could not be reached for", failures::sum);
+    }
+
+    /* A single instance, for tests that wire services by hand */
+    public ClusterService() {
+        this("", "", 1, 1, "", 0, 0, 0, new Metrics());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /* Instances owning the file, its primary owner first */
+    public List<String> owners(String fileId) {
+        return ring.owners(fileId, replicas);
+    }
+
+    /* Whether this instance owns the file and has it */
+    public boolean isLocal(String fileId) {
+        return !enabled || (owners(fileId).contains(self) && fileIndex.get(fileId) != null);
+    }
+
+    /* Requests another instance of the cluster made, carrying the shared secret */
+    public boolean isInternal(HttpServletRequest request) {
+        String header = request.getHeader(FileConstants.CLUSTER_SECRET_HEADER);
+        return enabled && header != null && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* An id from the given ones this instance is the primary owner of */
+    public String newId(Supplier<String> ids) {
+        String id = ids.get();
+        for (int draws = 1; enabled && draws < MAX_ID_DRAWS && !self.equals(ring.primary(id)); draws++) {
+            id = ids.get();
+        }
+        return id;
+    }
+
+    /* Connection to another instance carrying the shared secret, not connected yet */
+    public HttpURLConnection open(String node, String pathAndQuery, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(node + pathAndQuery).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        connection.setRequestProperty(FileConstants.CLUSTER_SECRET_HEADER, new String(secret, StandardCharsets.UTF_8));
+        return connection;
+    }
+
+    public void countForwarded() {
+        forwarded.increment();
+    }
+
+    /* The listing of every other instance for the same query, skipping the ones that can't be reached */
+    public List<AppFile> getPeerFiles(String query, String clientSecret) {
+        List<AppFile> files = new ArrayList<>();
+        for (String node : ring.getNodes()) {
+            if (node.equals(self)) {
+                continue;
+            }
+            try {
+                HttpURLConnection connection = open(node, "/files" + (query == null ? "" : "?" + query), RequestMethod.GET.name());
+                if (clientSecret != null) {
+                    connection.setRequestProperty(FileConstants.CLIENT_SECRET_HEADER, clientSecret);
+                }
+                try (InputStream input = connection.getInputStream()) {
+                    files.addAll(objectMapper.readValue(input, new TypeReference<List<AppFile>>() {
+                    }));
+                }
+            } catch (IOException e) {
+                failures.increment();
+            }
+        }
+        return files;
+    }
+
+    /* The decoded content of a file another instance owns, null when no owner has it */
+    public HttpURLConnection openRemote(String fileId, String method) throws IOException {
+        IOException unreachable = null;
+        for (String node : owners(fileId)) {
+            if (node.equals(self)) {
+                continue;
+            }
+            HttpURLConnection connection = open(node, "/file/" + fileId, method);
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            try {
+                if (connection.getResponseCode() == HttpStatus.OK.value()) {
+                    return connection;
+                }
+                connection.disconnect();
+            } catch (IOException e) {
+                unreachable = e;
+            }
+        }
+        if (unreachable != null) {
+            throw unreachable;
+        }
+        return null;
+    }
+
+    /* Copies a file just stored here to its other owners */
+    public void fileStored(String fileId) {
+        if (enabled) {
+            laneFor(fileId).execute(() -> place(fileId, false));
+        }
+    }
+
+    /* Deletes a file just deleted here from its other owners, unless they have a newer version */
+    public void fileRemoved(String fileId, FileMetadata removed) {
+        if (!enabled) {
+            return;
+        }
+        laneFor(fileId).execute(() -> {
+            for (String node : owners(fileId)) {
+                if (node.equals(self)) {
+                    continue;
+                }
+                try {
+                    HttpURLConnection connection = open(node, FILES_PATH + fileId + "?modifiedAt=" + removed.getModifiedAt(), RequestMethod.DELETE.name());
+                    connection.getResponseCode();
+                    connection.disconnect();
+                } catch (IOException e) {
+                    failures.increment();
+                }
+            }
+        });
+    }
+
+    /* Takes a new list of instances, passing it on to all the instances of the old and new lists first if asked to */
+    public void setNodes(List<String> nodes, boolean propagate) {
+        List<String> previous = ring.getNodes();
+        ring = new HashRing(normalize(nodes), virtualNodes);
+        if (propagate) {
+            Set<String> everyone = new LinkedHashSet<>(previous);
+            everyone.addAll(ring.getNodes());
+            for (String node : everyone) {
+                if (node.equals(self)) {
+                    continue;
+                }
+                try {
+                    HttpURLConnection connection = open(node, NODES_PATH, RequestMethod.PUT.name());
+                    connection.setRequestProperty(FileConstants.CLUSTER_PROPAGATED_HEADER, "true");
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    connection.setDoOutput(true);
+                    try (OutputStream output = connection.getOutputStream()) {
+                        objectMapper.writeValue(output, ring.getNodes());
+                    }
+                    connection.getResponseCode();
+                    connection.disconnect();
+                } catch (IOException e) {
+                    // The instance takes the list from its configuration when it comes back
+                    failures.increment();
+                }
+            }
+        }
+        rebalance();
+    }
+
+    /* Copies every file to the owners missing it, in the background, and drops the ones this instance doesn't own */
+    public void rebalance() {
+        if (!enabled || !rebalancePending.compareAndSet(false, true)) {
+            return;
+        }
+        rebalancer.execute(() -> {
+            rebalancing = true;
+            rebalancePending.set(false);
+            Semaphore window = new Semaphore(REBALANCE_WINDOW);
+            try {
+                for (String fileId : fileIndex.getFileIds()) {
+                    window.acquire();
+                    laneFor(fileId).execute(() -> {
+                        try {
+                            place(fileId, true);
+                        } finally {
+                            window.release();
+                        }
+                    });
+                }
+                window.acquire(REBALANCE_WINDOW);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                rebalancing = false;
+            }
+        });
+    }
+
+    public ClusterStatus getStatus() {
+        ClusterStatus status = new ClusterStatus();
+        status.setSelf(self);
+        status.setNodes(ring.getNodes());
+        status.setReplicas(replicas);
+        status.setRebalancing(rebalancing || rebalancePending.get());
+        return status;
+    }
+
+    @PreDestroy
+    public void close() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+        }
+    }
+
+    /* Copies a file to its owners missing this version, dropping the copy here once placed if this instance isn't one */
+    private void place(String fileId, boolean check) {
+        FileMetadata metadata = fileIndex.get(fileId);
+        if (metadata == null) {
+            return;
+        }
+        List<String> owners = owners(fileId);
+        boolean placed = !owners.isEmpty();
+        for (String node : owners) {
+            if (node.equals(self)) {
+                continue;
+            }
+            try {
+                if (!check || !hasVersion(node, fileId, metadata)) {
+                    copy(node, fileId);
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                failures.increment();
+                placed = false;
+            }
+        }
+        if (placed && !owners.contains(self)) {
+            try {
+                fileService.removeReplica(fileId, FileConstants.ROOT_PATH, metadata.getModifiedAt());
+            } catch (IOException e) {
+                log.warn("Could not drop the copy of " + fileId + " moved to its owners", e);
+            }
+        }
+    }
+
+    private boolean hasVersion(String node, String fileId, FileMetadata metadata) throws IOException {
+        HttpURLConnection connection = open(node, FILES_PATH + fileId, RequestMethod.HEAD.name());
+        try {
+            if (connection.getResponseCode() != HttpStatus.OK.value()) {
+                return false;
+            }
+            FileMetadata remote = objectMapper.readValue(connection.getHeaderField(FileConstants.CLUSTER_METADATA_HEADER), FileMetadata.class);
+            return metadata.getEtag().equals(remote.getEtag()) && remote.getModifiedAt() >= metadata.getModifiedAt();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /* Sends the file as stored, compressed or not but decrypted, along with its metadata */
+    private void copy(String node, String fileId) throws IOException, GeneralSecurityException {
+        FileMetadata metadata;
+        ByteBuffer content;
+        SeekableByteChannel channel;
+        // Taken together, so the content sent is the one the metadata describes
+        Lock lock = fileIndex.lockFor(fileId).readLock();
+        lock.lock();
+        try {
+            metadata = fileService.getMetadata(fileId);
+            content = fileService.getContent(fileId, FileConstants.ROOT_PATH);
+            channel = content == null ? fileService.openFile(fileId, FileConstants.ROOT_PATH) : null;
+        } catch (FileNotInStorageException e) {
+            // Deleted meanwhile, and the delete follows on the same lane
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            long length = content != null ? content.remaining() : EncryptionUtil.plaintextSize(channel.size());
+            FileMetadata sent = objectMapper.convertValue(metadata, FileMetadata.class);
+            // Content keys are local to the instance, the receiver works its own out of the ETag
+            sent.setContentKey(null);
+            HttpURLConnection connection = open(node, FILES_PATH + fileId, RequestMethod.PUT.name());
+            connection.setRequestProperty(FileConstants.CLUSTER_METADATA_HEADER, objectMapper.writeValueAsString(sent));
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            try (OutputStream output = connection.getOutputStream()) {
+                if (content != null) {
+                    Channels.newChannel(output).write(content);
+                } else if (length > 0) {
+                    EncryptionUtil.decrypt(channel, 0, length - 1, output);
+                }
+            }
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            if (status / 100 != 2) {
+                throw new IOException("Copy of " + fileId + " to " + node + " failed with " + status);
+            }
+            copies.increment();
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private ExecutorService laneFor(String fileId) {
+        return lanes[Math.floorMod(fileId.hashCode(), lanes.length)];
+    }
+
+    private static List<String> normalize(List<String> nodes) {
+        return Collections.unmodifiableList(nodes.stream()
+                .map(ClusterService::normalize)
+                .filter(node -> !node.isEmpty())
+                .distinct()
+                .collect(Collectors.toList()));
+    }
+
+    private static String normalize(String node) {
+        String trimmed = node.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,212 @@
+package hello.services;
+
+import hello.util.FrequencySketch;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Decrypted content of frequently read files, kept off-heap with W-TinyLFU eviction. Entries are tagged with the
+ * metadata they were read for, so content read concurrently with an update is never served after it
+ */
+@Component
+public class ContentCache {
+
+    private static final int WINDOW_PERCENT = 1;
+
+    private static final int PROTECTED_PERCENT = 80;
+
+    /* Average entry size assumed to size the frequency sketch */
+    private static final int EXPECTED_ENTRY_SIZE = 16 * 1024;
+
+    private enum Segment { WINDOW, PROBATION, PROTECTED }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long windowMax;
+    private final long mainMax;
+    private final long protectedMax;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @Autowired
+    public ContentCache(@Value("${cache.max-bytes:67108864}") long maxBytes) {
+        this(maxBytes, maxBytes / 16);
+    }
+
+    public ContentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = Math.max(maxBytes, 0);
+        this.windowMax = this.maxBytes * WINDOW_PERCENT / 100;
+        this.mainMax = this.maxBytes - windowMax;
+        this.protectedMax = mainMax * PROTECTED_PERCENT / 100;
+        this.maxEntryBytes = Math.min(maxEntryBytes, mainMax);
+        this.sketch = new FrequencySketch((int) Math.min(this.maxBytes / EXPECTED_ENTRY_SIZE, 1 << 20));
+    }
+
+    /* Whether content of this size would be kept, a zero maximum size disables the cache */
+    public boolean accepts(long size) {
+        return size > 0 && size <= maxEntryBytes;
+    }
+
+    /* Read-only view of the cached content, or null when missing or cached for another version */
+    public synchronized ByteBuffer get(String key, Object version) {
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.version != version) {
+            if (entry != null) {
+                unlink(entry);
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        onHit(entry);
+        return entry.content.asReadOnlyBuffer();
+    }
+
+    public synchronized void put(String key, Object version, ByteBuffer content) {
+        if (!accepts(content.capacity())) {
+            return;
+        }
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            unlink(existing);
+        }
+        Entry entry = new Entry(key, version, content);
+        entries.put(key, entry);
+        window.put(key, entry);
+        windowBytes += entry.weight;
+        while (windowBytes > windowMax) {
+            Entry candidate = window.values().iterator().next();
+            window.remove(candidate.key);
+            windowBytes -= candidate.weight;
+            admit(candidate);
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getSize() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    /* A window evictee makes room in the main segments only by evicting entries read less often than itself */
+    private void admit(Entry candidate) {
+        int frequency = sketch.frequency(candidate.key);
+        while (probationBytes + protectedBytes + candidate.weight > mainMax) {
+            Iterator<Entry> victims = (probation.isEmpty() ? protectedEntries : probation).values().iterator();
+            Entry victim = victims.next();
+            if (frequency <= sketch.frequency(victim.key)) {
+                entries.remove(candidate.key);
+                evictions.increment();
+                return;
+            }
+            unlink(victim);
+            evictions.increment();
+        }
+        candidate.segment = Segment.PROBATION;
+        probation.put(candidate.key, candidate);
+        probationBytes += candidate.weight;
+    }
+
+    private void onHit(Entry entry) {
+        switch (entry.segment) {
+            case WINDOW:
+                window.remove(entry.key);
+                window.put(entry.key, entry);
+                break;
+            case PROTECTED:
+                protectedEntries.remove(entry.key);
+                protectedEntries.put(entry.key, entry);
+                break;
+            case PROBATION:
+                probation.remove(entry.key);
+                probationBytes -= entry.weight;
+                entry.segment = Segment.PROTECTED;
+                protectedEntries.put(entry.key, entry);
+                protectedBytes += entry.weight;
+                while (protectedBytes > protectedMax) {
+                    Entry demoted = protectedEntries.values().iterator().next();
+                    protectedEntries.remove(demoted.key);
+                    protectedBytes -= demoted.weight;
+                    demoted.segment = Segment.PROBATION;
+                    probation.put(demoted.key, demoted);
+                    probationBytes += demoted.weight;
+                }
+                break;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        entries.remove(entry.key);
+        switch (entry.segment) {
+            case WINDOW:
+                window.remove(entry.key);
+                windowBytes -= entry.weight;
+                break;
+            case PROBATION:
+                probation.remove(entry.key);
+                probationBytes -= entry.weight;
+                break;
+            case PROTECTED:
+                protectedEntries.remove(entry.key);
+                protectedBytes -= entry.weight;
+                break;
+        }
+    }
+
+    private static class Entry {
+
+        private final String key;
+        private final Object version;
+        private final ByteBuffer content;
+        private final int weight;
+        private Segment segment = Segment.WINDOW;
+
+        private Entry(String key, Object version, ByteBuffer content) {
+            this.key = key;
+            this.version = version;
+            this.content = content;
+            this.weight = content.capacity();
+        }
+    }
+}
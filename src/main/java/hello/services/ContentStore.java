@@ -0,0 +1,243 @@
+package hello.services;
+
+import hello.constants.FileConstants;
+import hello.models.FileMetadata;
+import hello.storage.StorageBackend;
+import hello.storage.StorageBackends;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Encrypted content stored once under its content key and referenced by every file holding it, with counts rebuilt from
+ * the index on startup. Content locks are striped and only taken holding at most a file's lock, never the other way round
+ */
+@Component
+@DependsOn("metadataLog")
+public class ContentStore {
+
+    private static final Log log = LogFactory.getLog(ContentStore.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private StorageBackends storageBackends;
+
+    @Value("${storage.deduplicate:true}")
+    private boolean enabled;
+
+    @Value("${storage.pack-object-size:65536}")
+    private int packObjectSize;
+
+    @Value("${storage.pack-segment-size:67108864}")
+    private int packSegmentSize;
+
+    @Value("${storage.pack-garbage-ratio:0.5}")
+    private double packGarbageRatio;
+
+    @Value("${storage.pack-compaction-ms:60000}")
+    private long packCompactionMillis;
+
+    private final Path directory;
+    private StorageBackend contents;
+    private PackStore packs;
+    private boolean packing;
+    private ScheduledExecutorService compactor;
+    private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    public ContentStore() {
+        this(Paths.get(FileConstants.ROOT_PATH, FileConstants.CONTENT_DIR));
+    }
+
+    public ContentStore(Path directory) {
+        this.directory = directory;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        contents = storageBackends.open(directory);
+        for (FileMetadata metadata : fileIndex.getFiles().values()) {
+            if (metadata.getContentKey() != null) {
+                references.merge(metadata.getContentKey(), 1, Integer::sum);
+            }
+        }
+        // Packs are appended to in place, which only the local disk allows, so other backends store all content whole.
+        // Packed content stays readable even when packing is turned off
+        packing = StorageBackends.LOCAL.equals(storageBackends.getBackend());
+        packs = new PackStore(directory.resolve(FileConstants.PACKS_DIR), packSegmentSize, packObjectSize, packGarbageRatio);
+        packs.open();
+        if (packCompactionMillis > 0) {
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "pack-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compact, packCompactionMillis, packCompactionMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        packs.close();
+    }
+
+    /* Whether new uploads are stored by content */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public StorageBackend getBackend() {
+        return contents;
+    }
+
+    /* Opens stored content for reading, from its pack segment when it is small and from the backend otherwise */
+    public SeekableByteChannel open(String contentKey) throws IOException {
+        SeekableByteChannel packed = packs.open(contentKey);
+        return packed != null ? packed : contents.open(contentKey);
+    }
+
+    /* Whether the content is stored, whether or not anything references it */
+    public boolean contains(String contentKey) throws IOException {
+        return packs.contains(contentKey) || contents.stat(contentKey) >= 0;
+    }
+
+    /* Adds a reference to content that is already stored, false when it isn't */
+    public boolean retain(String contentKey) {
+        ReentrantLock lock = lockFor(contentKey);
+        lock.lock();
+        try {
+            return references.computeIfPresent(contentKey, (key, count) -> count + 1) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Adds a reference to the content, storing the encrypted file unless it is stored already. The caller deletes the file
+     * if it is left
+     */
+    public void add(String contentKey, Path encryptedPath) throws IOException {
+        ReentrantLock lock = lockFor(contentKey);
+        lock.lock();
+        try {
+            if (references.merge(contentKey, 1, Integer::sum) == 1) {
+                try {
+                    if (packing && packs.accepts(Files.size(encryptedPath))) {
+                        packs.append(contentKey, encryptedPath);
+                    } else {
+                        contents.write(contentKey, encryptedPath);
+                    }
+                } catch (IOException e) {
+                    undoReference(contentKey);
+                    throw e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Drops a reference, deleting the content along with the last one */
+    public void release(String contentKey) throws IOException {
+        ReentrantLock lock = lockFor(contentKey);
+        lock.lock();
+        try {
+            if (!undoReference(contentKey) && !packs.remove(contentKey)) {
+                contents.delete(contentKey);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getReferences(String contentKey) {
+        return references.getOrDefault(contentKey, 0);
+    }
+
+    public PackStore getPacks() {
+        return packs;
+    }
+
+    /* Moves content stored before the sharded layout into it */
+    public void migrate() throws IOException {
+        contents.migrate(this::lockFor);
+    }
+
+    /* Removes temp files left by interrupted writes and content that nothing references */
+    public void removeOrphans(long startedAt) throws IOException {
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(directory, "*" + FileConstants.TEMP_SUFFIX)) {
+            for (Path tempPath : temps) {
+                if (Files.getLastModifiedTime(tempPath).toMillis() < startedAt) {
+                    Files.deleteIfExists(tempPath);
+                }
+            }
+        }
+        for (String contentKey : packs.keys()) {
+            ReentrantLock lock = lockFor(contentKey);
+            lock.lock();
+            try {
+                if (getReferences(contentKey) == 0) {
+                    packs.remove(contentKey);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        contents.list(contentKey -> {
+            ReentrantLock lock = lockFor(contentKey);
+            lock.lock();
+            try {
+                if (getReferences(contentKey) == 0) {
+                    contents.delete(contentKey);
+                }
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    private void compact() {
+        try {
+            packs.compact();
+        } catch (IOException e) {
+            log.warn("Pack compaction failed", e);
+        }
+    }
+
+    /* Returns whether references are left */
+    private boolean undoReference(String contentKey) {
+        return references.computeIfPresent(contentKey, (key, count) -> count == 1 ? null : count - 1) != null;
+    }
+
+    private ReentrantLock lockFor(String contentKey) {
+        int hash = contentKey.hashCode();
+        return locks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,170 @@
+package hello.services;
+
+import hello.models.FileMetadata;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Metadata of the stored files, with file ids also kept sorted for listings, and a read/write lock per stripe of ids.
+ * Updates and deletes of a file take its write lock, so a download holding the read lock never sees it replaced
+ */
+@Component
+public class FileIndex {
+
+    private static final int LOCK_STRIPES = 256;
+    private volatile ConcurrentHashMap<String, FileMetadata> files = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<String, Boolean> fileIds = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, LongAdder> usage = new ConcurrentHashMap<>();
+    private List<String> recoveredIds;
+    private volatile CompletableFuture<Void> idsFilled = CompletableFuture.completedFuture(null);
+    private final ReadWriteLock[] locks = new ReadWriteLock[LOCK_STRIPES];
+
+    public FileIndex() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public FileMetadata get(String fileId) {
+        return files.get(fileId);
+    }
+
+    public void put(String fileId, FileMetadata metadata) {
+        FileMetadata replaced = files.put(fileId, metadata);
+        if (replaced == null) {
+            if (recoveredIds != null) {
+                recoveredIds.add(fileId);
+            } else {
+                fileIds.put(fileId, Boolean.TRUE);
+            }
+        } else {
+            addUsage(replaced, -1);
+        }
+        addUsage(metadata, 1);
+    }
+
+    public FileMetadata remove(String fileId) {
+        FileMetadata removed = files.remove(fileId);
+        if (removed != null) {
+            if (recoveredIds == null) {
+                fileIds.remove(fileId);
+            }
+            addUsage(removed, -1);
+        }
+        return removed;
+    }
+
+    /* Bytes of the files the owner has stored */
+    public long getUsage(String owner) {
+        LongAdder bytes = usage.get(owner);
+        return bytes == null ? 0 : bytes.sum();
+    }
+
+    /* Sizes the map and the recovered ids up front while recovering, before the index is shared */
+    public void reserve(int expectedFiles) {
+        if (files.isEmpty()) {
+            files = new ConcurrentHashMap<>(expectedFiles);
+        }
+        if (recoveredIds != null && recoveredIds.isEmpty()) {
+            recoveredIds = new ArrayList<>(expectedFiles);
+        }
+    }
+
+    /* While recovering ids are only collected, and added to the sorted set once sorted */
+    public void startRecovery() {
+        recoveredIds = new ArrayList<>();
+        idsFilled = new CompletableFuture<>();
+    }
+
+    /*
+     * The recovered ids are added on another thread, each under its file's read lock and only if the file is still there,
+     * since every change to the index is made under the write lock
+     */
+    public void finishRecovery() {
+        List<String> ids = recoveredIds;
+        recoveredIds = null;
+        Thread filler = new Thread(() -> {
+            try {
+                Collections.sort(ids);
+                String last = null;
+                for (String fileId : ids) {
+                    // Repeats are ids that were deleted and added back
+                    if (!fileId.equals(last)) {
+                        Lock lock = lockFor(fileId).readLock();
+                        lock.lock();
+                        try {
+                            if (files.containsKey(fileId)) {
+                                fileIds.put(fileId, Boolean.TRUE);
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    last = fileId;
+                }
+                idsFilled.complete(null);
+            } catch (RuntimeException | Error e) {
+                idsFilled.completeExceptionally(e);
+            }
+        }, "file-index-ids");
+        filler.setDaemon(true);
+        filler.start();
+    }
+
+    public Map<String, FileMetadata> getFiles() {
+        return files;
+    }
+
+    public NavigableSet<String> getFileIds() {
+        idsFilled.join();
+        return fileIds.navigableKeySet();
+    }
+
+    public ReadWriteLock lockFor(String fileId) {
+        return locks[stripeFor(fileId)];
+    }
+
+    /* Write locks of all the given files, each taken once and in stripe order so batches can't deadlock each other */
+    public List<Lock> writeLocksFor(Collection<String> fileIds) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (String fileId : fileIds) {
+            stripes.add(stripeFor(fileId));
+        }
+        List<Lock> writeLocks = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            writeLocks.add(locks[stripe].writeLock());
+        }
+        return writeLocks;
+    }
+
+    private void addUsage(FileMetadata metadata, int sign) {
+        if (metadata.getOwner() == null) {
+            return;
+        }
+        LongAdder bytes = usage.get(metadata.getOwner());
+        if (bytes == null) {
+            bytes = usage.computeIfAbsent(metadata.getOwner(), owner -> new LongAdder());
+        }
+        bytes.add(sign * metadata.getSize());
+    }
+
+    private static int stripeFor(String fileId) {
+        int hash = fileId.hashCode();
+        return (hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1);
+    }
+}
@@ -1,36 +1,120 @@
 package hello.services;
 
+import hello.constants.FileConstants;
 import hello.constants.FileErrorMessages;
+import hello.exceptions.BadRequestException;
 import hello.exceptions.FileNotInStorageException;
 import hello.exceptions.ForbiddenException;
+import hello.exceptions.PreconditionFailedException;
 import hello.models.AppFile;
+import hello.models.FileMetadata;
+import hello.models.FileQuery;
+import hello.models.FileSort;
+import hello.storage.StorageBackend;
+import hello.storage.StorageBackends;
+import hello.util.ByteBufferOutputStream;
+import hello.util.ContentEncoding;
+import hello.util.ContentSniffer;
 import hello.util.EncryptionUtil;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class FileService {
 
     private final String fullPath = "%s/%s";
     private final String formatPath = "%s.%s";
-    private HashMap<String, String> filesStored = new HashMap<>();
+    private final String etagFormat = "\"%s\"";
+    private final String contentKeyFormat = "%064x";
+    private static final String ETAG_DIGEST = "SHA-256";
+    private static final String OWNER_DIGEST = "HmacSHA256";
+    private static final int COMPRESSION_SAMPLE_SIZE = 64 * 1024;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private MetadataLog metadataLog;
+
+    @Autowired
+    private ContentCache contentCache;
+
+    @Autowired
+    private ContentStore contentStore;
+
+    @Autowired
+    private StorageBackends storageBackends;
+
+    @Autowired
+    private RenditionService renditions;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    @Autowired
+    private AdmissionControl admissionControl;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Value("${storage.compression:gzip}")
+    private String compression;
+
+    /* Whether owners share content, which lets one owner find out from the upload time if another has some content */
+    @Value("${storage.deduplicate-across-owners:false}")
+    private boolean deduplicateAcrossOwners;
+
+    private final ConcurrentHashMap<String, StorageBackend> backends = new ConcurrentHashMap<>();
+
     private List<String> whiteListedFormats = Collections.unmodifiableList(Arrays.asList(
                     MediaType.APPLICATION_PDF_VALUE,
                     MediaType.IMAGE_JPEG_VALUE,
@@ -40,95 +124,563 @@ public class FileService {
     );
 
     public List<AppFile> getFiles(String rootPath){
-        List<AppFile> appFiles = filesStored.keySet().stream().map(s -> {
+        return getFiles(rootPath, new FileQuery()).collect(Collectors.toList());
+    }
 
-            AppFile file = new AppFile();
-            Path filePath = Paths.get(rootPath, s);
-            try {
-                file.setSize(Files.size(filePath));
-                file.setPath(String.format(fullPath, rootPath, s));
-                file.setType(FilenameUtils.getExtension(filePath.toString()));
-                file.setName(s);
-            } catch (IOException e) {
-                return file;
+    /* Lists files straight from the index. Only name order can be paged, other orders would scan the index for every page */
+    public Stream<AppFile> getFiles(String rootPath, FileQuery query) {
+        Comparator<AppFile> order = getOrder(query);
+        if (query.getSort() == FileSort.NAME) {
+            NavigableSet<String> fileIds = query.isDescending() ? fileIndex.getFileIds().descendingSet() : fileIndex.getFileIds();
+            if (query.getCursor() != null) {
+                fileIds = fileIds.tailSet(decodeCursor(query.getCursor()), false);
             }
-            return file;
-        }).collect(Collectors.toList());
+            Stream<AppFile> files = fileIds.stream()
+                    .map(fileId -> toAppFile(rootPath, fileId, fileIndex.get(fileId), query))
+                    .filter(Objects::nonNull);
+            return query.getLimit() == null ? files : files.limit(query.getLimit());
+        }
+        if (query.getCursor() != null) {
+            throw new BadRequestException(FileErrorMessages.CURSOR_NOT_SUPPORTED);
+        }
 
-        return appFiles;
+        Stream<AppFile> candidates = fileIndex.getFiles().entrySet().stream()
+                .map(entry -> toAppFile(rootPath, entry.getKey(), entry.getValue(), query))
+                .filter(Objects::nonNull);
+        if (query.getLimit() == null) {
+            return candidates.sorted(order);
+        }
+        int limit = query.getLimit();
+        PriorityQueue<AppFile> page = new PriorityQueue<>(limit + 1, order.reversed());
+        candidates.forEachOrdered(file -> {
+            page.add(file);
+            if (page.size() > limit) {
+                page.poll();
+            }
+        });
+        List<AppFile> sortedPage = new ArrayList<>(page);
+        sortedPage.sort(order);
+        return sortedPage.stream();
+    }
+
+    public Comparator<AppFile> getOrder(FileQuery query) {
+        return query.isDescending() ? query.getSort().getComparator().reversed() : query.getSort().getComparator();
+    }
+
+    /* Opaque position right after the given file in name order, the only one listings can be paged in */
+    public String getCursor(AppFile file) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(file.getName().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String decodeCursor(String cursor) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(FileErrorMessages.INVALID_CURSOR);
+        }
+    }
+
+    private AppFile toAppFile(String rootPath, String fileId, FileMetadata metadata, FileQuery query) {
+        if (metadata == null || (query.getOwner() != null && !query.getOwner().equals(metadata.getOwner()))) {
+            return null;
+        }
+        AppFile file = new AppFile();
+        file.setName(fileId);
+        file.setPath(String.format(fullPath, rootPath, fileId));
+        file.setType(FilenameUtils.getExtension(fileId));
+        file.setSize(metadata.getSize());
+        file.setCreated(metadata.getCreatedAt());
+        return file;
     }
 
     public ResponseEntity<?> uploadFile(MultipartFile file, String rootPath, String clientSecret) throws Exception {
+        return new ResponseEntity<>(storeFile(file, rootPath, clientSecret), null, HttpStatus.CREATED);
+    }
+
+    /* Stores an upload as a new file and returns its id */
+    public String storeFile(MultipartFile file, String rootPath, String clientSecret) throws Exception {
         String fileExtension = file.getOriginalFilename().split("\\.")[1];
-        String savedFile = saveFile(file, rootPath, fileExtension, clientSecret);
-        return new ResponseEntity<>(savedFile, null, HttpStatus.CREATED);
+        return saveFile(file, rootPath, fileExtension, clientSecret);
     }
 
-    public ResponseEntity<?> updateFile(MultipartFile file, String rootPath, String fileToUpdate, String clientSecret) throws Exception {
-        Path filePath = Paths.get(rootPath, fileToUpdate);
-        if (Files.exists(filePath)) {
-            if (!isClientSecret(fileToUpdate, clientSecret)){
-                throw new ForbiddenException(FileErrorMessages.FORBIDDEN);
+    public ResponseEntity<?> updateFile(MultipartFile file, String rootPath, String fileToUpdate, String clientSecret, String ifMatch) throws Exception {
+        // Checked up front to fail fast, and again under the lock since the file may be deleted while encrypting
+        checkOwnership(fileToUpdate, clientSecret);
+        checkEtag(fileToUpdate, ifMatch);
+        addToStorage(file, rootPath, fileToUpdate, clientSecret, true, ifMatch);
+        return ResponseEntity.ok().build();
+    }
+
+    public ResponseEntity<?> deleteFile(String fileId, String rootPath, String clientSecret) throws IOException {
+        Lock lock = fileIndex.lockFor(fileId).writeLock();
+        Future<Void> durable;
+        FileMetadata removed;
+        lock.lock();
+        try {
+            checkOwnership(fileId, clientSecret);
+            removed = fileIndex.get(fileId);
+            durable = removeFile(rootPath, fileId);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(durable);
+        releaseContent(removed);
+        clusterService.fileRemoved(fileId, removed);
+        return ResponseEntity.ok().build();
+    }
+
+    /* Deletes a batch of files under the write locks of all of them, so either all of them are removed or none */
+    public ResponseEntity<?> deleteFiles(Collection<String> fileIds, String rootPath, String clientSecret) throws IOException {
+        Set<String> batch = new LinkedHashSet<>(fileIds);
+        List<Lock> locks = fileIndex.writeLocksFor(batch);
+        List<Future<Void>> durable = new ArrayList<>(batch.size());
+        List<FileMetadata> removed = new ArrayList<>(batch.size());
+        locks.forEach(Lock::lock);
+        try {
+            for (String fileId : batch) {
+                checkOwnership(fileId, clientSecret);
             }
-            removeFile(filePath, fileToUpdate);
-            addToStorage(file, filePath, fileToUpdate, clientSecret);
-        } else {
-            throw new FileNotInStorageException(FileErrorMessages.FILE_NOT_FOUND);
+            for (String fileId : batch) {
+                removed.add(fileIndex.get(fileId));
+                durable.add(removeFile(rootPath, fileId));
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        durable.forEach(this::awaitDurable);
+        Iterator<String> removedIds = batch.iterator();
+        for (FileMetadata metadata : removed) {
+            releaseContent(metadata);
+            clusterService.fileRemoved(removedIds.next(), metadata);
         }
         return ResponseEntity.ok().build();
     }
 
-    public ResponseEntity<?> deleteFile(String fileId, String rootPath, String clientSecret) {
+    public FileMetadata getMetadata(String fileId) {
+        FileMetadata metadata = fileIndex.get(fileId);
+        if (metadata == null) {
+            throw new FileNotInStorageException(FileErrorMessages.FILE_NOT_FOUND);
+        }
+        return metadata;
+    }
 
-        Path filePath = Paths.get(rootPath, fileId);
-        if (Files.exists(filePath)) {
-            if (!isClientSecret(fileId, clientSecret)){
-                throw new ForbiddenException(FileErrorMessages.FORBIDDEN);
+    /* Opens a stored file for reading. Once open, the channel keeps reading the same content, or fails, even if the file is replaced */
+    public SeekableByteChannel openFile(String fileId, String rootPath) throws IOException {
+        Lock lock = fileIndex.lockFor(fileId).readLock();
+        lock.lock();
+        try {
+            FileMetadata metadata = getMetadata(fileId);
+            if (metadata.getContentKey() != null) {
+                return contentStore.open(metadata.getContentKey());
             }
-            removeFile(filePath, fileId);
-        } else {
-            throw new FileNotInStorageException(FileErrorMessages.FILE_NOT_FOUND);
+            return backendFor(rootPath).open(fileId);
+        } finally {
+            lock.unlock();
         }
-        return ResponseEntity.ok().build();
     }
 
+    /* Decrypted content of a file from the cache, null when it is too big to be cached */
+    public ByteBuffer getContent(String fileId, String rootPath) throws IOException, GeneralSecurityException {
+        FileMetadata metadata = getMetadata(fileId);
+        if (!contentCache.accepts(metadata.getSize())) {
+            return null;
+        }
+        ByteBuffer content = contentCache.get(fileId, metadata);
+        if (content != null) {
+            return content;
+        }
+        try (SeekableByteChannel channel = openFile(fileId, rootPath)) {
+            long length = EncryptionUtil.plaintextSize(channel.size());
+            if (!contentCache.accepts(length)) {
+                return null;
+            }
+            // Cached under the metadata seen before opening, so content of a newer version can only cause misses
+            content = ByteBuffer.allocateDirect((int) length);
+            long started = System.nanoTime();
+            EncryptionUtil.decrypt(channel, 0, length - 1, new ByteBufferOutputStream(content));
+            metrics.stage(Metrics.Stage.DECRYPT).recordSince(started);
+            content.flip();
+            contentCache.put(fileId, metadata, content);
+            return content.asReadOnlyBuffer();
+        }
+    }
 
     public boolean isValid(MultipartFile file) {
         return isValidFormat(file);
     }
 
+    /* Only the declared type, to reject uploads early. The content itself is checked while it is stored */
     private boolean isValidFormat(MultipartFile file) {
         return file.getContentType() == null ? false : whiteListedFormats.contains(file.getContentType());
     }
 
-    private void removeFile(Path filePath, String fileId) {
+    /* Content-addressed files only lose their index entry here, their content is released once that is durable */
+    private Future<Void> removeFile(String rootPath, String fileId) {
         try {
-            Files.delete(filePath);
-            filesStored.remove(fileId);
+            if (fileIndex.get(fileId).getContentKey() == null) {
+                backendFor(rootPath).delete(fileId);
+            }
+            fileIndex.remove(fileId);
+            contentCache.invalidate(fileId);
+            renditions.fileRemoved(fileId, rootPath);
+            return metadataLog.logDelete(fileId);
         } catch (IOException e) {
             throw new InternalError();
         }
     }
 
     private String saveFile(MultipartFile file, String rootPath, String fileExtension, String clientSecret) throws Exception {
-        String randomUUID = String.format(formatPath, UUID.randomUUID().toString(), fileExtension);
-        Path filePath = Paths.get(rootPath, randomUUID);
-        addToStorage(file, filePath, randomUUID, clientSecret);
+        String randomUUID = clusterService.newId(() -> String.format(formatPath, UUID.randomUUID().toString(), fileExtension));
+        addToStorage(file, rootPath, randomUUID, clientSecret, false, null);
         return randomUUID;
     }
 
 
-    private void addToStorage(MultipartFile file, Path filePath, String fileId, String clientSecret) throws Exception {
+    /* Encrypts the upload into a temp file, then stores it under the file's write lock, so the lock doesn't cover encrypting */
+    private void addToStorage(MultipartFile file, String rootPath, String fileId, String clientSecret, boolean replacing, String ifMatch) throws Exception {
+        Path tempPath = Files.createTempFile(Paths.get(rootPath), fileId, FileConstants.TEMP_SUFFIX);
+        FileMetadata metadata = new FileMetadata();
         try {
-            FileUtils.writeByteArrayToFile(new File(filePath.toString()), EncryptionUtil.encrypt(file.getBytes()));
-            filesStored.put(fileId, clientSecret);
+            if (contentStore.isEnabled()) {
+                String contentKey = readUpload(file, metadata, null, clientSecret);
+                if (!contentStore.retain(contentKey)) {
+                    try (InputStream input = file.getInputStream()) {
+                        encrypt(input, tempPath, ContentEncoding.of(metadata.getEncoding()));
+                    }
+                    addContent(contentKey, tempPath);
+                }
+                metadata.setContentKey(contentKey);
+            } else {
+                readUpload(file, metadata, tempPath, clientSecret);
+            }
+            commit(rootPath, fileId, tempPath, metadata, clientSecret, replacing, ifMatch);
         } catch (IOException e) {
             throw new InternalError();
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    /* Stores content that was encrypted elsewhere as a new file, the caller deleting the encrypted file if it is left */
+    public String storeEncryptedFile(Path encryptedPath, byte[] hash, FileMetadata metadata, String fileExtension,
+                                     String rootPath, String clientSecret) throws IOException {
+        if (!isAllowedType(metadata.getContentType())) {
+            throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+        }
+        String fileId = clusterService.newId(() -> String.format(formatPath, UUID.randomUUID().toString(), fileExtension));
+        String contentKey = setDigest(metadata, hash, clientSecret);
+        if (contentStore.isEnabled()) {
+            if (!contentStore.retain(contentKey)) {
+                addContent(contentKey, encryptedPath);
+            }
+            metadata.setContentKey(contentKey);
+        }
+        commit(rootPath, fileId, encryptedPath, metadata, clientSecret, false, null);
+        return fileId;
+    }
+
+    private void addContent(String contentKey, Path encryptedPath) throws IOException {
+        long started = System.nanoTime();
+        contentStore.add(contentKey, encryptedPath);
+        metrics.stage(Metrics.Stage.STORE).recordSince(started);
+    }
+
+    /* Digest whose hash of the content gives its ETag and content key */
+    public MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance(ETAG_DIGEST);
+        } catch (GeneralSecurityException e) {
+            throw new InternalError();
+        }
+    }
+
+    public boolean isAllowedType(String contentType) {
+        return contentType != null && whiteListedFormats.contains(contentType);
+    }
+
+    /* Puts an encrypted file in place and indexes it under the file's write lock, checking the owner, ETag and quota there */
+    private void commit(String rootPath, String fileId, Path encryptedPath, FileMetadata metadata, String clientSecret,
+                        boolean replacing, String ifMatch) throws IOException {
+        String retainedKey = metadata.getContentKey();
+        FileMetadata replaced = null;
+        long started = System.nanoTime();
+        try {
+            metadata.setOwner(clientSecret);
+            metadata.setCreatedAt(System.currentTimeMillis());
+            metadata.setModifiedAt(metadata.getCreatedAt());
+            Lock lock = fileIndex.lockFor(fileId).writeLock();
+            Future<Void> durable;
+            lock.lock();
+            try {
+                if (replacing) {
+                    checkOwnership(fileId, clientSecret);
+                    checkEtag(fileId, ifMatch);
+                    replaced = fileIndex.get(fileId);
+                    metadata.setCreatedAt(replaced.getCreatedAt());
+                }
+                long reserved = admissionControl.reserve(clientSecret, metadata.getSize(), replaced);
+                try {
+                    putInPlace(rootPath, fileId, encryptedPath, metadata, replaced);
+                } finally {
+                    admissionControl.settle(clientSecret, reserved);
+                }
+                retainedKey = null;
+                durable = metadataLog.logPut(fileId, metadata);
+            } finally {
+                lock.unlock();
+            }
+            awaitDurable(durable);
+            releaseContent(replaced);
+            renditions.fileStored(fileId, rootPath, metadata);
+            clusterService.fileStored(fileId);
+            metrics.stage(Metrics.Stage.COMMIT).recordSince(started);
+        } finally {
+            if (retainedKey != null) {
+                contentStore.release(retainedKey);
+            }
+        }
+    }
+
+    /* Stores the file and indexes it in place of the replaced one, under the file's write lock */
+    private void putInPlace(String rootPath, String fileId, Path encryptedPath, FileMetadata metadata, FileMetadata replaced) throws IOException {
+        if (metadata.getContentKey() == null) {
+            backendFor(rootPath).write(fileId, encryptedPath);
+        } else if (replaced != null && replaced.getContentKey() == null) {
+            backendFor(rootPath).delete(fileId);
+        }
+        fileIndex.put(fileId, metadata);
+        contentCache.invalidate(fileId);
+        renditions.invalidate(fileId);
+    }
+
+    /* Stores a copy of a file another instance sent under the same id, unless a newer version is here already */
+    public void storeReplica(String fileId, InputStream stored, FileMetadata metadata, String rootPath) throws IOException {
+        Path tempPath = Files.createTempFile(Paths.get(rootPath), fileId, FileConstants.TEMP_SUFFIX);
+        String retainedKey = null;
+        try {
+            if (contentStore.isEnabled()) {
+                String etag = metadata.getEtag();
+                String contentKey = setDigest(metadata, Base64.getUrlDecoder().decode(etag.substring(1, etag.length() - 1)), metadata.getOwner());
+                if (!contentStore.retain(contentKey)) {
+                    encrypt(stored, tempPath, null);
+                    addContent(contentKey, tempPath);
+                }
+                retainedKey = contentKey;
+                metadata.setContentKey(contentKey);
+            } else {
+                encrypt(stored, tempPath, null);
+            }
+
+            Lock lock = fileIndex.lockFor(fileId).writeLock();
+            FileMetadata replaced;
+            Future<Void> durable;
+            lock.lock();
+            try {
+                replaced = fileIndex.get(fileId);
+                if (replaced != null && replaced.getModifiedAt() > metadata.getModifiedAt()) {
+                    return;
+                }
+                putInPlace(rootPath, fileId, tempPath, metadata, replaced);
+                retainedKey = null;
+                durable = metadataLog.logPut(fileId, metadata);
+            } finally {
+                lock.unlock();
+            }
+            awaitDurable(durable);
+            releaseContent(replaced);
+            renditions.fileStored(fileId, rootPath, metadata);
+        } catch (GeneralSecurityException e) {
+            throw new InternalError();
+        } finally {
+            if (retainedKey != null) {
+                contentStore.release(retainedKey);
+            }
+            Files.deleteIfExists(tempPath);
         }
+    }
+
+    /* Drops the copy of a file deleted on another instance, or no longer owned here, unless it changed after the given time */
+    public void removeReplica(String fileId, String rootPath, long modifiedAt) throws IOException {
+        Lock lock = fileIndex.lockFor(fileId).writeLock();
+        FileMetadata removed;
+        Future<Void> durable;
+        lock.lock();
+        try {
+            removed = fileIndex.get(fileId);
+            if (removed == null || removed.getModifiedAt() > modifiedAt) {
+                return;
+            }
+            durable = removeFile(rootPath, fileId);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(durable);
+        releaseContent(removed);
+    }
+
+    /*
+     * Streams the upload once, taking its type, length and ETag into the metadata and encrypting it into the given file
+     * unless that is null. Returns the content key
+     */
+    private String readUpload(MultipartFile file, FileMetadata metadata, Path encryptedPath, String owner) throws IOException, GeneralSecurityException {
+        MessageDigest digest = newContentDigest();
+        long started = System.nanoTime();
+        try (PushbackInputStream upload = new PushbackInputStream(file.getInputStream(), COMPRESSION_SAMPLE_SIZE)) {
+            String contentType = ContentSniffer.sniff(upload);
+            if (!isAllowedType(contentType)) {
+                throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+            }
+            ContentEncoding encoding = chooseEncoding(upload);
+            CountingInputStream input = new CountingInputStream(new DigestInputStream(upload, digest));
+            if (encryptedPath == null) {
+                IOUtils.copy(input, new NullOutputStream());
+            } else {
+                encrypt(input, encryptedPath, encoding);
+            }
+            metadata.setContentType(contentType);
+            metadata.setSize(input.getByteCount());
+            metadata.setEncoding(encoding == null ? null : encoding.getName());
+        }
+        if (encryptedPath == null) {
+            // Encrypting along the way is timed as encryption
+            metrics.stage(Metrics.Stage.VALIDATE).recordSince(started);
+        }
+        return setDigest(metadata, digest.digest(), owner);
+    }
 
+    /*
+     * Takes the ETag into the metadata and returns the content key, an HMAC of the hash keyed by the owner unless owners
+     * share content
+     */
+    private String setDigest(FileMetadata metadata, byte[] hash, String owner) {
+        metadata.setEtag(String.format(etagFormat, Base64.getUrlEncoder().withoutPadding().encodeToString(hash)));
+        byte[] key = deduplicateAcrossOwners ? hash : ownerDigest(owner, hash);
+        // Content is stored once per encoding, so changing the compression setting never mixes them up
+        String contentKey = String.format(contentKeyFormat, new BigInteger(1, key));
+        return metadata.getEncoding() == null ? contentKey : contentKey + "." + metadata.getEncoding();
     }
 
-    private boolean isClientSecret(String fileId, String clientSecret) {
-        return filesStored.containsKey(fileId) && filesStored.get(fileId).equals(clientSecret);
+    private static byte[] ownerDigest(String owner, byte[] hash) {
+        try {
+            Mac mac = Mac.getInstance(OWNER_DIGEST);
+            mac.init(new SecretKeySpec(("owner:" + owner).getBytes(StandardCharsets.UTF_8), OWNER_DIGEST));
+            return mac.doFinal(hash);
+        } catch (GeneralSecurityException e) {
+            throw new InternalError();
+        }
+    }
+
+    /* Compresses with the configured codec only when a sample from the start of the upload compresses well */
+    private ContentEncoding chooseEncoding(PushbackInputStream upload) throws IOException {
+        ContentEncoding encoding = ContentEncoding.of(compression);
+        if (encoding == null) {
+            return null;
+        }
+        byte[] sample = new byte[COMPRESSION_SAMPLE_SIZE];
+        int length = 0;
+        int read;
+        while (length < sample.length && (read = upload.read(sample, length, sample.length - length)) != -1) {
+            length += read;
+        }
+        upload.unread(sample, 0, length);
+        return ContentEncoding.isCompressible(sample, length) ? encoding : null;
+    }
+
+    private void encrypt(InputStream input, Path encryptedPath, ContentEncoding encoding) throws IOException, GeneralSecurityException {
+        long started = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(encryptedPath, StandardOpenOption.WRITE);
+             InputStream stored = encoding == null ? input : encoding.compress(input)) {
+            EncryptionUtil.encrypt(stored, Channels.newOutputStream(channel));
+            channel.force(true);
+        }
+        metrics.stage(Metrics.Stage.ENCRYPT).recordSince(started);
+    }
+
+    /* Drops the reference of a removed or replaced content-addressed file */
+    private void releaseContent(FileMetadata metadata) throws IOException {
+        if (metadata != null && metadata.getContentKey() != null) {
+            contentStore.release(metadata.getContentKey());
+        }
+    }
+
+    /* Files that aren't stored by content are kept in the storage backend under the root directory */
+    private StorageBackend backendFor(String rootPath) {
+        return backends.computeIfAbsent(rootPath, path -> {
+            try {
+                return storageBackends.open(Paths.get(path));
+            } catch (IOException e) {
+                throw new InternalError();
+            }
+        });
+    }
+
+    /* Moves files stored before the sharded layout into it, each under its write lock or its content's lock */
+    public void migrateLayout(String rootPath) throws IOException {
+        backendFor(rootPath).migrate(fileId -> fileIndex.lockFor(fileId).writeLock());
+        contentStore.migrate();
+    }
+
+    /* Waits outside of the file's lock for the metadata log to flush the change along with other pending ones */
+    private void awaitDurable(Future<Void> durable) {
+        try {
+            durable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalError();
+        } catch (ExecutionException e) {
+            throw new InternalError();
+        }
+    }
+
+    /* Removes temp files left by interrupted writes, files whose metadata never made it to the log and renditions of files that are gone */
+    public void removeOrphans(String rootPath, long startedAt) throws IOException {
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(Paths.get(rootPath), "*" + FileConstants.TEMP_SUFFIX)) {
+            for (Path tempPath : temps) {
+                if (Files.getLastModifiedTime(tempPath).toMillis() < startedAt) {
+                    Files.deleteIfExists(tempPath);
+                }
+            }
+        }
+        backendFor(rootPath).list(fileId -> {
+            Lock lock = fileIndex.lockFor(fileId).writeLock();
+            lock.lock();
+            try {
+                FileMetadata metadata = fileIndex.get(fileId);
+                if (metadata == null || metadata.getContentKey() != null) {
+                    backendFor(rootPath).delete(fileId);
+                }
+            } finally {
+                lock.unlock();
+            }
+        });
+        contentStore.removeOrphans(startedAt);
+        renditions.removeOrphans(rootPath);
+    }
+
+    /* Strong comparison of the current ETag against an If-Match header, a missing header always matches */
+    private void checkEtag(String fileId, String ifMatch) {
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return;
+        }
+        FileMetadata metadata = fileIndex.get(fileId);
+        ContentEncoding encoding = ContentEncoding.of(metadata.getEncoding());
+        for (String candidate : ifMatch.split(",")) {
+            // The ETag sent along with the encoded representation identifies the same content
+            String etag = candidate.trim();
+            if (etag.equals(metadata.getEtag()) || (encoding != null && etag.equals(encoding.tag(metadata.getEtag())))) {
+                return;
+            }
+        }
+        throw new PreconditionFailedException(FileErrorMessages.PRECONDITION_FAILED);
+    }
+
+    private void checkOwnership(String fileId, String clientSecret) {
+        FileMetadata metadata = fileIndex.get(fileId);
+        if (metadata == null) {
+            throw new FileNotInStorageException(FileErrorMessages.FILE_NOT_FOUND);
+        }
+        if (!metadata.getOwner().equals(clientSecret)) {
+            throw new ForbiddenException(FileErrorMessages.FORBIDDEN);
+        }
     }
 }
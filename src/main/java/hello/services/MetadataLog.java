@@ -0,0 +1,571 @@
+package hello.services;
+
+import hello.constants.FileConstants;
+import hello.models.FileMetadata;
+import hello.storage.StorageBackends;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/*
+ * Durable copy of the file index, an append-only log of checksummed records plus periodic snapshots:
+ *
+ *   log-<generation>: magic | version | records of  length (4) | crc32 of payload (4) | payload
+ *   snapshot:         magic | version | generation | file count | entries... | end marker | crc32 of everything before
+ *
+ * A snapshot of generation G holds the index as of the start of log G, and records carry the whole state of a file, so
+ * recovery loads the snapshot and replays logs G and later. Records are queued under the file's lock after the change
+ * is applied, so the log order matches the index order for every file
+ */
+@Component
+public class MetadataLog {
+
+    private static final Log log = LogFactory.getLog(MetadataLog.class);
+    private static final int SNAPSHOT_MAGIC = 0x57534d53;
+    private static final int LOG_MAGIC = 0x57534d4c;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String LOG_PREFIX = "log-";
+    private static final String LOCK_FILE = "lock";
+    private static final long SNAPSHOT_INTERVAL = 100_000;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;
+    private static final int RECENT_STRINGS = 1024;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final FileIndex fileIndex;
+    private final Path directory;
+    @Value("${storage.backend:" + StorageBackends.LOCAL + "}")
+    private String backend;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final Map<String, String> canonicalStrings = new HashMap<>();
+    private final String[] recentStrings = new String[RECENT_STRINGS];
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metadata-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private FileChannel logChannel;
+    private OutputStream logOutput;
+    private long generation;
+    private long recordsSinceSnapshot;
+    private Thread writer;
+    private volatile boolean running;
+
+    @Autowired
+    public MetadataLog(FileIndex fileIndex) {
+        this(fileIndex, Paths.get(FileConstants.ROOT_PATH, FileConstants.METADATA_DIR));
+    }
+
+    public MetadataLog(FileIndex fileIndex, Path directory) {
+        this.fileIndex = fileIndex;
+        this.directory = directory;
+    }
+
+    /* Rebuilds the index from the latest snapshot and the logs written after it, then starts a new log */
+    @PostConstruct
+    public void open() throws IOException {
+        if (!isPersistent()) {
+            running = true;
+            return;
+        }
+        Files.createDirectories(directory);
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            throw new IllegalStateException("Metadata directory " + directory + " is used by another process");
+        }
+
+        long start = System.nanoTime();
+        fileIndex.startRecovery();
+        long snapshotGeneration = readSnapshot();
+        long replayed = 0;
+        generation = snapshotGeneration;
+        for (Map.Entry<Long, Path> logFile : findLogs().entrySet()) {
+            if (logFile.getKey() >= snapshotGeneration) {
+                replayed += replay(logFile.getValue());
+            }
+            generation = Math.max(generation, logFile.getKey());
+        }
+        fileIndex.finishRecovery();
+        log.info(String.format("Recovered %d files (%d log records) in %d ms", fileIndex.getFiles().size(), replayed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+
+        canonicalStrings.clear();
+        Arrays.fill(recentStrings, null);
+
+        // Never append after a possibly torn tail: every start gets a fresh log
+        startLog(generation + 1);
+        recordsSinceSnapshot = replayed;
+        running = true;
+        writer = new Thread(this::writeRecords, "metadata-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        running = false;
+        if (!isPersistent()) {
+            return;
+        }
+        writer.join();
+        PendingRecord pending;
+        while ((pending = queue.poll()) != null) {
+            pending.done.completeExceptionally(new IllegalStateException("Metadata log is closed"));
+        }
+        snapshotExecutor.shutdown();
+        snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        logOutput.close();
+        // A clean shutdown leaves a single snapshot so the next start has no log to replay
+        startLog(generation + 1);
+        snapshot(generation);
+        logOutput.close();
+        lock.release();
+        lockChannel.close();
+    }
+
+    /* Queues the new state of a file, the future completes once it is on disk */
+    public CompletableFuture<Void> logPut(String fileId, FileMetadata metadata) {
+        return append(record -> {
+            record.writeByte(PUT);
+            record.writeUTF(fileId);
+            writeMetadata(record, metadata);
+        });
+    }
+
+    public CompletableFuture<Void> logDelete(String fileId) {
+        return append(record -> {
+            record.writeByte(DELETE);
+            record.writeUTF(fileId);
+        });
+    }
+
+    /* Writes the whole index to a new snapshot and drops the logs it makes redundant */
+    private void snapshot(long snapshotGeneration) throws IOException {
+        Path tempPath = directory.resolve(SNAPSHOT_FILE + FileConstants.TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Checksummed a buffer at a time rather than a field at a time
+            CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(checked, IO_BUFFER_SIZE));
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(snapshotGeneration);
+            output.writeInt(fileIndex.getFiles().size());
+            // Written in id order so recovery gets the ids already sorted
+            for (String fileId : fileIndex.getFileIds()) {
+                FileMetadata metadata = fileIndex.get(fileId);
+                if (metadata != null) {
+                    output.writeBoolean(true);
+                    output.writeUTF(fileId);
+                    writeMetadata(output, metadata);
+                }
+            }
+            output.writeBoolean(false);
+            output.flush();
+            output.writeLong(checked.getChecksum().getValue());
+            output.flush();
+            channel.force(true);
+        }
+        Files.move(tempPath, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (Map.Entry<Long, Path> logFile : findLogs().entrySet()) {
+            if (logFile.getKey() < snapshotGeneration) {
+                Files.deleteIfExists(logFile.getValue());
+            }
+        }
+    }
+
+    private boolean isPersistent() {
+        return !StorageBackends.MEMORY.equals(backend);
+    }
+
+    private CompletableFuture<Void> append(RecordWriter recordWriter) {
+        if (!isPersistent() && running) {
+            return CompletableFuture.completedFuture(null);
+        }
+        PendingRecord pending = new PendingRecord();
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+            recordWriter.write(new DataOutputStream(payload));
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+            ByteArrayOutputStream record = new ByteArrayOutputStream(payload.size() + 8);
+            DataOutputStream output = new DataOutputStream(record);
+            output.writeInt(payload.size());
+            output.writeInt((int) crc.getValue());
+            payload.writeTo(output);
+            pending.bytes = record.toByteArray();
+        } catch (IOException e) {
+            pending.done.completeExceptionally(e);
+            return pending.done;
+        }
+        if (!running) {
+            pending.done.completeExceptionally(new IllegalStateException("Metadata log is closed"));
+            return pending.done;
+        }
+        queue.add(pending);
+        return pending.done;
+    }
+
+    private void writeRecords() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                for (PendingRecord pending : batch) {
+                    logOutput.write(pending.bytes);
+                }
+                logOutput.flush();
+                logChannel.force(false);
+                for (PendingRecord pending : batch) {
+                    pending.done.complete(null);
+                }
+                recordsSinceSnapshot += batch.size();
+                if (recordsSinceSnapshot >= SNAPSHOT_INTERVAL && snapshotting.compareAndSet(false, true)) {
+                    rollAndSnapshot();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                log.error("Could not write to the metadata log", e);
+                for (PendingRecord pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /* Called by the writer thread: every record written so far is already applied to the index */
+    private void rollAndSnapshot() throws IOException {
+        logOutput.close();
+        startLog(generation + 1);
+        recordsSinceSnapshot = 0;
+        long snapshotGeneration = generation;
+        snapshotExecutor.execute(() -> {
+            try {
+                snapshot(snapshotGeneration);
+            } catch (IOException e) {
+                log.error("Could not write a metadata snapshot", e);
+            } finally {
+                snapshotting.set(false);
+            }
+        });
+    }
+
+    private void startLog(long newGeneration) throws IOException {
+        generation = newGeneration;
+        logChannel = FileChannel.open(directory.resolve(LOG_PREFIX + newGeneration), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logOutput = new BufferedOutputStream(Channels.newOutputStream(logChannel), IO_BUFFER_SIZE);
+        DataOutputStream header = new DataOutputStream(logOutput);
+        header.writeInt(LOG_MAGIC);
+        header.writeInt(FORMAT_VERSION);
+    }
+
+    private long readSnapshot() throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            RecordReader snapshot = new RecordReader(channel);
+            if (snapshot.readInt() != SNAPSHOT_MAGIC || snapshot.readInt() != FORMAT_VERSION) {
+                throw new IllegalStateException("Unsupported metadata snapshot " + snapshotPath);
+            }
+            long snapshotGeneration = snapshot.readLong();
+            fileIndex.reserve(snapshot.readInt());
+            while (snapshot.readBoolean()) {
+                String fileId = snapshot.readUTF();
+                fileIndex.put(fileId, readMetadata(snapshot));
+            }
+            long checksum = snapshot.checksum();
+            if (snapshot.readLong() != checksum) {
+                throw new IllegalStateException("Corrupted metadata snapshot " + snapshotPath);
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /* Applies every intact record of a log, stopping at the first torn or corrupted one */
+    private long replay(Path logPath) throws IOException {
+        long records = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath), IO_BUFFER_SIZE))) {
+            CRC32 crc = new CRC32();
+            try {
+                if (input.readInt() != LOG_MAGIC || input.readInt() != FORMAT_VERSION) {
+                    throw new IllegalStateException("Unsupported metadata log " + logPath);
+                }
+            } catch (EOFException e) {
+                // Started but never written to
+                return records;
+            }
+            while (true) {
+                int length;
+                try {
+                    length = input.readInt();
+                } catch (EOFException e) {
+                    return records;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    log.warn("Ignoring the corrupted tail of " + logPath);
+                    return records;
+                }
+                byte[] payload = new byte[length];
+                int checksum;
+                try {
+                    checksum = input.readInt();
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    log.warn("Ignoring the torn tail of " + logPath);
+                    return records;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Ignoring the corrupted tail of " + logPath);
+                    return records;
+                }
+                apply(new RecordReader(ByteBuffer.wrap(payload)));
+                records++;
+            }
+        }
+    }
+
+    private void apply(RecordReader record) throws IOException {
+        byte operation = record.readByte();
+        String fileId = record.readUTF();
+        if (operation == PUT) {
+            fileIndex.put(fileId, readMetadata(record));
+        } else if (operation == DELETE) {
+            fileIndex.remove(fileId);
+        }
+    }
+
+    private TreeMap<Long, Path> findLogs() throws IOException {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*")) {
+            for (Path file : files) {
+                logs.put(Long.parseLong(file.getFileName().toString().substring(LOG_PREFIX.length())), file);
+            }
+        }
+        return logs;
+    }
+
+    /* Files with the same content share its key, recovery keeps a single copy of each */
+    private String canonical(String value) {
+        String existing = canonicalStrings.putIfAbsent(value, value);
+        return existing == null ? value : existing;
+    }
+
+    private static void writeMetadata(DataOutput output, FileMetadata metadata) throws IOException {
+        output.writeUTF(metadata.getOwner());
+        output.writeLong(metadata.getSize());
+        output.writeUTF(metadata.getContentType() == null ? "" : metadata.getContentType());
+        output.writeLong(metadata.getCreatedAt());
+        output.writeLong(metadata.getModifiedAt());
+        output.writeUTF(metadata.getEtag() == null ? "" : metadata.getEtag());
+        output.writeUTF(metadata.getContentKey() == null ? "" : metadata.getContentKey());
+        output.writeUTF(metadata.getEncoding() == null ? "" : metadata.getEncoding());
+    }
+
+    private FileMetadata readMetadata(RecordReader input) throws IOException {
+        FileMetadata metadata = new FileMetadata();
+        metadata.setOwner(input.readSharedUTF());
+        metadata.setSize(input.readLong());
+        String contentType = input.readSharedUTF();
+        metadata.setContentType(contentType.isEmpty() ? null : contentType);
+        metadata.setCreatedAt(input.readLong());
+        metadata.setModifiedAt(input.readLong());
+        String etag = input.readUTF();
+        metadata.setEtag(etag.isEmpty() ? null : etag);
+        String contentKey = input.readUTF();
+        metadata.setContentKey(contentKey.isEmpty() ? null : canonical(contentKey));
+        String encoding = input.readSharedUTF();
+        metadata.setEncoding(encoding.isEmpty() ? null : encoding);
+        return metadata;
+    }
+
+    private static class PendingRecord {
+        private byte[] bytes;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    /* Reads what DataOutput wrote from a buffer, refilled from the channel, checksumming a buffer at a time */
+    private class RecordReader {
+
+        private final ByteBuffer buffer;
+        private final FileChannel channel;
+        private final CRC32 crc = new CRC32();
+        private char[] chars = new char[128];
+
+        private RecordReader(FileChannel channel) {
+            this.buffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+            this.buffer.flip();
+            this.channel = channel;
+        }
+
+        private RecordReader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.channel = null;
+        }
+
+        private byte readByte() throws IOException {
+            require(1);
+            return buffer.get();
+        }
+
+        private boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        private int readInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        private long readLong() throws IOException {
+            require(8);
+            return buffer.getLong();
+        }
+
+        private String readUTF() throws IOException {
+            // The length stays in the buffer along with the string, for the general decoding to read it again
+            require(2);
+            int length = buffer.getShort(buffer.position()) & 0xffff;
+            require(2 + length);
+            buffer.position(buffer.position() + 2);
+            if (length == 0) {
+                return "";
+            }
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            byte[] array = buffer.array();
+            int start = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            for (int i = 0; i < length; i++) {
+                byte b = array[start + i];
+                if (b < 0) {
+                    // Ids and owners are ASCII, anything else takes the general decoding
+                    return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(array, start - 2, length + 2)));
+                }
+                chars[i] = (char) b;
+            }
+            return new String(chars, 0, length);
+        }
+
+        /* Owners, content types and encodings repeat a lot, so recently read ones are reused by their bytes */
+        private String readSharedUTF() throws IOException {
+            require(2);
+            int length = buffer.getShort(buffer.position()) & 0xffff;
+            require(2 + length);
+            byte[] array = buffer.array();
+            int start = buffer.arrayOffset() + buffer.position() + 2;
+            int hash = length;
+            for (int i = 0; i < length; i++) {
+                hash = 31 * hash + array[start + i];
+            }
+            int slot = (hash ^ (hash >>> 16)) & (RECENT_STRINGS - 1);
+            String recent = recentStrings[slot];
+            if (recent != null && matches(recent, array, start, length)) {
+                buffer.position(buffer.position() + 2 + length);
+                return recent;
+            }
+            String value = readUTF();
+            recentStrings[slot] = value;
+            return value;
+        }
+
+        private boolean matches(String value, byte[] array, int start, int length) {
+            if (value.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (value.charAt(i) != array[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* Checksum of every byte read so far */
+        private long checksum() {
+            crc.update(buffer.array(), buffer.arrayOffset(), buffer.position());
+            buffer.compact();
+            buffer.flip();
+            return crc.getValue();
+        }
+
+        private void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            if (channel == null) {
+                throw new EOFException();
+            }
+            crc.update(buffer.array(), buffer.arrayOffset(), buffer.position());
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+            buffer.flip();
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutput record) throws IOException;
+    }
+}
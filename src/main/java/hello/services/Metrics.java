@@ -0,0 +1,179 @@
+package hello.services;
+
+import hello.util.EncryptionUtil;
+import hello.util.Histogram;
+import hello.util.NonBlockingWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Request and stage latencies, bytes moved and the counters other components keep, in the Prometheus text format */
+@Component
+public class Metrics {
+
+    /* Stages of an upload, from parsing to indexing, and of a download, from decrypting to copying into the response */
+    public enum Stage {
+        PARSE, VALIDATE, ENCRYPT, STORE, COMMIT, DECRYPT, COPY
+    }
+
+    private static final String UNMATCHED = "unmatched";
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private ContentCache contentCache;
+
+    @Autowired
+    private ContentStore contentStore;
+
+    private final Histogram[] stages = new Histogram[Stage.values().length];
+    private final ConcurrentHashMap<String, Histogram[]> endpoints = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final List<Sample> samples = new CopyOnWriteArrayList<>();
+
+    public Metrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+    }
+
+    @PostConstruct
+    public void registerSamples() {
+        gauge("files_indexed", "Files in the index", () -> fileIndex.getFiles().size());
+        counter("content_cache_hits_total", "Reads served from the content cache", contentCache::getHits);
+        counter("content_cache_misses_total", "Reads the content cache had to fill", contentCache::getMisses);
+        counter("content_cache_evictions_total", "Entries evicted from the content cache", contentCache::getEvictions);
+        gauge("content_cache_bytes", "Bytes held by the content cache", contentCache::getSize);
+        gauge("content_cache_max_bytes", "Capacity of the content cache", contentCache::getMaxSize);
+        gauge("pack_objects", "Objects stored in pack segments", () -> contentStore.getPacks().getObjects());
+        gauge("pack_segment_bytes", "Bytes of the pack segments on disk", () -> contentStore.getPacks().getSegmentBytes());
+        gauge("pack_live_bytes", "Bytes of the pack segments still referenced", () -> contentStore.getPacks().getLiveBytes());
+        counter("crypto_bytes_total{operation=\"encrypt\"}", "Plaintext bytes run through the cipher", EncryptionUtil::getBytesEncrypted);
+        counter("crypto_bytes_total{operation=\"decrypt\"}", "Plaintext bytes run through the cipher", EncryptionUtil::getBytesDecrypted);
+        counter("crypto_seconds_total{operation=\"encrypt\"}", "Time spent in the cipher, summed over threads",
+                () -> EncryptionUtil.getNanosEncrypting() / 1_000_000_000.0);
+        counter("crypto_seconds_total{operation=\"decrypt\"}", "Time spent in the cipher, summed over threads",
+                () -> EncryptionUtil.getNanosDecrypting() / 1_000_000_000.0);
+        counter("crypto_ciphers_allocated_total", "Cipher instances created", EncryptionUtil::getCiphersAllocated);
+        counter("crypto_ciphers_reused_total", "Cipher instances reused", EncryptionUtil::getCiphersReused);
+        gauge("http_requests_in_flight", "Requests received and not completed yet", inFlight::get);
+        counter("http_request_bytes_total", "Bytes of request bodies", bytesIn::sum);
+        counter("http_response_bytes_total", "Bytes of file and archive bodies written", bytesOut::sum);
+        counter("http_response_failures_total", "File and archive bodies cut short by an error producing them", NonBlockingWriter::getFailures);
+    }
+
+    /* Registers a value kept elsewhere, read on every scrape. Labelled series of one metric are registered one after the other */
+    public void gauge(String name, String help, Sample.Value value) {
+        samples.add(new Sample(name, "gauge", help, value));
+    }
+
+    public void counter(String name, String help, Sample.Value value) {
+        samples.add(new Sample(name, "counter", help, value));
+    }
+
+    public Histogram stage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /* Histogram of a handler mapping, by its path pattern and method. Null patterns are requests no handler matched */
+    public Histogram endpoint(String pattern, RequestMethod method) {
+        Histogram[] byMethod = endpoints.get(pattern == null ? UNMATCHED : pattern);
+        if (byMethod == null) {
+            byMethod = endpoints.computeIfAbsent(pattern == null ? UNMATCHED : pattern, key -> {
+                Histogram[] histograms = new Histogram[RequestMethod.values().length];
+                for (int i = 0; i < histograms.length; i++) {
+                    histograms[i] = new Histogram();
+                }
+                return histograms;
+            });
+        }
+        return byMethod[method.ordinal()];
+    }
+
+    public void requestStarted(long contentLength) {
+        inFlight.incrementAndGet();
+        if (contentLength > 0) {
+            bytesIn.add(contentLength);
+        }
+    }
+
+    public void requestFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    public void bytesWritten(long length) {
+        bytesOut.add(length);
+    }
+
+    /* Writes every metric in the Prometheus text exposition format */
+    public void write(Writer out) throws IOException {
+        out.write("# HELP http_request_duration_seconds Time from receiving a request to completing its response\n");
+        out.write("# TYPE http_request_duration_seconds histogram\n");
+        Map<String, Histogram[]> sortedEndpoints = new TreeMap<>(endpoints);
+        for (Map.Entry<String, Histogram[]> endpoint : sortedEndpoints.entrySet()) {
+            for (RequestMethod method : RequestMethod.values()) {
+                Histogram histogram = endpoint.getValue()[method.ordinal()];
+                if (histogram.getCount() > 0) {
+                    histogram.write(out, "http_request_duration_seconds",
+                            "method=\"" + method.name() + "\",endpoint=\"" + escape(endpoint.getKey()) + "\"");
+                }
+            }
+        }
+        out.write("# HELP stage_duration_seconds Time spent in each stage of uploads and downloads\n");
+        out.write("# TYPE stage_duration_seconds histogram\n");
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()].write(out, "stage_duration_seconds", "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"");
+        }
+        String previous = null;
+        for (Sample sample : samples) {
+            String name = sample.name.contains("{") ? sample.name.substring(0, sample.name.indexOf('{')) : sample.name;
+            if (!name.equals(previous)) {
+                out.write("# HELP " + name + " " + sample.help + "\n");
+                out.write("# TYPE " + name + " " + sample.type + "\n");
+                previous = name;
+            }
+            out.write(sample.name + " " + format(sample.value.get()) + "\n");
+        }
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value) : Double.toString(value);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public static class Sample {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final Value value;
+
+        private Sample(String name, String type, String help, Value value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+
+        public interface Value {
+            double get();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package hello.services;
+
+import hello.util.ByteBufferChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+ * Small objects appended to memory-mapped segment files and found through an in-memory index, rebuilt on startup by
+ * scanning the checksummed records, where a record torn by a crash ends its segment. A record is the key length, the
+ * data length, the key, the data and the CRC32 of the key and data
+ */
+public class PackStore {
+
+    private static final String SEGMENT_PREFIX = "pack-";
+    private static final int RECORD_OVERHEAD = 3 * Integer.BYTES;
+    private static final int MAX_KEY_SIZE = 1024;
+    private final String segmentName = SEGMENT_PREFIX + "%016d";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxObjectSize;
+    private final double garbageRatio;
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+
+    public PackStore(Path directory, int segmentSize, int maxObjectSize, double garbageRatio) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxObjectSize = Math.min(maxObjectSize, segmentSize - RECORD_OVERHEAD - MAX_KEY_SIZE);
+        this.garbageRatio = garbageRatio;
+    }
+
+    /* Maps the segments and rebuilds the index from their records, appending to the last one from where it ends */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path path : files) {
+                long id = Long.parseLong(path.getFileName().toString().substring(SEGMENT_PREFIX.length()));
+                segments.put(id, new Segment(id, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            segment.end = scan(segment, (key, location) -> {
+                segment.liveBytes.addAndGet(location.length);
+                put(key, location);
+            });
+            if (segment != segments.lastEntry().getValue()) {
+                segment.channel.close();
+            }
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+    }
+
+    public synchronized void close() throws IOException {
+        if (active != null) {
+            active.channel.close();
+        }
+    }
+
+    /* Whether an object of this many bytes is small enough to be packed */
+    public boolean accepts(long size) {
+        return size <= maxObjectSize;
+    }
+
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    public Set<String> keys() {
+        return index.keySet();
+    }
+
+    /* Appends the content of the file as the object under the key, durably, replacing the one it had */
+    public void append(String key, Path source) throws IOException {
+        ByteBuffer data;
+        try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ)) {
+            data = ByteBuffer.allocate((int) input.size());
+            while (data.hasRemaining() && input.read(data) != -1) {
+            }
+            data.flip();
+        }
+        put(key, write(key, data));
+    }
+
+    /* Channel reading the object under the key, or null if there isn't one */
+    public SeekableByteChannel open(String key) {
+        Location location = index.get(key);
+        return location == null ? null : new ByteBufferChannel(location.slice());
+    }
+
+    /* Drops the object under the key, returning whether there was one */
+    public boolean remove(String key) {
+        Location location = index.remove(key);
+        if (location == null) {
+            return false;
+        }
+        location.segment.liveBytes.addAndGet(-location.length);
+        return true;
+    }
+
+    /* Rewrites the objects still indexed out of the full segments mostly made of garbage, then deletes those */
+    public void compact() throws IOException {
+        for (Segment segment : segments.values()) {
+            synchronized (this) {
+                if (segment == active) {
+                    continue;
+                }
+            }
+            if (segment.liveBytes.get() > (1 - garbageRatio) * segment.end) {
+                continue;
+            }
+            List<String> keys = new ArrayList<>();
+            List<Location> locations = new ArrayList<>();
+            scan(segment, (key, location) -> {
+                keys.add(key);
+                locations.add(location);
+            });
+            for (int i = 0; i < keys.size(); i++) {
+                Location current = index.get(keys.get(i));
+                if (current == null || current.segment != segment || current.offset != locations.get(i).offset) {
+                    continue;
+                }
+                Location moved = write(keys.get(i), current.slice());
+                if (index.replace(keys.get(i), current, moved)) {
+                    segment.liveBytes.addAndGet(-current.length);
+                } else {
+                    moved.segment.liveBytes.addAndGet(-moved.length);
+                }
+            }
+            segments.remove(segment.id);
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    public long getObjects() {
+        return index.size();
+    }
+
+    public long getSegments() {
+        return segments.size();
+    }
+
+    /* Bytes held by segments on disk and by the objects still indexed in them */
+    public long getSegmentBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.end).sum();
+    }
+
+    public long getLiveBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.liveBytes.get()).sum();
+    }
+
+    private void put(String key, Location location) {
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-previous.length);
+        }
+    }
+
+    /* Appends a record to the active segment, starting a new one when it is full, and forces it to disk */
+    private synchronized Location write(String key, ByteBuffer data) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_SIZE) {
+            throw new IllegalArgumentException("Key too long to be packed: " + key);
+        }
+        int length = data.remaining();
+        int recordSize = RECORD_OVERHEAD + keyBytes.length + length;
+        if (active == null || active.end + recordSize > active.buffer.capacity()) {
+            startSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(keyBytes);
+        crc.update(data.duplicate());
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(keyBytes.length).putInt(length).put(keyBytes).put(data).putInt((int) crc.getValue());
+        record.flip();
+        long position = active.end;
+        while (record.hasRemaining()) {
+            position += active.channel.write(record, position);
+        }
+        active.channel.force(false);
+
+        Location location = new Location(active, active.end + 2 * Integer.BYTES + keyBytes.length, length);
+        active.end += recordSize;
+        active.liveBytes.addAndGet(length);
+        return location;
+    }
+
+    private void startSegment() throws IOException {
+        long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Path path = directory.resolve(String.format(segmentName, id));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Sparse up to its full size, so the whole segment is mapped once and never past the end of the file
+        channel.write(ByteBuffer.allocate(1), segmentSize - 1);
+        Segment segment = new Segment(id, path, channel);
+        if (active != null) {
+            active.channel.close();
+        }
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    /* Visits the valid records of a segment in order and returns where they end */
+    private static int scan(Segment segment, RecordVisitor visitor) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + RECORD_OVERHEAD <= buffer.capacity()) {
+            int keyLength = buffer.getInt(position);
+            int length = buffer.getInt(position + Integer.BYTES);
+            long recordSize = (long) RECORD_OVERHEAD + keyLength + length;
+            if (keyLength <= 0 || length < 0 || position + recordSize > buffer.capacity()) {
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.position(position + 2 * Integer.BYTES);
+            buffer.get(keyBytes);
+            ByteBuffer data = buffer.slice();
+            data.limit(length);
+            CRC32 crc = new CRC32();
+            crc.update(keyBytes);
+            crc.update(data.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(position + (int) recordSize - Integer.BYTES)) {
+                break;
+            }
+            Location location = new Location(segment, position + 2 * Integer.BYTES + keyLength, length);
+            visitor.visit(new String(keyBytes, StandardCharsets.UTF_8), location);
+            position += (int) recordSize;
+        }
+        return position;
+    }
+
+    private interface RecordVisitor {
+        void visit(String key, Location location);
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private volatile int end;
+
+        private Segment(long id, Path path, FileChannel channel) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Location(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private ByteBuffer slice() {
+            ByteBuffer slice = segment.buffer.duplicate();
+            slice.position(offset).limit(offset + length);
+            return slice.slice();
+        }
+    }
+}
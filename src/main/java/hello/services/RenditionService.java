@@ -0,0 +1,363 @@
+package hello.services;
+
+import hello.constants.FileConstants;
+import hello.constants.FileErrorMessages;
+import hello.exceptions.BadRequestException;
+import hello.models.FileMetadata;
+import hello.storage.StorageBackend;
+import hello.storage.StorageBackends;
+import hello.util.ByteBufferOutputStream;
+import hello.util.ChunkSource;
+import hello.util.ContentEncoding;
+import hello.util.EncryptionUtil;
+import hello.util.ImageResizer;
+import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Scaled down renditions of stored images, the common sizes stored next to the files and the others cached by size.
+ * Renditions are tagged with the metadata or ETag they were made from, so a replaced file's are never served again
+ */
+@Component
+public class RenditionService {
+
+    private static final List<String> IMAGE_TYPES = Collections.unmodifiableList(Arrays.asList(
+            MediaType.IMAGE_PNG_VALUE, MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_GIF_VALUE));
+
+    /* Images bigger than this many pixels, or stored in more than this many bytes, aren't decoded at all */
+    private static final long MAX_SOURCE_PIXELS = 64L * 1024 * 1024;
+    private static final long MAX_SOURCE_BYTES = 64L * 1024 * 1024;
+
+    /* Sizes of one file whose cached renditions are dropped with it, further ones are left to expire by version */
+    private static final int MAX_TRACKED_SIZES = 64;
+
+    private static final String KEY_FORMAT = "%s@%dx%d";
+
+    private final int maxDimension;
+    private final List<int[]> commonSizes = new ArrayList<>();
+    private final ContentCache cache;
+    private final ThreadPoolExecutor generator;
+    private final ConcurrentHashMap<String, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> cachedKeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, StorageBackend> backends = new ConcurrentHashMap<>();
+    private final LongAdder resizes = new LongAdder();
+    private final LongAdder sharedResizes = new LongAdder();
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private FileIndex fileIndex;
+
+    @Autowired
+    private StorageBackends storageBackends;
+
+    @Autowired
+    public RenditionService(@Value("${renditions.sizes:128x128,512x512}") String sizes,
+                            @Value("${renditions.max-dimension:2048}") int maxDimension,
+                            @Value("${renditions.cache-bytes:33554432}") long cacheBytes,
+                            @Value("${renditions.threads:1}") int threads,
+                            @Value("${renditions.queue:256}") int queue,
+                            Metrics metrics) {
+        this.maxDimension = maxDimension;
+        for (String size : sizes.split(",")) {
+            if (!size.trim().isEmpty()) {
+                String[] dimensions = size.trim().split("x");
+                commonSizes.add(new int[]{Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1])});
+            }
+        }
+        cache = new ContentCache(cacheBytes);
+        AtomicInteger count = new AtomicInteger();
+        // Renditions made in the background are only a head start, they are dropped rather than queued without bound
+        generator = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), runnable -> {
+            Thread thread = new Thread(runnable, "rendition-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        metrics.counter("renditions_resized_total", "Renditions made by scaling their image", resizes::sum);
+        metrics.counter("renditions_shared_total", "Requests that waited for a resize another one started", sharedResizes::sum);
+        metrics.counter("rendition_cache_hits_total", "Renditions served from the rendition cache", cache::getHits);
+        metrics.counter("rendition_cache_misses_total", "Renditions the rendition cache had to fill", cache::getMisses);
+        metrics.gauge("rendition_cache_bytes", "Bytes held by the rendition cache", cache::getSize);
+    }
+
+    /* Fails with BadRequestException unless a rendition of that size can be made of the file */
+    public void checkRendition(FileMetadata metadata, int width, int height) {
+        if (width < 0 || height < 0 || width > maxDimension || height > maxDimension || (width == 0 && height == 0)) {
+            throw new BadRequestException(FileErrorMessages.INVALID_RENDITION_SIZE);
+        }
+        if (!IMAGE_TYPES.contains(metadata.getContentType())) {
+            throw new BadRequestException(FileErrorMessages.RENDITION_UNAVAILABLE);
+        }
+        if (metadata.getSize() > MAX_SOURCE_BYTES) {
+            throw new BadRequestException(FileErrorMessages.RENDITION_SOURCE_TOO_LARGE);
+        }
+    }
+
+    /* JPEG images are scaled to JPEG, the others to PNG, which keeps their transparency */
+    public String getContentType(FileMetadata metadata) {
+        return MediaType.IMAGE_JPEG_VALUE.equals(metadata.getContentType()) ? MediaType.IMAGE_JPEG_VALUE : MediaType.IMAGE_PNG_VALUE;
+    }
+
+    /* Validator of a rendition, derived from the file's own */
+    public String getEtag(FileMetadata metadata, int width, int height) {
+        return metadata.getEtag().substring(0, metadata.getEtag().length() - 1) + "-" + width + "x" + height + "\"";
+    }
+
+    /* The rendition of the file as of the given metadata, fitting in the width and height, either of which can be 0 */
+    public ByteBuffer getRendition(String fileId, String rootPath, FileMetadata metadata, int width, int height)
+            throws IOException, GeneralSecurityException {
+        String key = String.format(KEY_FORMAT, fileId, width, height);
+        ByteBuffer cached = cache.get(key, metadata);
+        if (cached != null) {
+            return cached;
+        }
+
+        // One request per rendition and version makes it, the others wait for its result
+        String flightKey = key + metadata.getEtag();
+        CompletableFuture<ByteBuffer> flight = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> existing = inFlight.putIfAbsent(flightKey, flight);
+        if (existing != null) {
+            sharedResizes.increment();
+            return await(existing);
+        }
+        try {
+            boolean common = isCommonSize(width, height);
+            ByteBuffer rendition = common ? readStored(rootPath, key, metadata) : null;
+            if (rendition == null) {
+                rendition = ByteBuffer.wrap(resize(fileId, rootPath, metadata, width, height));
+                if (common) {
+                    store(rootPath, key, metadata, rendition);
+                }
+            }
+            cache.put(key, metadata, rendition);
+            if (!common) {
+                track(fileId, key);
+            }
+            flight.complete(rendition);
+            return rendition.asReadOnlyBuffer();
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(flightKey, flight);
+        }
+    }
+
+    /* Makes the common sizes of a file just stored, in the background, unless it changes again before that */
+    public void fileStored(String fileId, String rootPath, FileMetadata metadata) {
+        if (commonSizes.isEmpty() || !IMAGE_TYPES.contains(metadata.getContentType()) || metadata.getSize() > MAX_SOURCE_BYTES) {
+            return;
+        }
+        generator.execute(() -> {
+            for (int[] size : commonSizes) {
+                if (fileIndex.get(fileId) != metadata) {
+                    return;
+                }
+                try {
+                    getRendition(fileId, rootPath, metadata, size[0], size[1]);
+                } catch (Exception e) {
+                    // Images that can't be decoded, or files deleted meanwhile, are left alone
+                    return;
+                }
+            }
+        });
+    }
+
+    /* Drops the cached renditions of a file that was replaced or deleted */
+    public void invalidate(String fileId) {
+        for (int[] size : commonSizes) {
+            cache.invalidate(String.format(KEY_FORMAT, fileId, size[0], size[1]));
+        }
+        Set<String> keys = cachedKeys.remove(fileId);
+        if (keys != null) {
+            keys.forEach(cache::invalidate);
+        }
+    }
+
+    /* Drops the renditions of a deleted file, removing the stored ones in the background */
+    public void fileRemoved(String fileId, String rootPath) {
+        invalidate(fileId);
+        if (!commonSizes.isEmpty()) {
+            generator.execute(() -> {
+                for (int[] size : commonSizes) {
+                    try {
+                        backendFor(rootPath).delete(String.format(KEY_FORMAT, fileId, size[0], size[1]));
+                    } catch (IOException e) {
+                        // Removed with the other orphans on the next start
+                    }
+                }
+            });
+        }
+    }
+
+    /* Removes stored renditions of files that are gone, left when the server stopped before removing them */
+    public void removeOrphans(String rootPath) throws IOException {
+        StorageBackend backend = backendFor(rootPath);
+        backend.list(key -> {
+            if (key.indexOf('@') < 0 || fileIndex.get(key.substring(0, key.lastIndexOf('@'))) == null) {
+                backend.delete(key);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        generator.shutdownNow();
+    }
+
+    private boolean isCommonSize(int width, int height) {
+        for (int[] size : commonSizes) {
+            if (size[0] == width && size[1] == height) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Keys of the cached sizes of a file besides the common ones, so they can be dropped along with it */
+    private void track(String fileId, String key) {
+        Set<String> keys = cachedKeys.computeIfAbsent(fileId, id -> ConcurrentHashMap.newKeySet());
+        if (keys.size() < MAX_TRACKED_SIZES) {
+            keys.add(key);
+        }
+    }
+
+    /* Decodes the file as it is read from storage, decompressing it if needed, and scales it */
+    private byte[] resize(String fileId, String rootPath, FileMetadata metadata, int width, int height) throws IOException, GeneralSecurityException {
+        if (metadata.getSize() > MAX_SOURCE_BYTES) {
+            throw new BadRequestException(FileErrorMessages.RENDITION_SOURCE_TOO_LARGE);
+        }
+        String format = getContentType(metadata).equals(MediaType.IMAGE_JPEG_VALUE) ? ImageResizer.JPEG : ImageResizer.PNG;
+        ContentEncoding encoding = ContentEncoding.of(metadata.getEncoding());
+        InputStream original = plaintext(fileId, rootPath).toInputStream();
+        try (InputStream input = encoding == null ? original : encoding.decode(original)) {
+            byte[] rendition = ImageResizer.resize(input, width, height, format, MAX_SOURCE_PIXELS);
+            resizes.increment();
+            return rendition;
+        } catch (IOException e) {
+            throw new BadRequestException(FileErrorMessages.RENDITION_UNAVAILABLE);
+        }
+    }
+
+    /* The plaintext of a file, from the content cache or decrypted a segment at a time, to be closed to release the file */
+    private ChunkSource plaintext(String fileId, String rootPath) throws IOException, GeneralSecurityException {
+        ByteBuffer content = fileService.getContent(fileId, rootPath);
+        if (content != null) {
+            return () -> {
+                if (!content.hasRemaining()) {
+                    return null;
+                }
+                byte[] chunk = new byte[Math.min(content.remaining(), EncryptionUtil.SEGMENT_SIZE)];
+                content.get(chunk);
+                return chunk;
+            };
+        }
+        SeekableByteChannel channel = fileService.openFile(fileId, rootPath);
+        long length = EncryptionUtil.plaintextSize(channel.size());
+        return new ChunkSource() {
+            private long position;
+
+            @Override
+            public byte[] next() throws IOException, GeneralSecurityException {
+                if (position >= length) {
+                    return null;
+                }
+                long end = Math.min(length, position + EncryptionUtil.SEGMENT_SIZE) - 1;
+                byte[] chunk = new byte[(int) (end - position + 1)];
+                EncryptionUtil.decrypt(channel, position, end, new ByteBufferOutputStream(ByteBuffer.wrap(chunk)));
+                position = end + 1;
+                return chunk;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /* A stored rendition is the ETag of the file it was made from followed by the image, encrypted together */
+    private ByteBuffer readStored(String rootPath, String key, FileMetadata metadata) throws IOException, GeneralSecurityException {
+        byte[] encrypted;
+        try (SeekableByteChannel channel = backendFor(rootPath).open(key)) {
+            encrypted = new byte[(int) channel.size()];
+            ByteBuffer buffer = ByteBuffer.wrap(encrypted);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(EncryptionUtil.decrypt(encrypted)));
+        if (!input.readUTF().equals(metadata.getEtag())) {
+            return null;
+        }
+        return ByteBuffer.wrap(IOUtils.toByteArray(input));
+    }
+
+    private void store(String rootPath, String key, FileMetadata metadata, ByteBuffer rendition) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream(rendition.remaining() + metadata.getEtag().length() + 2);
+        DataOutputStream output = new DataOutputStream(plaintext);
+        output.writeUTF(metadata.getEtag());
+        output.write(rendition.array(), rendition.arrayOffset() + rendition.position(), rendition.remaining());
+        byte[] encrypted = EncryptionUtil.encrypt(plaintext.toByteArray());
+        backendFor(rootPath).write(key, new ByteArrayInputStream(encrypted), encrypted.length);
+    }
+
+    private StorageBackend backendFor(String rootPath) {
+        return backends.computeIfAbsent(rootPath, path -> {
+            try {
+                return storageBackends.open(Paths.get(path, FileConstants.RENDITIONS_DIR));
+            } catch (IOException e) {
+                throw new InternalError();
+            }
+        });
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> flight) throws IOException, GeneralSecurityException {
+        try {
+            return flight.get().asReadOnlyBuffer();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalError();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new InternalError();
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package hello.services;
+
+import hello.constants.FileConstants;
+import hello.constants.FileErrorMessages;
+import hello.exceptions.BadRequestException;
+import hello.exceptions.ConflictException;
+import hello.exceptions.FileNotInStorageException;
+import hello.exceptions.ForbiddenException;
+import hello.exceptions.PayloadTooLargeException;
+import hello.models.FileMetadata;
+import hello.models.UploadStatus;
+import hello.util.ContentSniffer;
+import hello.util.EncryptionUtil;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Resumable uploads, assembled a segment at a time in the stored file format, with their offset and unfinished segment
+ * sealed in a state file. The state is replaced only after the data file is forced, so after a crash the data file
+ * may hold segments the state doesn't count, and the upload resumes after them instead of encrypting them again
+ */
+@Service
+public class UploadService {
+
+    private static final Log log = LogFactory.getLog(UploadService.class);
+
+    private static final int STATE_VERSION = 1;
+
+    private static final String DATA_SUFFIX = ".data";
+
+    private static final String STATE_SUFFIX = ".state";
+
+    private static final long MAX_SWEEP_PERIOD = TimeUnit.HOURS.toMillis(1);
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private ClusterService clusterService;
+
+    private final Path directory;
+    private final long expiryMillis;
+    private final long maxLength;
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sweeper;
+
+    @Autowired
+    public UploadService(@Value("${uploads.expiry-ms:86400000}") long expiryMillis,
+                         @Value("${uploads.max-length:10737418240}") long maxLength) {
+        this(Paths.get(FileConstants.ROOT_PATH, FileConstants.UPLOADS_DIR), expiryMillis, maxLength);
+    }
+
+    public UploadService(Path directory, long expiryMillis, long maxLength) {
+        this.directory = directory;
+        this.expiryMillis = expiryMillis;
+        this.maxLength = maxLength;
+    }
+
+    /* Picks up the uploads of previous runs and starts expiring the abandoned ones */
+    @PostConstruct
+    public void open() throws IOException, GeneralSecurityException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> states = Files.newDirectoryStream(directory, "*" + STATE_SUFFIX)) {
+            for (Path statePath : states) {
+                String fileName = statePath.getFileName().toString();
+                recover(fileName.substring(0, fileName.length() - STATE_SUFFIX.length()));
+            }
+        }
+        // Left by uploads created, finished or aborted while the server stopped, and by interrupted state writes
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path path : files) {
+                String fileName = path.getFileName().toString();
+                if (fileName.endsWith(FileConstants.TEMP_SUFFIX) || !uploads.containsKey(fileName.split("\\.")[0])) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+
+        long period = Math.max(1, Math.min(expiryMillis / 4, MAX_SWEEP_PERIOD));
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upload-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    public String create(String owner, long length) throws IOException, GeneralSecurityException {
+        if (length < 0) {
+            throw new BadRequestException(FileErrorMessages.INVALID_UPLOAD_LENGTH);
+        }
+        if (length > maxLength) {
+            throw new PayloadTooLargeException(FileErrorMessages.UPLOAD_TOO_LARGE);
+        }
+        Upload upload = new Upload();
+        // In a cluster the upload stays on this instance, its chunks are forwarded here by its id
+        upload.id = clusterService.newId(() -> UUID.randomUUID().toString());
+        upload.owner = owner;
+        upload.length = length;
+        upload.updatedAt = System.currentTimeMillis();
+        upload.header = EncryptionUtil.newHeader();
+        upload.digest = fileService.newContentDigest();
+        try (FileChannel data = FileChannel.open(dataPath(upload.id), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writeFully(data, upload.header, 0);
+            data.force(true);
+        }
+        saveState(upload, new byte[0], 0);
+        uploads.put(upload.id, upload);
+        return upload.id;
+    }
+
+    public UploadStatus getStatus(String id, String owner) {
+        Upload upload = find(id, owner);
+        synchronized (upload) {
+            checkActive(upload);
+            UploadStatus status = new UploadStatus();
+            status.setOffset(upload.offset);
+            status.setLength(upload.length);
+            status.setExpiresAt(upload.updatedAt + expiryMillis);
+            return status;
+        }
+    }
+
+    /* Appends a chunk at the current offset, keeping whatever was read if it is cut short, and returns the new offset */
+    public long append(String id, String owner, long offset, long chunkLength, InputStream chunk) throws IOException, GeneralSecurityException {
+        Upload upload = find(id, owner);
+        synchronized (upload) {
+            checkActive(upload);
+            if (offset != upload.offset) {
+                throw new ConflictException(FileErrorMessages.UPLOAD_OFFSET_MISMATCH);
+            }
+            if (chunkLength > upload.length - upload.offset) {
+                throw new BadRequestException(FileErrorMessages.UPLOAD_LENGTH_EXCEEDED);
+            }
+            byte[] tail = readTail(upload);
+            int tailLength = (int) (upload.offset - upload.segments * EncryptionUtil.SEGMENT_SIZE);
+            boolean allowed = true;
+            try (FileChannel data = FileChannel.open(dataPath(id), StandardOpenOption.WRITE)) {
+                // Drops what a failed write may have left after the last complete segment
+                data.truncate(EncryptionUtil.completeSegmentsSize(upload.segments));
+                try {
+                    int read;
+                    while (allowed && upload.offset < upload.length && (read = chunk.read(tail, tailLength,
+                            (int) Math.min(EncryptionUtil.SEGMENT_SIZE - tailLength, upload.length - upload.offset))) != -1) {
+                        if (upload.digest != null) {
+                            upload.digest.update(tail, tailLength, read);
+                        }
+                        tailLength += read;
+                        upload.offset += read;
+                        if (upload.contentType == null && (upload.offset >= ContentSniffer.PREFIX_SIZE || upload.offset == upload.length)) {
+                            // The first segment is still in the clear here, whatever the chunk sizes
+                            upload.contentType = ContentSniffer.sniff(tail, tailLength);
+                            allowed = fileService.isAllowedType(upload.contentType);
+                        }
+                        if (tailLength == EncryptionUtil.SEGMENT_SIZE && upload.offset < upload.length) {
+                            byte[] segment = EncryptionUtil.encryptSegment(upload.header, (int) upload.segments, false, tail, tailLength);
+                            writeFully(data, segment, EncryptionUtil.completeSegmentsSize(upload.segments));
+                            upload.segments++;
+                            tailLength = 0;
+                        }
+                    }
+                } finally {
+                    if (allowed) {
+                        data.force(true);
+                        upload.updatedAt = System.currentTimeMillis();
+                        saveOrReload(upload, tail, tailLength);
+                    }
+                }
+            }
+            if (!allowed) {
+                remove(upload);
+                throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+            }
+            if (upload.offset == upload.length && chunk.read() != -1) {
+                throw new BadRequestException(FileErrorMessages.UPLOAD_LENGTH_EXCEEDED);
+            }
+            return upload.offset;
+        }
+    }
+
+    /* Encrypts the last segment and stores the upload as a new file, returning its id */
+    public String complete(String id, String owner, String rootPath) throws IOException, GeneralSecurityException {
+        Upload upload = find(id, owner);
+        synchronized (upload) {
+            checkActive(upload);
+            if (upload.offset != upload.length) {
+                throw new ConflictException(FileErrorMessages.UPLOAD_INCOMPLETE);
+            }
+            byte[] tail = readTail(upload);
+            int tailLength = (int) (upload.length - upload.segments * EncryptionUtil.SEGMENT_SIZE);
+            if (upload.contentType == null) {
+                upload.contentType = ContentSniffer.sniff(tail, tailLength);
+            }
+            if (!fileService.isAllowedType(upload.contentType)) {
+                remove(upload);
+                throw new BadRequestException(FileErrorMessages.FORMAT_NOT_ALLOWED);
+            }
+
+            Path dataPath = dataPath(id);
+            try (FileChannel data = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+                data.truncate(EncryptionUtil.completeSegmentsSize(upload.segments));
+                byte[] segment = EncryptionUtil.encryptSegment(upload.header, (int) upload.segments, true, tail, tailLength);
+                writeFully(data, segment, EncryptionUtil.completeSegmentsSize(upload.segments));
+                data.force(true);
+            }
+            byte[] hash = upload.digest == null ? hash(dataPath) : upload.digest.digest();
+
+            FileMetadata metadata = new FileMetadata();
+            metadata.setSize(upload.length);
+            metadata.setContentType(upload.contentType);
+            // Storing may move the data file into the content store before failing, so the upload can't be retried
+            try {
+                return fileService.storeEncryptedFile(dataPath, hash, metadata,
+                        MediaType.parseMediaType(upload.contentType).getSubtype(), rootPath, owner);
+            } finally {
+                remove(upload);
+            }
+        }
+    }
+
+    public void abort(String id, String owner) throws IOException {
+        Upload upload = find(id, owner);
+        synchronized (upload) {
+            checkActive(upload);
+            remove(upload);
+        }
+    }
+
+    /* Deletes uploads nothing was sent to for longer than the expiry */
+    public void removeExpired() {
+        for (Upload upload : uploads.values()) {
+            synchronized (upload) {
+                try {
+                    if (!upload.removed && isExpired(upload)) {
+                        remove(upload);
+                    }
+                } catch (IOException e) {
+                    log.warn("Could not remove expired upload " + upload.id, e);
+                }
+            }
+        }
+    }
+
+    /* Loads an upload from its state file, cutting what interrupted writes left after the last complete segment */
+    private void recover(String id) throws IOException, GeneralSecurityException {
+        Upload upload = new Upload();
+        upload.id = id;
+        Path dataPath = dataPath(id);
+        try {
+            readState(upload);
+            if (!Files.exists(dataPath) || Files.size(dataPath) < EncryptionUtil.HEADER_SIZE || isExpired(upload)) {
+                deleteFiles(id);
+                return;
+            }
+        } catch (IOException e) {
+            // A state file from another version or cut short, which can't be resumed
+            deleteFiles(id);
+            return;
+        }
+        try (FileChannel data = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            upload.header = new byte[EncryptionUtil.HEADER_SIZE];
+            readFully(data, upload.header, 0);
+            long segments = EncryptionUtil.completeSegments(data.size());
+            if (segments > upload.segments && !isIntermediate(upload, data, segments - 1)) {
+                segments--;
+            }
+            data.truncate(EncryptionUtil.completeSegmentsSize(segments));
+            if (segments != upload.segments) {
+                upload.segments = segments;
+                upload.offset = segments * EncryptionUtil.SEGMENT_SIZE;
+                if (upload.contentType == null) {
+                    // Saved before the type was sniffed, from bytes that are now in the first segment
+                    upload.contentType = ContentSniffer.sniff(decryptFirstSegment(upload, data), ContentSniffer.PREFIX_SIZE);
+                }
+                saveState(upload, new byte[0], 0);
+            }
+        }
+        uploads.put(id, upload);
+    }
+
+    /* Whether a complete segment decrypts as one that isn't the last */
+    private boolean isIntermediate(Upload upload, FileChannel data, long segment) throws IOException {
+        byte[] ciphertext = new byte[(int) (EncryptionUtil.completeSegmentsSize(1) - EncryptionUtil.HEADER_SIZE)];
+        readFully(data, ciphertext, EncryptionUtil.completeSegmentsSize(segment));
+        try {
+            EncryptionUtil.decryptSegment(upload.header, (int) segment, false, ciphertext);
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private byte[] decryptFirstSegment(Upload upload, FileChannel data) throws IOException, GeneralSecurityException {
+        byte[] ciphertext = new byte[(int) (EncryptionUtil.completeSegmentsSize(1) - EncryptionUtil.HEADER_SIZE)];
+        readFully(data, ciphertext, EncryptionUtil.HEADER_SIZE);
+        return EncryptionUtil.decryptSegment(upload.header, 0, false, ciphertext);
+    }
+
+    private Upload find(String id, String owner) {
+        Upload upload = uploads.get(id);
+        if (upload == null) {
+            throw new FileNotInStorageException(FileErrorMessages.UPLOAD_NOT_FOUND);
+        }
+        if (!upload.owner.equals(owner)) {
+            throw new ForbiddenException(FileErrorMessages.FORBIDDEN);
+        }
+        return upload;
+    }
+
+    /* Called holding the upload's monitor, since it may have been finished or removed while waiting for it */
+    private void checkActive(Upload upload) {
+        if (upload.removed || isExpired(upload)) {
+            throw new FileNotInStorageException(FileErrorMessages.UPLOAD_NOT_FOUND);
+        }
+    }
+
+    private boolean isExpired(Upload upload) {
+        return System.currentTimeMillis() - upload.updatedAt > expiryMillis;
+    }
+
+    private void remove(Upload upload) throws IOException {
+        upload.removed = true;
+        uploads.remove(upload.id);
+        deleteFiles(upload.id);
+    }
+
+    private void deleteFiles(String id) throws IOException {
+        Files.deleteIfExists(statePath(id));
+        Files.deleteIfExists(dataPath(id));
+    }
+
+    /* Hash of an assembled upload, for uploads whose digest was lost in a restart */
+    private byte[] hash(Path dataPath) throws IOException, GeneralSecurityException {
+        MessageDigest digest = fileService.newContentDigest();
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(dataPath))) {
+            EncryptionUtil.decrypt(input, new DigestOutputStream(new NullOutputStream(), digest));
+        }
+        return digest.digest();
+    }
+
+    /* A failed save leaves the state file behind the upload in memory, which is then loaded again from disk */
+    private void saveOrReload(Upload upload, byte[] tail, int tailLength) throws IOException, GeneralSecurityException {
+        try {
+            saveState(upload, tail, tailLength);
+        } catch (IOException | GeneralSecurityException e) {
+            upload.removed = true;
+            uploads.remove(upload.id);
+            recover(upload.id);
+            throw e;
+        }
+    }
+
+    /* Replaces the state file atomically, with the tail sealed to the upload and its offset */
+    private void saveState(Upload upload, byte[] tail, int tailLength) throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(STATE_VERSION);
+            output.writeUTF(upload.owner);
+            output.writeLong(upload.length);
+            output.writeLong(upload.offset);
+            output.writeLong(upload.segments);
+            output.writeLong(upload.updatedAt);
+            output.writeUTF(upload.contentType == null ? "" : upload.contentType);
+            byte[] sealedTail = EncryptionUtil.seal(tail, tailLength, associatedData(upload));
+            output.writeInt(sealedTail.length);
+            output.write(sealedTail);
+        }
+        Path tempPath = directory.resolve(upload.id + STATE_SUFFIX + FileConstants.TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, bytes.toByteArray(), 0);
+            channel.force(true);
+        }
+        Files.move(tempPath, statePath(upload.id), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /* Reads the state file into the upload and returns the sealed tail */
+    private byte[] readState(Upload upload) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(statePath(upload.id))))) {
+            if (input.readInt() != STATE_VERSION) {
+                throw new IOException("Unknown upload state version");
+            }
+            upload.owner = input.readUTF();
+            upload.length = input.readLong();
+            upload.offset = input.readLong();
+            upload.segments = input.readLong();
+            upload.updatedAt = input.readLong();
+            String contentType = input.readUTF();
+            upload.contentType = contentType.isEmpty() ? null : contentType;
+            byte[] sealedTail = new byte[input.readInt()];
+            input.readFully(sealedTail);
+            return sealedTail;
+        }
+    }
+
+    /* Bytes of the segment being filled, in a buffer big enough to complete it */
+    private byte[] readTail(Upload upload) throws IOException, GeneralSecurityException {
+        Upload saved = new Upload();
+        saved.id = upload.id;
+        byte[] sealedTail = readState(saved);
+        byte[] tail = new byte[EncryptionUtil.SEGMENT_SIZE];
+        byte[] opened = EncryptionUtil.open(sealedTail, associatedData(saved));
+        System.arraycopy(opened, 0, tail, 0, opened.length);
+        return tail;
+    }
+
+    private byte[] associatedData(Upload upload) {
+        return (upload.id + ":" + upload.offset).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path dataPath(String id) {
+        return directory.resolve(id + DATA_SUFFIX);
+    }
+
+    private Path statePath(String id) {
+        return directory.resolve(id + STATE_SUFFIX);
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new IOException("Unexpected end of upload data");
+            }
+            position += read;
+        }
+    }
+
+    /* Guarded by its own monitor */
+    private static class Upload {
+
+        private String id;
+        private String owner;
+        private long length;
+        private long offset;
+        private long segments;
+        private long updatedAt;
+        private String contentType;
+        private byte[] header;
+        /* Hash of the bytes received so far, lost on restart and then recomputed when finishing */
+        private MessageDigest digest;
+        private boolean removed;
+    }
+}
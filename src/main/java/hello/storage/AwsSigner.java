@@ -0,0 +1,103 @@
+package hello.storage;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.SortedMap;
+import java.util.stream.Collectors;
+
+/* AWS Signature Version 4, which S3 and the stores compatible with it authenticate requests with */
+public class AwsSigner {
+
+    public static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    public static final String DATE_HEADER = "x-amz-date";
+    public static final String CONTENT_HASH_HEADER = "x-amz-content-sha256";
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final String TERMINATOR = "aws4_request";
+
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+
+    public AwsSigner(String region, String accessKey, String secretKey) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    /*
+     * Authorization header of a request to an encoded path, signing all the headers, which must include the host, the date
+     * and the payload hash
+     */
+    public String authorize(String method, String path, SortedMap<String, String> query, SortedMap<String, String> headers) {
+        String date = headers.get(DATE_HEADER);
+        String scope = String.join("/", date.substring(0, 8), region, SERVICE, TERMINATOR);
+        String signedHeaders = String.join(";", headers.keySet());
+        String canonicalRequest = String.join("\n",
+                method,
+                path,
+                canonicalQuery(query),
+                headers.entrySet().stream().map(header -> header.getKey() + ":" + header.getValue().trim() + "\n").collect(Collectors.joining()),
+                signedHeaders,
+                headers.get(CONTENT_HASH_HEADER));
+        String stringToSign = String.join("\n", ALGORITHM, date, scope, hex(sha256(canonicalRequest)));
+
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date.substring(0, 8));
+        key = hmac(key, region);
+        key = hmac(key, SERVICE);
+        key = hmac(key, TERMINATOR);
+        return ALGORITHM + " Credential=" + accessKey + "/" + scope + ",SignedHeaders=" + signedHeaders
+                + ",Signature=" + hex(hmac(key, stringToSign));
+    }
+
+    /* Query string with its parameters encoded and in order, as it is both signed and sent */
+    public static String canonicalQuery(SortedMap<String, String> query) {
+        return query.entrySet().stream()
+                .map(parameter -> encode(parameter.getKey(), false) + "=" + encode(parameter.getValue(), false))
+                .collect(Collectors.joining("&"));
+    }
+
+    /* Percent-encodes everything but the unreserved characters of RFC 3986, and slashes when asked to */
+    public static String encode(String value, boolean keepSlashes) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~' || (keepSlashes && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append(String.format("%%%02X", b & 0xFF));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new InternalError();
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new InternalError();
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package hello.storage;
+
+import hello.constants.FileConstants;
+import hello.util.ShardedDirectory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+/* Objects as files of a sharded directory on the local disk, staged files being renamed into place */
+public class LocalStorageBackend implements StorageBackend {
+
+    private final ShardedDirectory directory;
+
+    public LocalStorageBackend(ShardedDirectory directory) {
+        this.directory = directory;
+    }
+
+    public Path pathFor(String key) {
+        return directory.resolve(key);
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        return FileChannel.open(pathFor(key), StandardOpenOption.READ);
+    }
+
+    /* Copies the input to a temp file next to the shards and renames that into place once it is on disk */
+    @Override
+    public void write(String key, InputStream input, long length) throws IOException {
+        Path tempPath = Files.createTempFile(directory.getDirectory(), key, FileConstants.TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                OutputStream output = Channels.newOutputStream(channel);
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = length;
+                int read;
+                while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    output.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                if (remaining > 0) {
+                    throw new IOException("Input ended " + remaining + " bytes short of " + key);
+                }
+                channel.force(true);
+            }
+            write(key, tempPath);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    @Override
+    public void write(String key, Path source) throws IOException {
+        Files.move(source, directory.prepare(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(pathFor(key));
+    }
+
+    @Override
+    public long stat(String key) throws IOException {
+        try {
+            return Files.size(pathFor(key));
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void list(KeyVisitor visitor) throws IOException {
+        directory.forEachFile(path -> visitor.visit(path.getFileName().toString()));
+    }
+
+    @Override
+    public void migrate(Function<String, Lock> lockFor) throws IOException {
+        directory.migrate(lockFor);
+    }
+}
@@ -0,0 +1,67 @@
+package hello.storage;
+
+import hello.util.ByteBufferChannel;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* Objects held in memory, on the heap or in direct buffers, and never changed once written so readers share them */
+public class MemoryStorageBackend implements StorageBackend {
+
+    private final boolean offHeap;
+    private final ConcurrentHashMap<String, ByteBuffer> objects = new ConcurrentHashMap<>();
+
+    public MemoryStorageBackend(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        ByteBuffer object = objects.get(key);
+        if (object == null) {
+            throw new NoSuchFileException(key);
+        }
+        return new ByteBufferChannel(object.duplicate());
+    }
+
+    @Override
+    public void write(String key, InputStream input, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too large to be held in memory: " + key);
+        }
+        ByteBuffer object = offHeap ? ByteBuffer.allocateDirect((int) length) : ByteBuffer.allocate((int) length);
+        ReadableByteChannel channel = Channels.newChannel(input);
+        while (object.hasRemaining()) {
+            if (channel.read(object) == -1) {
+                throw new EOFException("Input ended " + object.remaining() + " bytes short of " + key);
+            }
+        }
+        object.flip();
+        objects.put(key, object.asReadOnlyBuffer());
+    }
+
+    @Override
+    public void delete(String key) {
+        objects.remove(key);
+    }
+
+    @Override
+    public long stat(String key) {
+        ByteBuffer object = objects.get(key);
+        return object == null ? -1 : object.capacity();
+    }
+
+    @Override
+    public void list(KeyVisitor visitor) throws IOException {
+        for (String key : objects.keySet()) {
+            visitor.visit(key);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package hello.storage;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/*
+ * Objects in a bucket of S3 or a compatible store, addressed path-style. Reads are pinned to the ETag the object had
+ * when opened, so a replaced object fails the read instead of mixing versions
+ */
+public class S3StorageBackend implements StorageBackend {
+
+    private static final int READ_WINDOW = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 60_000;
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final String endpoint;
+    private final String bucket;
+    private final String prefix;
+    private final AwsSigner signer;
+
+    public S3StorageBackend(String endpoint, String bucket, String prefix, AwsSigner signer) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.bucket = bucket;
+        this.prefix = prefix;
+        this.signer = signer;
+    }
+
+    @Override
+    public SeekableByteChannel open(String key) throws IOException {
+        HttpURLConnection connection = request("HEAD", key, Collections.emptySortedMap());
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new NoSuchFileException(key);
+            }
+            check(connection, key, HttpURLConnection.HTTP_OK);
+            return new RangeChannel(key, connection.getContentLengthLong(), connection.getHeaderField("ETag"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void write(String key, InputStream input, long length) throws IOException {
+        HttpURLConnection connection = request("PUT", key, Collections.emptySortedMap());
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        try {
+            try (OutputStream output = connection.getOutputStream()) {
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = length;
+                int read;
+                while (remaining > 0 && (read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    output.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                if (remaining > 0) {
+                    throw new EOFException("Input ended " + remaining + " bytes short of " + key);
+                }
+            }
+            check(connection, key, HttpURLConnection.HTTP_OK);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        HttpURLConnection connection = request("DELETE", key, Collections.emptySortedMap());
+        try {
+            check(connection, key, HttpURLConnection.HTTP_NO_CONTENT, HttpURLConnection.HTTP_OK, HttpURLConnection.HTTP_NOT_FOUND);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public long stat(String key) throws IOException {
+        HttpURLConnection connection = request("HEAD", key, Collections.emptySortedMap());
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return -1;
+            }
+            check(connection, key, HttpURLConnection.HTTP_OK);
+            return connection.getContentLengthLong();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /* Lists the keys right under the prefix a page at a time, the delimiter leaving out those of nested prefixes */
+    @Override
+    public void list(KeyVisitor visitor) throws IOException {
+        String continuation = null;
+        do {
+            SortedMap<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", prefix);
+            query.put("delimiter", "/");
+            if (continuation != null) {
+                query.put("continuation-token", continuation);
+            }
+            HttpURLConnection connection = request("GET", null, query);
+            Document page;
+            try {
+                check(connection, prefix, HttpURLConnection.HTTP_OK);
+                try (InputStream input = connection.getInputStream()) {
+                    page = newDocumentBuilder().parse(input);
+                } catch (Exception e) {
+                    throw e instanceof IOException ? (IOException) e : new IOException("Unreadable listing of " + prefix, e);
+                }
+            } finally {
+                connection.disconnect();
+            }
+            List<String> keys = new ArrayList<>();
+            NodeList contents = page.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                keys.add(text((Element) contents.item(i), "Key").substring(prefix.length()));
+            }
+            for (String key : keys) {
+                visitor.visit(key);
+            }
+            continuation = "true".equals(text(page.getDocumentElement(), "IsTruncated"))
+                    ? text(page.getDocumentElement(), "NextContinuationToken") : null;
+        } while (continuation != null);
+    }
+
+    /* Signed request for an object, or for the bucket when the key is null */
+    private HttpURLConnection request(String method, String key, SortedMap<String, String> query) throws IOException {
+        String path = "/" + AwsSigner.encode(bucket, false) + (key == null ? "" : "/" + AwsSigner.encode(prefix + key, true));
+        URL url = new URL(endpoint + path + (query.isEmpty() ? "" : "?" + AwsSigner.canonicalQuery(query)));
+        SortedMap<String, String> headers = new TreeMap<>();
+        // The Host header as HttpURLConnection sends it
+        headers.put("host", url.getPort() == -1 || url.getPort() == url.getDefaultPort() ? url.getHost() : url.getHost() + ":" + url.getPort());
+        headers.put(AwsSigner.DATE_HEADER, ZonedDateTime.now(ZoneOffset.UTC).format(AMZ_DATE));
+        headers.put(AwsSigner.CONTENT_HASH_HEADER, AwsSigner.UNSIGNED_PAYLOAD);
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Authorization", signer.authorize(method, path, query, headers));
+        connection.setRequestProperty(AwsSigner.DATE_HEADER, headers.get(AwsSigner.DATE_HEADER));
+        connection.setRequestProperty(AwsSigner.CONTENT_HASH_HEADER, headers.get(AwsSigner.CONTENT_HASH_HEADER));
+        return connection;
+    }
+
+    private static void check(HttpURLConnection connection, String key, int... expected) throws IOException {
+        int status = connection.getResponseCode();
+        for (int code : expected) {
+            if (status == code) {
+                return;
+            }
+        }
+        String message = "S3 " + connection.getRequestMethod() + " of " + key + " failed with " + status;
+        InputStream error = connection.getErrorStream();
+        if (error != null) {
+            error.close();
+        }
+        throw new IOException(message);
+    }
+
+    private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        return factory.newDocumentBuilder();
+    }
+
+    private static String text(Element element, String tag) {
+        NodeList nodes = element.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+    }
+
+    /* Reads an object through ranged GETs, keeping the last window fetched so sequential reads take one request per window */
+    private class RangeChannel implements SeekableByteChannel {
+
+        private final String key;
+        private final long size;
+        private final String etag;
+        private long position;
+        private ByteBuffer window = ByteBuffer.allocate(0);
+        private long windowStart;
+        private boolean open = true;
+
+        private RangeChannel(String key, long size, String etag) {
+            this.key = key;
+            this.size = size;
+            this.etag = etag;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            checkOpen();
+            if (position >= size) {
+                return -1;
+            }
+            if (position < windowStart || position >= windowStart + window.limit()) {
+                fetch(position, Math.min(size, position + Math.max(dst.remaining(), READ_WINDOW)) - 1);
+            }
+            ByteBuffer chunk = window.duplicate();
+            chunk.position((int) (position - windowStart));
+            chunk.limit(chunk.position() + Math.min(dst.remaining(), chunk.remaining()));
+            int length = chunk.remaining();
+            dst.put(chunk);
+            position += length;
+            return length;
+        }
+
+        private void fetch(long first, long last) throws IOException {
+            HttpURLConnection connection = request("GET", key, Collections.emptySortedMap());
+            connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+            if (etag != null) {
+                connection.setRequestProperty("If-Match", etag);
+            }
+            byte[] bytes = new byte[(int) (last - first + 1)];
+            try {
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_PRECON_FAILED
+                        || connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    throw new NoSuchFileException(key, null, "Replaced or deleted while it was read");
+                }
+                check(connection, key, HttpURLConnection.HTTP_PARTIAL);
+                try (InputStream input = connection.getInputStream()) {
+                    int offset = 0;
+                    int read;
+                    while (offset < bytes.length && (read = input.read(bytes, offset, bytes.length - offset)) != -1) {
+                        offset += read;
+                    }
+                    if (offset < bytes.length) {
+                        throw new EOFException("Range of " + key + " ended " + (bytes.length - offset) + " bytes short");
+                    }
+                }
+            } finally {
+                connection.disconnect();
+            }
+            window = ByteBuffer.wrap(bytes);
+            windowStart = first;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws ClosedChannelException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws ClosedChannelException {
+            checkOpen();
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws ClosedChannelException {
+            checkOpen();
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void checkOpen() throws ClosedChannelException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
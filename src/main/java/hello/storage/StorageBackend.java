@@ -0,0 +1,45 @@
+package hello.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+/*
+ * Where stored files and content are kept, as objects written whole under a key. An open channel keeps reading the
+ * object it was opened on, or fails, even if that is replaced or deleted
+ */
+public interface StorageBackend {
+
+    /* Channel reading the object under the key, NoSuchFileException when there isn't one */
+    SeekableByteChannel open(String key) throws IOException;
+
+    /* Streams exactly length bytes of the input as the object under the key */
+    void write(String key, InputStream input, long length) throws IOException;
+
+    /* Stores a staged file as the object under the key. The file may be moved, the caller deletes it if it is left */
+    default void write(String key, Path source) throws IOException {
+        try (InputStream input = Files.newInputStream(source)) {
+            write(key, input, Files.size(source));
+        }
+    }
+
+    void delete(String key) throws IOException;
+
+    /* Size of the object under the key, -1 when there isn't one */
+    long stat(String key) throws IOException;
+
+    /* Visits the key of every object */
+    void list(KeyVisitor visitor) throws IOException;
+
+    /* Moves objects stored by an earlier version into the current layout, each under the lock given for its key */
+    default void migrate(Function<String, Lock> lockFor) throws IOException {
+    }
+
+    interface KeyVisitor {
+        void visit(String key) throws IOException;
+    }
+}
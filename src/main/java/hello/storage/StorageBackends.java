@@ -0,0 +1,61 @@
+package hello.storage;
+
+import hello.util.ShardedDirectory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/* Opens the configured storage backend for each location objects are kept under */
+@Component
+public class StorageBackends {
+
+    public static final String LOCAL = "local";
+    public static final String MEMORY = "memory";
+    public static final String S3 = "s3";
+
+    private final String backend;
+    private final boolean offHeap;
+    private final String endpoint;
+    private final String bucket;
+    private final AwsSigner signer;
+
+    @Autowired
+    public StorageBackends(@Value("${storage.backend:local}") String backend,
+                           @Value("${storage.memory.off-heap:false}") boolean offHeap,
+                           @Value("${storage.s3.endpoint:https://s3.amazonaws.com}") String endpoint,
+                           @Value("${storage.s3.bucket:}") String bucket,
+                           @Value("${storage.s3.region:us-east-1}") String region,
+                           @Value("${storage.s3.access-key:}") String accessKey,
+                           @Value("${storage.s3.secret-key:}") String secretKey) {
+        this.backend = backend;
+        this.offHeap = offHeap;
+        this.endpoint = endpoint;
+        this.bucket = bucket;
+        this.signer = new AwsSigner(region, accessKey, secretKey);
+    }
+
+    public StorageBackends() {
+        this(LOCAL, false, "", "", "", "", "");
+    }
+
+    public StorageBackend open(Path location) throws IOException {
+        switch (backend) {
+            case LOCAL:
+                return new LocalStorageBackend(ShardedDirectory.open(location));
+            case MEMORY:
+                return new MemoryStorageBackend(offHeap);
+            case S3:
+                return new S3StorageBackend(endpoint, bucket, location.toString().replace(File.separatorChar, '/') + "/", signer);
+            default:
+                throw new IllegalStateException("Unknown storage backend: " + backend);
+        }
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+}
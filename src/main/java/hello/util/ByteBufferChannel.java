@@ -0,0 +1,76 @@
+package hello.util;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/* Read-only channel over the bytes of a buffer, so stored content held in memory is read like a file */
+public class ByteBufferChannel implements SeekableByteChannel {
+
+    private final ByteBuffer buffer;
+    private boolean open = true;
+
+    public ByteBufferChannel(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws ClosedChannelException {
+        checkOpen();
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int length = Math.min(dst.remaining(), buffer.remaining());
+        ByteBuffer chunk = buffer.duplicate();
+        chunk.limit(chunk.position() + length);
+        dst.put(chunk);
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws ClosedChannelException {
+        checkOpen();
+        return buffer.position();
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws ClosedChannelException {
+        checkOpen();
+        buffer.position((int) Math.min(newPosition, buffer.limit()));
+        return this;
+    }
+
+    @Override
+    public long size() throws ClosedChannelException {
+        checkOpen();
+        return buffer.limit();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package hello.util;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/* Writes into a buffer sized up front, failing with BufferOverflowException past its limit */
+public class ByteBufferOutputStream extends OutputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferOutputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        buffer.put(b, off, len);
+    }
+}
@@ -0,0 +1,111 @@
+package hello.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/* A response body produced a chunk at a time, so it can be written without blocking between chunks */
+public interface ChunkSource extends Closeable {
+
+    /* Next chunk of the body, or null once it is over */
+    byte[] next() throws IOException, GeneralSecurityException;
+
+    /* Releases what the body is read from, whether it is over or not */
+    @Override
+    default void close() throws IOException {
+    }
+
+    /* The body as a stream, read a chunk at a time as the stream needs it */
+    default InputStream toInputStream() {
+        return new InputStream() {
+            private byte[] chunk = new byte[0];
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                while (chunk != null && position == chunk.length) {
+                    try {
+                        chunk = next();
+                    } catch (GeneralSecurityException e) {
+                        throw new IOException(e);
+                    }
+                    position = 0;
+                }
+                if (chunk == null) {
+                    return -1;
+                }
+                int read = Math.min(length, chunk.length - position);
+                System.arraycopy(chunk, position, bytes, offset, read);
+                position += read;
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                ChunkSource.this.close();
+            }
+        };
+    }
+
+    /* Up to size bytes of the stream, fewer only at its end, or null once it is over */
+    static byte[] readChunk(InputStream input, int size) throws IOException {
+        byte[] chunk = new byte[size];
+        int length = 0;
+        int read;
+        while (length < chunk.length && (read = input.read(chunk, length, chunk.length - length)) != -1) {
+            length += read;
+        }
+        return length == 0 ? null : length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+    }
+
+    static ChunkSource empty() {
+        return () -> null;
+    }
+
+    static ChunkSource of(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        return new ChunkSource() {
+            private boolean sent;
+
+            @Override
+            public byte[] next() {
+                if (sent) {
+                    return null;
+                }
+                sent = true;
+                return bytes;
+            }
+        };
+    }
+
+    /* The bodies one after the other */
+    static ChunkSource concat(List<ChunkSource> sources) {
+        Iterator<ChunkSource> iterator = sources.iterator();
+        return new ChunkSource() {
+            private ChunkSource current = iterator.hasNext() ? iterator.next() : empty();
+
+            @Override
+            public byte[] next() throws IOException, GeneralSecurityException {
+                byte[] chunk;
+                while ((chunk = current.next()) == null && iterator.hasNext()) {
+                    current = iterator.next();
+                }
+                return chunk;
+            }
+        };
+    }
+}
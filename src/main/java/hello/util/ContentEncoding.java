@@ -0,0 +1,206 @@
+package hello.util;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+
+/*
+ * Codecs files are compressed with before they are encrypted, doubling as HTTP content codings. Gzip is written with a
+ * fixed 10 byte header, which decoding skips straight over
+ */
+public enum ContentEncoding {
+
+    GZIP("gzip", 10, 8),
+    DEFLATE("deflate", 0, 0);
+
+    /* Uploads are only compressed when a sample of them shrinks at least this much */
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final String name;
+    private final int headerSize;
+    private final int trailerSize;
+
+    ContentEncoding(String name, int headerSize, int trailerSize) {
+        this.name = name;
+        this.headerSize = headerSize;
+        this.trailerSize = trailerSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /* Encoding of the given name, or null for identity and unknown names */
+    public static ContentEncoding of(String name) {
+        for (ContentEncoding encoding : values()) {
+            if (encoding.name.equals(name)) {
+                return encoding;
+            }
+        }
+        return null;
+    }
+
+    /* Quick check of whether compressing the upload is worth it, from a fast compression of its first bytes */
+    public static boolean isCompressible(byte[] sample, int length) {
+        if (length == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] output = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed < length * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /* Whether an Accept-Encoding header allows this coding, explicitly or through a wildcard, with a non zero weight */
+    public boolean isAcceptedBy(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double wildcard = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String codingName = parts[0].trim().toLowerCase(Locale.ROOT);
+            double weight = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        weight = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        weight = 0;
+                    }
+                }
+            }
+            if (codingName.equals(name)) {
+                return weight > 0;
+            }
+            if (codingName.equals("*")) {
+                wildcard = weight;
+            }
+        }
+        return wildcard != null && wildcard > 0;
+    }
+
+    /* ETag of the encoded representation, which has to differ from the one of the decoded content */
+    public String tag(String etag) {
+        return etag == null ? null : etag.substring(0, etag.length() - 1) + "-" + name + "\"";
+    }
+
+    /* Stream of the compressed input, to be closed to release the compressor */
+    public InputStream compress(InputStream input) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, this == GZIP);
+        if (this == DEFLATE) {
+            return new ReleasingDeflaterInputStream(input, deflater);
+        }
+        CRC32 crc = new CRC32();
+        CountingInputStream counted = new CountingInputStream(new CheckedInputStream(input, crc));
+        InputStream trailer = new InputStream() {
+            private InputStream bytes;
+
+            @Override
+            public int read() throws IOException {
+                if (bytes == null) {
+                    // Only read once the deflated data is exhausted, so the whole input has been checksummed
+                    bytes = new ByteArrayInputStream(littleEndian(crc.getValue(), counted.getByteCount()));
+                }
+                return bytes.read();
+            }
+        };
+        return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(GZIP_HEADER), new ReleasingDeflaterInputStream(counted, deflater), trailer)));
+    }
+
+    /* Stored bytes to skip before and after the deflate data when decoding */
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public int getTrailerSize() {
+        return trailerSize;
+    }
+
+    /* Output stream inflating the deflate data of this encoding into the given stream, to be finished and closed */
+    public OutputStream decoder(OutputStream output) {
+        Inflater inflater = new Inflater(this == GZIP);
+        return new InflaterOutputStream(output, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    finish();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /* Stream of the inflated deflate data of this encoding read from the given stream, to be closed to release the inflater */
+    public InputStream decode(InputStream input) {
+        Inflater inflater = new Inflater(this == GZIP);
+        return new InflaterInputStream(input, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private static byte[] littleEndian(long crc, long size) {
+        byte[] bytes = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) (crc >>> (8 * i));
+            bytes[i + 4] = (byte) (size >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    private static class ReleasingDeflaterInputStream extends DeflaterInputStream {
+
+        private final Deflater deflater;
+
+        private ReleasingDeflaterInputStream(InputStream input, Deflater deflater) {
+            super(input, deflater, BUFFER_SIZE);
+            this.deflater = deflater;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
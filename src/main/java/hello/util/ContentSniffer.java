@@ -0,0 +1,63 @@
+package hello.util;
+
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+
+/* Detects the type of an upload from the signature in its first bytes, instead of trusting the declared one */
+public class ContentSniffer {
+
+    public static final int PREFIX_SIZE = 8;
+
+    private static final byte[][] SIGNATURES = {
+            "%PDF-".getBytes(StandardCharsets.US_ASCII),
+            {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},
+            "GIF87a".getBytes(StandardCharsets.US_ASCII),
+            "GIF89a".getBytes(StandardCharsets.US_ASCII),
+            {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}
+    };
+
+    private static final String[] TYPES = {
+            MediaType.APPLICATION_PDF_VALUE,
+            MediaType.IMAGE_JPEG_VALUE,
+            MediaType.IMAGE_GIF_VALUE,
+            MediaType.IMAGE_GIF_VALUE,
+            MediaType.IMAGE_PNG_VALUE
+    };
+
+    /* Reads the prefix and pushes it back, so the stream can still be read from the start */
+    public static String sniff(PushbackInputStream input) throws IOException {
+        byte[] prefix = new byte[PREFIX_SIZE];
+        int length = 0;
+        int read;
+        while (length < PREFIX_SIZE && (read = input.read(prefix, length, PREFIX_SIZE - length)) != -1) {
+            length += read;
+        }
+        input.unread(prefix, 0, length);
+        return sniff(prefix, length);
+    }
+
+    /* Type of the content starting with the given bytes, or null when no known signature matches */
+    public static String sniff(byte[] prefix, int length) {
+        for (int i = 0; i < SIGNATURES.length; i++) {
+            if (startsWith(prefix, length, SIGNATURES[i])) {
+                return TYPES[i];
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] prefix, int length, byte[] signature) {
+        if (length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (prefix[i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,46 +1,489 @@
 package hello.util;
+import hello.constants.FileConstants;
+
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
+/*
+ * Files are a header followed by AES-GCM segments authenticated one by one, under a key derived for the file:
+ *
+ *   header:  magic (4) | plaintext segment size (4) | salt (16) | nonce prefix (7) | reserved (1)
+ *   segment: ciphertext (up to SEGMENT_SIZE) | tag (16)
+ *
+ * A segment's nonce holds its index and a last-segment flag, so segments can't be reordered or truncated unnoticed
+ */
 public class EncryptionUtil {
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    private static final byte[] MAGIC = {'W', 'S', 'E', 2};
+    private static final int SALT_SIZE = 16;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    public static final int HEADER_SIZE = MAGIC.length + 4 + SALT_SIZE + NONCE_PREFIX_SIZE + 1;
+    private static final String KDF_ALGORITHM = "HmacSHA256";
+    private static final byte[] KDF_INFO = "segment key".getBytes(StandardCharsets.US_ASCII);
+    private static final int TAG_SIZE = 16;
+    private static final int ENCRYPTED_SEGMENT_SIZE = SEGMENT_SIZE + TAG_SIZE;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom random = new SecureRandom();
+    private static final int PARALLELISM = Integer.getInteger("encryption.parallelism", Runtime.getRuntime().availableProcessors());
+    private static final int BATCH_SEGMENTS = Math.max(1, PARALLELISM);
+    /* Payload size from which splitting segments across the crypto pool beats doing them on the calling thread */
+    private static final long PARALLEL_THRESHOLD = Long.getLong("encryption.parallel-threshold", 256 * 1024L);
+    private static final ForkJoinPool cryptoPool = new ForkJoinPool(BATCH_SEGMENTS);
+    /* Cipher instances are not thread-safe, so each request and pool thread keeps its own one ready for reuse */
+    private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+    private static final LongAdder ciphersAllocated = new LongAdder();
+    private static final LongAdder ciphersReused = new LongAdder();
+    /* Plaintext bytes through the cipher and the time it took, summed over threads, which give its throughput */
+    private static final LongAdder bytesEncrypted = new LongAdder();
+    private static final LongAdder bytesDecrypted = new LongAdder();
+    private static final LongAdder nanosEncrypting = new LongAdder();
+    private static final LongAdder nanosDecrypting = new LongAdder();
     private static SecretKeySpec skeySpec;
 
+    /* Never replaced once generated, since a new key would make every stored file unreadable */
     static {
         try {
-            System.out.println("Static constructing!");
-            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-            SecureRandom random = new SecureRandom();
-            keyGen.init(random);
-            SecretKey secretKey = keyGen.generateKey();
-            byte[] encodedSecretKey = secretKey.getEncoded();
-            skeySpec = new SecretKeySpec(encodedSecretKey, "AES");
-        }catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+            Path keyPath = Paths.get(System.getProperty("encryption.key-file",
+                    Paths.get(System.getProperty("user.home"), FileConstants.KEY_PATH).toString()));
+            skeySpec = new SecretKeySpec(Files.exists(keyPath) ? readKey(keyPath) : createKey(keyPath), "AES");
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException("Could not load the encryption key", e);
         }
     }
 
+    private static byte[] readKey(Path keyPath) throws IOException {
+        byte[] key = Files.readAllBytes(keyPath);
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalStateException("The encryption key in " + keyPath + " is not an AES key");
+        }
+        return key;
+    }
 
-    public static byte[] encrypt(byte[] input)
-            throws GeneralSecurityException, NoSuchPaddingException{
-        Cipher cipher = Cipher.getInstance("AES");
+    /* Another instance starting at the same time may have created it first, in which case its key is the one used */
+    private static byte[] createKey(Path keyPath) throws NoSuchAlgorithmException, IOException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(random);
+        byte[] key = keyGen.generateKey().getEncoded();
+        Path parent = keyPath.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        FileAttribute<?>[] attributes = Files.getFileStore(parent).supportsFileAttributeView(PosixFileAttributeView.class)
+                ? new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                : new FileAttribute<?>[0];
+        try (SeekableByteChannel channel = Files.newByteChannel(keyPath, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), attributes)) {
+            channel.write(ByteBuffer.wrap(key));
+        } catch (FileAlreadyExistsException e) {
+            return readKey(keyPath);
+        }
+        return key;
+    }
 
-        cipher.init(Cipher.ENCRYPT_MODE, skeySpec);
-        return cipher.doFinal(input);
 
+    public static byte[] encrypt(byte[] input) throws GeneralSecurityException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(HEADER_SIZE + input.length + TAG_SIZE);
+        try {
+            encrypt(new ByteArrayInputStream(input), output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return output.toByteArray();
     }
 
 
-    public static byte[] decrypt(byte[] input) throws GeneralSecurityException, NoSuchPaddingException{
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, skeySpec);
-        return cipher.doFinal(input);
+    public static byte[] decrypt(byte[] input) throws GeneralSecurityException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream((int) plaintextSize(input.length));
+        try {
+            decrypt(new ByteArrayInputStream(input), output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return output.toByteArray();
     }
 
-}
+    /* Encrypts the input a batch of segments at a time so memory use does not depend on the payload size */
+    public static void encrypt(InputStream input, OutputStream output) throws GeneralSecurityException, IOException {
+        byte[] header = newHeader();
+        output.write(header);
+        transform(Cipher.ENCRYPT_MODE, fileKey(header), input, output);
+    }
+
+    /* Decrypts the whole input a batch of segments at a time */
+    public static void decrypt(InputStream input, OutputStream output) throws GeneralSecurityException, IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        if (readFully(input, header, HEADER_SIZE) != HEADER_SIZE) {
+            throw new GeneralSecurityException("Truncated encrypted file header");
+        }
+        transform(Cipher.DECRYPT_MODE, fileKey(header), input, output);
+    }
+
+    /* Decrypts the plaintext bytes from start to end (both inclusive), reading only the segments that cover them */
+    public static void decrypt(SeekableByteChannel input, long start, long end, OutputStream output) throws GeneralSecurityException, IOException {
+        long encryptedSize = input.size();
+        long segments = segmentCount(encryptedSize);
+        if (start < 0 || end < start || end >= plaintextSize(encryptedSize)) {
+            throw new IllegalArgumentException("Range " + start + "-" + end + " is outside of the file");
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        readFully(input, 0, header, HEADER_SIZE);
+        FileKey fileKey = fileKey(header);
+
+        int firstSegment = (int) (start / SEGMENT_SIZE);
+        int lastSegment = (int) (end / SEGMENT_SIZE);
+        boolean parallel = (end - start + 1) >= PARALLEL_THRESHOLD;
+        Batch batch = new Batch(parallel ? BATCH_SEGMENTS : 1, ENCRYPTED_SEGMENT_SIZE, SEGMENT_SIZE);
+        for (int segment = firstSegment; segment <= lastSegment; segment += batch.count) {
+            batch.count = Math.min(batch.capacity, lastSegment - segment + 1);
+            for (int i = 0; i < batch.count; i++) {
+                long position = HEADER_SIZE + (long) (segment + i) * ENCRYPTED_SEGMENT_SIZE;
+                batch.inputLengths[i] = (int) Math.min(ENCRYPTED_SEGMENT_SIZE, encryptedSize - position);
+                readFully(input, position, batch.input(i), batch.inputLengths[i]);
+            }
+            process(Cipher.DECRYPT_MODE, fileKey, segment, segment + batch.count == segments, batch);
+            for (int i = 0; i < batch.count; i++) {
+                long segmentStart = (long) (segment + i) * SEGMENT_SIZE;
+                int from = segment + i == firstSegment ? (int) (start - segmentStart) : 0;
+                int to = segment + i == lastSegment ? (int) (end - segmentStart) + 1 : batch.outputLengths[i];
+                output.write(batch.outputs[i], from, to - from);
+            }
+        }
+    }
+
+    /* Header of a new encrypted file whose segments are written one at a time with encryptSegment */
+    public static byte[] newHeader() {
+        byte[] saltAndPrefix = new byte[SALT_SIZE + NONCE_PREFIX_SIZE];
+        random.nextBytes(saltAndPrefix);
+        return ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(SEGMENT_SIZE).put(saltAndPrefix).array();
+    }
+
+    /* Every segment but the last one must hold exactly SEGMENT_SIZE bytes, and no index may be encrypted twice */
+    public static byte[] encryptSegment(byte[] header, int segment, boolean last, byte[] plaintext, int length) throws GeneralSecurityException {
+        if (!last && length != SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Only the last segment can be shorter than " + SEGMENT_SIZE);
+        }
+        FileKey fileKey = fileKey(header);
+        Cipher cipher = cipher();
+        long started = System.nanoTime();
+        cipher.init(Cipher.ENCRYPT_MODE, fileKey.key, nonce(fileKey.noncePrefix, segment, last));
+        byte[] ciphertext = cipher.doFinal(plaintext, 0, length);
+        count(Cipher.ENCRYPT_MODE, length, started);
+        return ciphertext;
+    }
+
+    public static byte[] decryptSegment(byte[] header, int segment, boolean last, byte[] ciphertext) throws GeneralSecurityException {
+        FileKey fileKey = fileKey(header);
+        Cipher cipher = cipher();
+        long started = System.nanoTime();
+        cipher.init(Cipher.DECRYPT_MODE, fileKey.key, nonce(fileKey.noncePrefix, segment, last));
+        byte[] plaintext = cipher.doFinal(ciphertext);
+        count(Cipher.DECRYPT_MODE, plaintext.length, started);
+        return plaintext;
+    }
+
+    /* Number of complete segments in the given size of a file being assembled, and the other way around */
+    public static long completeSegments(long encryptedSize) {
+        return Math.max(0, encryptedSize - HEADER_SIZE) / ENCRYPTED_SEGMENT_SIZE;
+    }
+
+    public static long completeSegmentsSize(long segments) {
+        return HEADER_SIZE + segments * ENCRYPTED_SEGMENT_SIZE;
+    }
+
+    /* Seals a small standalone payload under a random nonce, bound to the given associated data */
+    public static byte[] seal(byte[] plaintext, int length, byte[] associatedData) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_PREFIX_SIZE + 5];
+        random.nextBytes(nonce);
+        Cipher cipher = cipher();
+        cipher.init(Cipher.ENCRYPT_MODE, skeySpec, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(associatedData);
+        byte[] sealed = Arrays.copyOf(nonce, nonce.length + length + TAG_SIZE);
+        cipher.doFinal(plaintext, 0, length, sealed, nonce.length);
+        return sealed;
+    }
+
+    public static byte[] open(byte[] sealed, byte[] associatedData) throws GeneralSecurityException {
+        int nonceSize = NONCE_PREFIX_SIZE + 5;
+        if (sealed.length < nonceSize + TAG_SIZE) {
+            throw new GeneralSecurityException("Truncated sealed payload");
+        }
+        Cipher cipher = cipher();
+        cipher.init(Cipher.DECRYPT_MODE, skeySpec, new GCMParameterSpec(TAG_SIZE * 8, sealed, 0, nonceSize));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(sealed, nonceSize, sealed.length - nonceSize);
+    }
+
+    /* Seals or opens consecutive segments of a stream */
+    private static void transform(int mode, FileKey fileKey, InputStream input, OutputStream output) throws GeneralSecurityException, IOException {
+        int inputSize = mode == Cipher.ENCRYPT_MODE ? SEGMENT_SIZE : ENCRYPTED_SEGMENT_SIZE;
+        int outputSize = mode == Cipher.ENCRYPT_MODE ? ENCRYPTED_SEGMENT_SIZE : SEGMENT_SIZE;
+        // One extra slot holds the read-ahead segment: a full segment is only the last one if nothing follows it
+        Batch batch = new Batch(BATCH_SEGMENTS + 1, inputSize, outputSize);
+        long bytesRead = 0;
+        int segment = 0;
+        int buffered = 0;
+        boolean endOfInput = false;
+        while (true) {
+            while (!endOfInput && buffered < batch.capacity) {
+                int read = readFully(input, batch.input(buffered), inputSize);
+                if (read == 0 && (segment > 0 || buffered > 0)) {
+                    endOfInput = true;
+                    break;
+                }
+                batch.inputLengths[buffered++] = read;
+                bytesRead += read;
+                endOfInput = read < inputSize;
+            }
+            batch.count = endOfInput ? buffered : buffered - 1;
+            process(mode, fileKey, segment, endOfInput, batch, bytesRead >= PARALLEL_THRESHOLD);
+            for (int i = 0; i < batch.count; i++) {
+                output.write(batch.outputs[i], 0, batch.outputLengths[i]);
+            }
+            if (endOfInput) {
+                return;
+            }
+            batch.moveToFront(buffered - 1);
+            segment += batch.count;
+            buffered = 1;
+        }
+    }
+
+    private static void process(int mode, FileKey fileKey, int firstSegment, boolean includesLast, Batch batch) throws GeneralSecurityException {
+        process(mode, fileKey, firstSegment, includesLast, batch, batch.capacity > 1);
+    }
+
+    /* Runs the cipher over every segment of the batch, on the crypto pool when it is large enough */
+    private static void process(int mode, FileKey fileKey, int firstSegment, boolean includesLast, Batch batch, boolean parallel) throws GeneralSecurityException {
+        if (!parallel || batch.count < 2 || PARALLELISM < 2) {
+            Cipher cipher = cipher();
+            for (int i = 0; i < batch.count; i++) {
+                processSegment(cipher, mode, fileKey, firstSegment, includesLast, batch, i);
+            }
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(batch.count);
+        for (int i = 0; i < batch.count; i++) {
+            int index = i;
+            tasks.add(() -> {
+                processSegment(cipher(), mode, fileKey, firstSegment, includesLast, batch, index);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> result : cryptoPool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while processing segments", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /* Cipher of the calling thread, created on first use and re-initialised for every segment afterwards */
+    private static Cipher cipher() throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            ciphers.set(cipher);
+            ciphersAllocated.increment();
+        } else {
+            ciphersReused.increment();
+        }
+        return cipher;
+    }
 
+    public static long getCiphersAllocated() {
+        return ciphersAllocated.sum();
+    }
+
+    public static long getCiphersReused() {
+        return ciphersReused.sum();
+    }
+
+    public static long getBytesEncrypted() {
+        return bytesEncrypted.sum();
+    }
+
+    public static long getBytesDecrypted() {
+        return bytesDecrypted.sum();
+    }
+
+    public static long getNanosEncrypting() {
+        return nanosEncrypting.sum();
+    }
+
+    public static long getNanosDecrypting() {
+        return nanosDecrypting.sum();
+    }
+
+    private static void count(int mode, int plaintextLength, long startedNanos) {
+        long elapsed = System.nanoTime() - startedNanos;
+        if (mode == Cipher.ENCRYPT_MODE) {
+            bytesEncrypted.add(plaintextLength);
+            nanosEncrypting.add(elapsed);
+        } else {
+            bytesDecrypted.add(plaintextLength);
+            nanosDecrypting.add(elapsed);
+        }
+    }
+
+    private static void processSegment(Cipher cipher, int mode, FileKey fileKey, int firstSegment, boolean includesLast,
+                                       Batch batch, int index) throws GeneralSecurityException {
+        boolean last = includesLast && index == batch.count - 1;
+        long started = System.nanoTime();
+        cipher.init(mode, fileKey.key, nonce(fileKey.noncePrefix, firstSegment + index, last));
+        batch.outputLengths[index] = cipher.doFinal(batch.inputs[index], 0, batch.inputLengths[index], batch.output(index), 0);
+        count(mode, mode == Cipher.ENCRYPT_MODE ? batch.inputLengths[index] : batch.outputLengths[index], started);
+    }
+
+    /* Size of the original content of an encrypted file, computed from the encrypted size alone */
+    public static long plaintextSize(long encryptedSize) {
+        return encryptedSize - HEADER_SIZE - segmentCount(encryptedSize) * TAG_SIZE;
+    }
+
+    private static long segmentCount(long encryptedSize) {
+        long segmentsSize = encryptedSize - HEADER_SIZE;
+        if (segmentsSize < TAG_SIZE) {
+            throw new IllegalArgumentException("Not an encrypted file of size " + encryptedSize);
+        }
+        return (segmentsSize + ENCRYPTED_SEGMENT_SIZE - 1) / ENCRYPTED_SEGMENT_SIZE;
+    }
+
+    /* Key and nonce prefix of the file with the given header */
+    private static FileKey fileKey(byte[] header) throws GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || buffer.getInt() != SEGMENT_SIZE) {
+            throw new GeneralSecurityException("Unsupported encrypted file format");
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        buffer.get(salt);
+        byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        buffer.get(noncePrefix);
+
+        Mac mac = Mac.getInstance(KDF_ALGORITHM);
+        mac.init(new SecretKeySpec(salt, KDF_ALGORITHM));
+        byte[] pseudoRandomKey = mac.doFinal(skeySpec.getEncoded());
+        mac.init(new SecretKeySpec(pseudoRandomKey, KDF_ALGORITHM));
+        mac.update(KDF_INFO);
+        mac.update((byte) 1);
+        byte[] key = Arrays.copyOf(mac.doFinal(), skeySpec.getEncoded().length);
+        return new FileKey(new SecretKeySpec(key, "AES"), noncePrefix);
+    }
+
+    private static GCMParameterSpec nonce(byte[] noncePrefix, int segment, boolean last) {
+        byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_SIZE + 5)
+                .put(noncePrefix)
+                .putInt(segment)
+                .put((byte) (last ? 1 : 0))
+                .array();
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        int read;
+        while (total < length && (read = input.read(buffer, total, length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static void readFully(SeekableByteChannel input, long position, byte[] buffer, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        input.position(position);
+        while (target.hasRemaining()) {
+            if (input.read(target) == -1) {
+                throw new IOException("Unexpected end of encrypted file");
+            }
+        }
+    }
+
+    private static class FileKey {
+        private final SecretKeySpec key;
+        private final byte[] noncePrefix;
+
+        private FileKey(SecretKeySpec key, byte[] noncePrefix) {
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+        }
+    }
+
+    /* Reusable buffers for a run of consecutive segments, allocated on first use so small payloads stay small */
+    private static class Batch {
+        private final int capacity;
+        private final int inputSize;
+        private final int outputSize;
+        private final byte[][] inputs;
+        private final int[] inputLengths;
+        private final byte[][] outputs;
+        private final int[] outputLengths;
+        private int count;
+
+        private Batch(int capacity, int inputSize, int outputSize) {
+            this.capacity = capacity;
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            inputs = new byte[capacity][];
+            inputLengths = new int[capacity];
+            outputs = new byte[capacity][];
+            outputLengths = new int[capacity];
+        }
+
+        private byte[] input(int index) {
+            if (inputs[index] == null) {
+                inputs[index] = new byte[inputSize];
+            }
+            return inputs[index];
+        }
+
+        private byte[] output(int index) {
+            if (outputs[index] == null) {
+                outputs[index] = new byte[outputSize];
+            }
+            return outputs[index];
+        }
+
+        private void moveToFront(int index) {
+            byte[] swap = inputs[0];
+            inputs[0] = inputs[index];
+            inputs[index] = swap;
+            inputLengths[0] = inputLengths[index];
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package hello.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/*
+ * Consistent hashing of keys over nodes placed at many points of the ring, the owners of a key being the distinct nodes
+ * met clockwise from its hash
+ */
+public class HashRing {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<String> nodes;
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public HashRing(List<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(nodes)));
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /* The first node clockwise from the key, null for an empty ring */
+    public String primary(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    /* Up to count distinct nodes clockwise from the key, the primary first */
+    public List<String> owners(String key, int count) {
+        Set<String> owners = new LinkedHashSet<>();
+        int wanted = Math.min(count, nodes.size());
+        long hash = hash(key);
+        Iterator<String> clockwise = points.tailMap(hash, true).values().iterator();
+        boolean wrapped = false;
+        while (owners.size() < wanted) {
+            if (!clockwise.hasNext()) {
+                if (wrapped) {
+                    break;
+                }
+                clockwise = points.headMap(hash, false).values().iterator();
+                wrapped = true;
+                continue;
+            }
+            owners.add(clockwise.next());
+        }
+        return new ArrayList<>(owners);
+    }
+
+    /* FNV-1a over the characters, then the MurmurHash3 finalizer so that similar keys land far apart */
+    static long hash(String key) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * FNV_PRIME;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
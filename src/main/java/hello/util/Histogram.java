@@ -0,0 +1,74 @@
+package hello.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Latency histogram with fixed buckets from 50 microseconds to 30 seconds, recorded into striped counters */
+public class Histogram {
+
+    private static final long[] BOUNDS_NANOS = {
+            50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L, 30_000_000_000L
+    };
+    private static final String[] BOUNDS_SECONDS = new String[BOUNDS_NANOS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+            BOUNDS_SECONDS[i] = Double.toString(BOUNDS_NANOS[i] / 1e9);
+        }
+    }
+
+    /* The last bucket counts what is above every bound */
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int low = 0;
+        int high = BOUNDS_NANOS.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (BOUNDS_NANOS[middle] < nanos) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        buckets[low].increment();
+        sumNanos.add(nanos);
+    }
+
+    /* Records the time elapsed since the given System.nanoTime() */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /* Writes the cumulative buckets, sum and count as the series of a histogram, the labels going in every one of them */
+    public void write(Writer out, String name, String labels) throws IOException {
+        String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i < BOUNDS_SECONDS.length ? BOUNDS_SECONDS[i] : "+Inf";
+            out.write(name + "_bucket" + prefix + "le=\"" + bound + "\"} " + cumulative + "\n");
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.write(name + "_sum" + suffix + " " + sumNanos.sum() / 1e9 + "\n");
+        out.write(name + "_count" + suffix + " " + cumulative + "\n");
+    }
+}
@@ -0,0 +1,111 @@
+package hello.util;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/* Scales images down to fit in a box, decoding much bigger sources with subsampling and halving the rest of the way */
+public final class ImageResizer {
+
+    public static final String PNG = "png";
+    public static final String JPEG = "jpeg";
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    static {
+        // What the readers have read of a stream is kept in memory, and let go as they move past it, not spilled to disk
+        ImageIO.setUseCache(false);
+    }
+
+    private ImageResizer() {
+    }
+
+    /*
+     * The image read from the stream, scaled to fit in the width and height, either of which can be 0, and encoded in the
+     * given format
+     */
+    public static byte[] resize(InputStream image, int maxWidth, int maxHeight, String format, long maxPixels) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(image)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No decoder for the image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                if ((long) sourceWidth * sourceHeight > maxPixels) {
+                    throw new IOException("The image has " + sourceWidth + "x" + sourceHeight + " pixels");
+                }
+                double scale = Math.min(1, Math.min(maxWidth > 0 ? (double) maxWidth / sourceWidth : 1,
+                        maxHeight > 0 ? (double) maxHeight / sourceHeight : 1));
+                int width = Math.max(1, (int) Math.round(sourceWidth * scale));
+                int height = Math.max(1, (int) Math.round(sourceHeight * scale));
+
+                // Leaves at least twice the target size, for the last halving to smooth out
+                int subsampling = Math.max(1, Math.min(sourceWidth / (2 * width), sourceHeight / (2 * height)));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return encode(scale(reader.read(0, param), width, height, format.equals(JPEG)), format);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /* Halves the image until the next halving would go past the target, then scales to the target */
+    private static BufferedImage scale(BufferedImage source, int width, int height, boolean opaque) {
+        BufferedImage current = source;
+        do {
+            int nextWidth = Math.max(width, current.getWidth() / 2);
+            int nextHeight = Math.max(height, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(nextWidth, nextHeight, opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = next.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                if (opaque) {
+                    // JPEG has no transparency, transparent pixels end up white rather than black
+                    graphics.setColor(Color.WHITE);
+                    graphics.fillRect(0, 0, nextWidth, nextHeight);
+                }
+                graphics.drawImage(current, 0, 0, nextWidth, nextHeight, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = next;
+        } while (current.getWidth() != width || current.getHeight() != height);
+        return current;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals(JPEG)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,118 @@
+package hello.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Writes an asynchronous response with non-blocking servlet output, producing chunks on the executor one at a time */
+public class NonBlockingWriter implements WriteListener {
+
+    private static final Log log = LogFactory.getLog(NonBlockingWriter.class);
+    private static final LongAdder failures = new LongAdder();
+
+    private final AsyncContext async;
+    private final String name;
+    private final ServletOutputStream output;
+    private final Executor executor;
+    private final ChunkSource source;
+    private final Runnable onClose;
+
+    private byte[] pending;
+    private boolean producing;
+    private boolean finished;
+    private boolean closed;
+
+    public NonBlockingWriter(AsyncContext async, String name, Executor executor, ChunkSource source, Runnable onClose) throws IOException {
+        this.async = async;
+        this.name = name;
+        this.output = async.getResponse().getOutputStream();
+        this.executor = executor;
+        this.source = source;
+        this.onClose = onClose;
+    }
+
+    /* The container calls onWritePossible as soon as the output is ready */
+    public void start() {
+        output.setWriteListener(this);
+    }
+
+    @Override
+    public synchronized void onWritePossible() {
+        try {
+            while (output.isReady()) {
+                if (pending != null) {
+                    byte[] chunk = pending;
+                    pending = null;
+                    output.write(chunk);
+                } else if (finished) {
+                    close();
+                    return;
+                } else {
+                    if (!producing) {
+                        producing = true;
+                        executor.execute(this::produce);
+                    }
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    /* Writing failed, which is mostly the client going away */
+    @Override
+    public synchronized void onError(Throwable t) {
+        log.debug("Writing " + name + " failed", t);
+        close();
+    }
+
+    /* Bodies cut short because producing them failed */
+    public static long getFailures() {
+        return failures.sum();
+    }
+
+    private void produce() {
+        byte[] chunk;
+        try {
+            chunk = source.next();
+        } catch (Exception e) {
+            // The headers are out already, a body cut short is all the client can be told
+            log.warn("Producing " + name + " failed, its body was cut short", e);
+            failures.increment();
+            synchronized (this) {
+                close();
+            }
+            return;
+        }
+        synchronized (this) {
+            producing = false;
+            if (chunk == null) {
+                finished = true;
+            } else {
+                pending = chunk;
+            }
+            if (!closed) {
+                onWritePossible();
+            }
+        }
+    }
+
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            onClose.run();
+        } finally {
+            async.complete();
+        }
+    }
+}
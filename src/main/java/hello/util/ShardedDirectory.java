@@ -0,0 +1,146 @@
+package hello.util;
+
+import hello.constants.FileConstants;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/*
+ * A directory whose files are fanned out into two levels of subdirectories by a hash of their names, ab/cd/name. Until
+ * migrate has moved the files of an older flat directory, lookups fall back to the top level
+ */
+public class ShardedDirectory {
+
+    private static final String MARKER = ".sharded";
+    private static final String[] SHARD_NAMES = new String[256];
+
+    static {
+        for (int i = 0; i < SHARD_NAMES.length; i++) {
+            SHARD_NAMES[i] = String.format("%02x", i);
+        }
+    }
+
+    private final Path directory;
+    private final Set<Integer> createdShards = ConcurrentHashMap.newKeySet();
+    private volatile boolean migrated;
+
+    private ShardedDirectory(Path directory, boolean migrated) {
+        this.directory = directory;
+        this.migrated = migrated;
+    }
+
+    /* A directory created here is sharded from the start, an existing one only once it has been migrated */
+    public static ShardedDirectory open(Path directory) throws IOException {
+        if (Files.notExists(directory)) {
+            Files.createDirectories(directory);
+            Files.createFile(directory.resolve(MARKER));
+        }
+        return new ShardedDirectory(directory, Files.exists(directory.resolve(MARKER)));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /* Where the named file is stored, which is in its shard unless the migration hasn't reached it yet */
+    public Path resolve(String name) {
+        Path path = shardPath(name);
+        if (!migrated && Files.notExists(path) && Files.exists(directory.resolve(name))) {
+            return directory.resolve(name);
+        }
+        return path;
+    }
+
+    /* Path in its shard for a file about to be written, with the shard created if it didn't exist yet */
+    public Path prepare(String name) throws IOException {
+        int shard = shard(name);
+        Path path = shardPath(name);
+        if (!createdShards.contains(shard)) {
+            Files.createDirectories(path.getParent());
+            createdShards.add(shard);
+        }
+        return path;
+    }
+
+    /* Moves files left at the top level into their shards. A file that was written again meanwhile has a newer copy there already */
+    public void migrate(Function<String, Lock> lockFor) throws IOException {
+        if (migrated) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path legacyPath : files) {
+                String name = legacyPath.getFileName().toString();
+                if (name.equals(MARKER) || name.endsWith(FileConstants.TEMP_SUFFIX) || !Files.isRegularFile(legacyPath)) {
+                    continue;
+                }
+                Lock lock = lockFor.apply(name);
+                lock.lock();
+                try {
+                    Path path = prepare(name);
+                    if (Files.exists(path)) {
+                        Files.deleteIfExists(legacyPath);
+                    } else {
+                        Files.move(legacyPath, path, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted since it was listed
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (Files.notExists(directory.resolve(MARKER))) {
+            Files.createFile(directory.resolve(MARKER));
+        }
+        migrated = true;
+    }
+
+    /* Visits every file in the shards, without listing other subdirectories */
+    public void forEachFile(FileVisitor visitor) throws IOException {
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(directory, ShardedDirectory::isShard)) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> subshards = Files.newDirectoryStream(shard, ShardedDirectory::isShard)) {
+                    for (Path subshard : subshards) {
+                        try (DirectoryStream<Path> files = Files.newDirectoryStream(subshard)) {
+                            for (Path path : files) {
+                                visitor.visit(path);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private Path shardPath(String name) {
+        int shard = shard(name);
+        return directory.resolve(SHARD_NAMES[shard >>> 8]).resolve(SHARD_NAMES[shard & 0xFF]).resolve(name);
+    }
+
+    /* Both levels of the shard, a byte each, from a hash that is stable across runs */
+    private static int shard(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() & 0xFFFF);
+    }
+
+    private static boolean isShard(Path path) {
+        String name = path.getFileName().toString();
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 && Character.digit(name.charAt(1), 16) >= 0
+                && Files.isDirectory(path);
+    }
+
+    public interface FileVisitor {
+        void visit(Path path) throws IOException;
+    }
+}
@@ -0,0 +1,72 @@
+package hello.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/* A ZIP archive produced a chunk at a time as it is written, opening its entries one after the other */
+public class ZipChunkSource implements ChunkSource {
+
+    /* Body of the named entry, or null to leave it out of the archive */
+    public interface EntryOpener {
+        ChunkSource open(String name) throws IOException, GeneralSecurityException;
+    }
+
+    private final Iterator<String> names;
+    private final EntryOpener opener;
+    private final ByteArrayOutputStream archived = new ByteArrayOutputStream();
+    private final ZipOutputStream zip = new ZipOutputStream(archived);
+
+    private ChunkSource entry;
+    private boolean finished;
+
+    public ZipChunkSource(Iterator<String> names, EntryOpener opener, int level) {
+        this.names = names;
+        this.opener = opener;
+        zip.setLevel(level);
+    }
+
+    @Override
+    public byte[] next() throws IOException, GeneralSecurityException {
+        while (archived.size() == 0 && !finished) {
+            if (entry == null) {
+                if (!names.hasNext()) {
+                    zip.close();
+                    finished = true;
+                    continue;
+                }
+                String name = names.next();
+                entry = opener.open(name);
+                if (entry != null) {
+                    zip.putNextEntry(new ZipEntry(name));
+                }
+                continue;
+            }
+            byte[] chunk = entry.next();
+            if (chunk == null) {
+                zip.closeEntry();
+                entry.close();
+                entry = null;
+            } else {
+                zip.write(chunk);
+            }
+        }
+        if (archived.size() == 0) {
+            return null;
+        }
+        byte[] chunk = archived.toByteArray();
+        archived.reset();
+        return chunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (entry != null) {
+            entry.close();
+            entry = null;
+        }
+    }
+}
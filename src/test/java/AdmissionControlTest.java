@@ -0,0 +1,135 @@
+import hello.constants.FileConstants;
+import hello.controllers.AdmissionFilter;
+import hello.exceptions.InsufficientStorageException;
+import hello.models.FileMetadata;
+import hello.services.AdmissionControl;
+import hello.services.FileIndex;
+import hello.services.Metrics;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/* Limits reached in a few requests: two requests at once per owner, bursts of three then one every 100s, and a quota of 1000 bytes */
+public class AdmissionControlTest {
+
+    private FileIndex fileIndex;
+
+    private AdmissionControl admissionControl;
+
+    private AdmissionFilter admissionFilter;
+
+    @Before
+    public void setUp() {
+        fileIndex = new FileIndex();
+        admissionControl = new AdmissionControl(2, 0.01, 3, 1000, new Metrics());
+        ReflectionTestUtils.setField(admissionControl, "fileIndex", fileIndex);
+        admissionFilter = new AdmissionFilter();
+        ReflectionTestUtils.setField(admissionFilter, "admissionControl", admissionControl);
+    }
+
+    @Test
+    public void rateLimited() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Requests within the burst should be admitted", HttpStatus.OK.value(), send("GET", "/files", "rate", 0).getStatus());
+        }
+        MockHttpServletResponse response = send("GET", "/files", "rate", 0);
+        assertEquals("Wrong status code past the rate limit", HttpStatus.TOO_MANY_REQUESTS.value(), response.getStatus());
+        assertTrue("Clients should be told when to retry", Long.parseLong(response.getHeader(HttpHeaders.RETRY_AFTER)) > 0);
+        assertEquals("Other owners should not be limited", HttpStatus.OK.value(), send("GET", "/files", "other", 0).getStatus());
+        assertEquals("Requests without an owner are left to the handlers", HttpStatus.OK.value(), send("GET", "/files", null, 0).getStatus());
+    }
+
+    @Test
+    public void concurrencyLimited() throws Exception {
+        admissionControl.admit("busy", 0, null);
+        admissionControl.admit("busy", 0, null);
+        assertEquals("Wrong status code past the concurrency limit", HttpStatus.TOO_MANY_REQUESTS.value(),
+                send("GET", "/files", "busy", 0).getStatus());
+        admissionControl.release("busy");
+        assertEquals("Released requests should make room for others", HttpStatus.OK.value(), send("GET", "/files", "busy", 0).getStatus());
+    }
+
+    @Test
+    public void asyncRequestsReleasedOnCompletion() throws Exception {
+        MockHttpServletRequest first = request("GET", "/file/a.png", "async", 0);
+        MockHttpServletRequest second = request("GET", "/file/a.png", "async", 0);
+        for (MockHttpServletRequest request : new MockHttpServletRequest[]{first, second}) {
+            request.setAsyncSupported(true);
+            admissionFilter.doFilter(request, new MockHttpServletResponse(), (req, res) -> req.startAsync());
+        }
+        assertEquals("Asynchronous requests should count until they complete", HttpStatus.TOO_MANY_REQUESTS.value(),
+                send("GET", "/files", "async", 0).getStatus());
+        first.getAsyncContext().complete();
+        assertEquals("Completed asynchronous requests should be released", HttpStatus.OK.value(), send("GET", "/files", "async", 0).getStatus());
+    }
+
+    @Test
+    public void quotaExceeded() throws Exception {
+        fileIndex.put("a.png", metadata("quota", 600));
+        assertEquals("Wrong status code past the quota", HttpStatus.INSUFFICIENT_STORAGE.value(),
+                send("POST", "/file", "quota", 500).getStatus());
+        assertEquals("Replacing a file should only count the bytes it adds", HttpStatus.OK.value(),
+                send("PUT", "/file/a.png", "quota", 900).getStatus());
+        assertEquals("Reads don't store anything", HttpStatus.OK.value(), send("GET", "/file/a.png", "quota", 0).getStatus());
+
+        fileIndex.put("a.png", metadata("quota", 100));
+        assertEquals("Usage should follow the size of replaced files", HttpStatus.CREATED.value(), send("POST", "/file", "quota", 800).getStatus());
+        fileIndex.remove("a.png");
+        assertEquals(0, fileIndex.getUsage("quota"));
+    }
+
+    @Test
+    public void quotaReservedAtCommit() {
+        fileIndex.put("a.png", metadata("commit", 600));
+        long reserved = admissionControl.reserve("commit", 300, null);
+        try {
+            admissionControl.reserve("commit", 200, null);
+            fail("Commits in progress should count against the quota");
+        } catch (InsufficientStorageException expected) {
+        }
+        assertEquals("Replacing a file should only reserve the bytes it adds", 100,
+                admissionControl.reserve("commit", 700, fileIndex.get("a.png")));
+        admissionControl.settle("commit", 100);
+        admissionControl.settle("commit", reserved);
+        assertEquals(400, admissionControl.reserve("commit", 400, null));
+    }
+
+    private MockHttpServletResponse send(String method, String path, String owner, int contentLength) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        response.setStatus(method.equals("POST") ? HttpStatus.CREATED.value() : HttpStatus.OK.value());
+        MockFilterChain chain = new MockFilterChain();
+        admissionFilter.doFilter(request(method, path, owner, contentLength), response, chain);
+        if (response.getStatus() >= 400) {
+            assertNull("Rejected requests should not reach the handlers", chain.getRequest());
+        }
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String method, String path, String owner, int contentLength) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        if (owner != null) {
+            request.addHeader(FileConstants.CLIENT_SECRET_HEADER, owner);
+        }
+        if (contentLength > 0) {
+            request.setContent(new byte[contentLength]);
+        }
+        return request;
+    }
+
+    private static FileMetadata metadata(String owner, long size) {
+        FileMetadata metadata = new FileMetadata();
+        metadata.setOwner(owner);
+        metadata.setSize(size);
+        return metadata;
+    }
+}
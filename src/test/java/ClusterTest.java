@@ -0,0 +1,253 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import hello.Application;
+import hello.constants.FileConstants;
+import hello.util.HashRing;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ * Instances of the application run as separate processes on localhost ports, each in its own directory under
+ * target/cluster-test, sharing files with two copies of each. A fourth instance joins once files are stored.
+ */
+public class ClusterTest {
+
+    private static final String SECRET = "cluster-test";
+
+    private static final String CLIENT_SECRET_VALUE = "user";
+
+    private static final int REPLICAS = 2;
+
+    private static final int FILES = 12;
+
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(90);
+
+    private static final Path DIRECTORY = Paths.get("target", "cluster-test");
+
+    private static final Map<String, Process> nodes = new LinkedHashMap<>();
+
+    private static final TestRestTemplate restTemplate = new TestRestTemplate();
+
+    private static byte[] firstContent;
+
+    private static byte[] secondContent;
+
+    @BeforeClass
+    public static void startCluster() throws Exception {
+        FileUtils.deleteDirectory(DIRECTORY.toFile());
+        firstContent = FileUtils.readFileToByteArray(new File(ClusterTest.class.getResource("/javascript.png").toURI()));
+        secondContent = FileUtils.readFileToByteArray(new File(ClusterTest.class.getResource("/javascript2.png").toURI()));
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            urls.add("http://localhost:" + freePort());
+        }
+        for (String url : urls) {
+            start(url, urls);
+        }
+        for (String url : urls) {
+            awaitStarted(url);
+        }
+    }
+
+    @AfterClass
+    public static void stopCluster() throws Exception {
+        for (Process process : nodes.values()) {
+            process.destroy();
+        }
+        for (Process process : nodes.values()) {
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void filesAreSharedAcrossInstances() throws Exception {
+        List<String> urls = new ArrayList<>(nodes.keySet());
+        HashRing ring = new HashRing(urls, 160);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            String url = urls.get(i % urls.size());
+            String id = upload(url, firstContent).getBody();
+            assertEquals("New files should be owned by the instance storing them", url, ring.primary(id));
+            ids.add(id);
+        }
+        for (String id : ids) {
+            for (String url : urls) {
+                assertArrayEquals("Any instance should serve any file", firstContent, download(url, id).getBody());
+            }
+        }
+        awaitPlaced(ids, ring);
+
+        // Changes go to the primary owner from anywhere, and reach the other copy shortly after
+        String id = ids.get(0);
+        String other = urls.stream().filter(url -> !ring.owners(id, REPLICAS).contains(url)).findFirst().get();
+        assertEquals("Wrong status code for a file updated through another instance", HttpStatus.OK,
+                restTemplate.exchange(other + "/file/" + id, HttpMethod.PUT, uploadEntity(secondContent, CLIENT_SECRET_VALUE), JsonNode.class).getStatusCode());
+        await("The update should reach every copy", () -> urls.stream().allMatch(url -> Arrays.equals(secondContent, download(url, id).getBody())));
+        assertEquals("Ownership should be checked by the owner", HttpStatus.FORBIDDEN,
+                restTemplate.exchange(other + "/file/" + id, HttpMethod.DELETE, new HttpEntity<>(headers("someone else")), JsonNode.class).getStatusCode());
+
+        ResponseEntity<JsonNode> listing = restTemplate.exchange(urls.get(1) + "/files?owned=true", HttpMethod.GET,
+                new HttpEntity<>(headers(CLIENT_SECRET_VALUE)), JsonNode.class);
+        List<String> listed = new ArrayList<>();
+        listing.getBody().forEach(file -> listed.add(file.get("name").asText()));
+        assertEquals("Every file should be listed once from any instance", ids.size(), listed.size());
+        assertTrue("Every file should be listed from any instance", listed.containsAll(ids));
+
+        String deleted = ids.remove(ids.size() - 1);
+        assertEquals(HttpStatus.OK, restTemplate.exchange(other + "/file/" + deleted, HttpMethod.DELETE,
+                new HttpEntity<>(headers(CLIENT_SECRET_VALUE)), JsonNode.class).getStatusCode());
+        await("A delete should reach every copy", () -> ring.owners(deleted, REPLICAS).stream().noneMatch(url -> hasCopy(url, deleted)));
+
+        // A fourth instance joins, and the files it now owns are moved to it
+        String joined = "http://localhost:" + freePort();
+        List<String> grown = new ArrayList<>(urls);
+        grown.add(joined);
+        start(joined, grown);
+        awaitStarted(joined);
+        restTemplate.exchange(urls.get(0) + "/cluster/nodes", HttpMethod.PUT, new HttpEntity<>(grown, internalHeaders()), JsonNode.class);
+        HashRing grownRing = new HashRing(grown, 160);
+        assertTrue("Some files should move to the instance that joined", ids.stream().anyMatch(file -> grownRing.owners(file, REPLICAS).contains(joined)));
+        awaitPlaced(ids, grownRing);
+        for (String file : ids) {
+            byte[] expected = file.equals(id) ? secondContent : firstContent;
+            for (String url : grown) {
+                assertArrayEquals("Files should still be served from any instance after rebalancing", expected, download(url, file).getBody());
+            }
+        }
+
+        // Either copy serves a file while the other instance is down
+        String stopped = grownRing.primary(id);
+        nodes.get(stopped).destroy();
+        nodes.get(stopped).waitFor(10, TimeUnit.SECONDS);
+        for (String url : grown) {
+            if (!url.equals(stopped)) {
+                assertArrayEquals("A copy should serve the file while its primary is down", secondContent, download(url, id).getBody());
+            }
+        }
+    }
+
+    private static void start(String url, List<String> cluster) throws IOException {
+        Path directory = Files.createDirectories(DIRECTORY.resolve(Integer.toString(port(url))));
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-Xmx256m", "-Dencryption.key-file=" + directory.resolve("key.key").toAbsolutePath(), "-cp", System.getProperty("java.class.path"),
+                Application.class.getName(),
+                "--server.port=" + port(url),
+                "--cluster.self=" + url,
+                "--cluster.nodes=" + String.join(",", cluster),
+                "--cluster.replicas=" + REPLICAS,
+                "--cluster.secret=" + SECRET)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("output.log").toFile());
+        nodes.put(url, builder.start());
+    }
+
+    private static void awaitStarted(String url) throws Exception {
+        await("The instance at " + url + " should start", () -> {
+            try {
+                return restTemplate.exchange(url + "/cluster/nodes", HttpMethod.GET, new HttpEntity<>(internalHeaders()), JsonNode.class)
+                        .getStatusCode() == HttpStatus.OK;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        });
+    }
+
+    /* Waits until the owners of every file have it and the other instances don't */
+    private static void awaitPlaced(List<String> ids, HashRing ring) throws Exception {
+        await("Files should be copied to their owners only", () -> ids.stream().allMatch(id -> ring.getNodes().stream()
+                .allMatch(url -> hasCopy(url, id) == ring.owners(id, REPLICAS).contains(url))));
+    }
+
+    private static boolean hasCopy(String url, String id) {
+        return restTemplate.exchange(url + "/cluster/files/" + id, HttpMethod.HEAD, new HttpEntity<>(internalHeaders()), Void.class)
+                .getStatusCode() == HttpStatus.OK;
+    }
+
+    private static void await(String message, BooleanSupplier condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    private static ResponseEntity<String> upload(String url, byte[] content) {
+        ResponseEntity<String> response = restTemplate.postForEntity(url + "/file", uploadEntity(content, CLIENT_SECRET_VALUE), String.class);
+        assertEquals("Wrong status code for an upload", HttpStatus.CREATED, response.getStatusCode());
+        return response;
+    }
+
+    private static ResponseEntity<byte[]> download(String url, String id) {
+        return restTemplate.exchange(url + "/file/" + id, HttpMethod.GET, null, byte[].class);
+    }
+
+    private static HttpEntity<?> uploadEntity(byte[] content, String clientSecret) {
+        HttpHeaders partHeaders = new HttpHeaders();
+        partHeaders.setContentType(MediaType.IMAGE_PNG);
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<>();
+        map.add("file", new HttpEntity<>(new ByteArrayResource(content) {
+            @Override
+            public String getFilename() {
+                return "image.png";
+            }
+        }, partHeaders));
+        HttpHeaders headers = headers(clientSecret);
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        return new HttpEntity<>(map, headers);
+    }
+
+    private static HttpHeaders headers(String clientSecret) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(FileConstants.CLIENT_SECRET_HEADER, clientSecret);
+        return headers;
+    }
+
+    private static HttpHeaders internalHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(FileConstants.CLUSTER_SECRET_HEADER, SECRET);
+        return headers;
+    }
+
+    private static int port(String url) {
+        return Integer.parseInt(url.substring(url.lastIndexOf(':') + 1));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
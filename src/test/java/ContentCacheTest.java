@@ -0,0 +1,77 @@
+import hello.services.ContentCache;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCacheTest {
+
+    private static final int ENTRY_SIZE = 1024;
+
+    private static final int CAPACITY = 100;
+
+    private final Object version = new Object();
+
+    @Test
+    public void staysWithinMaxSize() {
+        ContentCache cache = new ContentCache(CAPACITY * ENTRY_SIZE, ENTRY_SIZE);
+        for (int i = 0; i < CAPACITY * 10; i++) {
+            cache.put(key(i), version, content(i));
+        }
+        assertTrue("The cache grew to " + cache.getSize() + " bytes", cache.getSize() <= CAPACITY * ENTRY_SIZE);
+        assertTrue("Entries should have been evicted", cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void keepsHotEntriesThroughScans() {
+        ContentCache cache = new ContentCache(CAPACITY * ENTRY_SIZE, ENTRY_SIZE);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < CAPACITY / 2; i++) {
+                if (cache.get(key(i), version) == null) {
+                    cache.put(key(i), version, content(i));
+                }
+            }
+        }
+        for (int i = CAPACITY; i < CAPACITY * 20; i++) {
+            if (cache.get(key(i), version) == null) {
+                cache.put(key(i), version, content(i));
+            }
+        }
+        long hits = cache.getHits();
+        for (int i = 0; i < CAPACITY / 2; i++) {
+            cache.get(key(i), version);
+        }
+        assertTrue("A scan flushed the hot entries", cache.getHits() - hits >= CAPACITY / 2 * 9 / 10);
+    }
+
+    @Test
+    public void missesOtherVersionsAndInvalidatedEntries() {
+        ContentCache cache = new ContentCache(CAPACITY * ENTRY_SIZE, ENTRY_SIZE);
+        cache.put(key(0), version, content(0));
+        cache.put(key(1), version, content(1));
+        ByteBuffer cached = cache.get(key(0), version);
+        assertNotNull("A cached entry should hit", cached);
+        assertEquals("Cached content does not match", content(0), cached);
+        assertNull("Content cached for an older version should miss", cache.get(key(0), new Object()));
+        cache.invalidate(key(1));
+        assertNull("Invalidated content should miss", cache.get(key(1), version));
+        assertEquals("Nothing should be left in the cache", 0, cache.getSize());
+    }
+
+    private String key(int i) {
+        return "file" + i;
+    }
+
+    private ByteBuffer content(int i) {
+        ByteBuffer content = ByteBuffer.allocateDirect(ENTRY_SIZE);
+        while (content.hasRemaining()) {
+            content.put((byte) i);
+        }
+        content.flip();
+        return content;
+    }
+}
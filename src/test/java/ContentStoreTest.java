@@ -0,0 +1,64 @@
+import hello.models.FileMetadata;
+import hello.services.ContentStore;
+import hello.services.FileIndex;
+import hello.storage.LocalStorageBackend;
+import hello.storage.StorageBackends;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ContentStoreTest {
+
+    private static final String REFERENCED = String.format("%064x", 1);
+
+    private static final String ORPHAN = String.format("%064x", 2);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void migratesFlatLayout() throws Exception {
+        Path directory = folder.newFolder("content").toPath();
+        Files.write(directory.resolve(REFERENCED), REFERENCED.getBytes(StandardCharsets.US_ASCII));
+        Files.write(directory.resolve(ORPHAN), ORPHAN.getBytes(StandardCharsets.US_ASCII));
+        FileIndex fileIndex = new FileIndex();
+        FileMetadata metadata = new FileMetadata();
+        metadata.setContentKey(REFERENCED);
+        fileIndex.put("file.png", metadata);
+
+        ContentStore contentStore = open(directory, fileIndex);
+        assertEquals("Content should be found where it was before it is migrated", directory.resolve(REFERENCED), pathFor(contentStore, REFERENCED));
+        contentStore.migrate();
+        Path migrated = pathFor(contentStore, REFERENCED);
+        assertNotEquals("Content should be moved into its shard", directory.resolve(REFERENCED), migrated);
+        assertEquals(REFERENCED, new String(Files.readAllBytes(migrated), StandardCharsets.US_ASCII));
+        assertFalse(Files.exists(directory.resolve(REFERENCED)));
+
+        contentStore.removeOrphans(Long.MAX_VALUE);
+        assertFalse("Unreferenced content should be found in the shards and removed", Files.exists(pathFor(open(directory, fileIndex), ORPHAN)));
+        assertEquals("A migrated directory should stay sharded after a restart", migrated, pathFor(open(directory, fileIndex), REFERENCED));
+        assertTrue(Files.exists(migrated));
+    }
+
+    private ContentStore open(Path directory, FileIndex fileIndex) throws Exception {
+        ContentStore contentStore = new ContentStore(directory);
+        ReflectionTestUtils.setField(contentStore, "fileIndex", fileIndex);
+        ReflectionTestUtils.setField(contentStore, "storageBackends", new StorageBackends());
+        contentStore.open();
+        return contentStore;
+    }
+
+    private Path pathFor(ContentStore contentStore, String contentKey) {
+        return ((LocalStorageBackend) contentStore.getBackend()).pathFor(contentKey);
+    }
+}
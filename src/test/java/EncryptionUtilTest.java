@@ -0,0 +1,37 @@
+import hello.util.EncryptionUtil;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+public class EncryptionUtilTest {
+
+    /* The nonce prefix follows the magic, the segment size and the salt in the header */
+    private static final int NONCE_PREFIX_OFFSET = 4 + 4 + 16;
+    private static final int NONCE_PREFIX_SIZE = 7;
+
+    @Test
+    public void samePrefixDifferentFiles() throws Exception {
+        byte[] plaintext = new byte[EncryptionUtil.SEGMENT_SIZE];
+        new Random().nextBytes(plaintext);
+        byte[] first = EncryptionUtil.newHeader();
+        byte[] second = EncryptionUtil.newHeader();
+        System.arraycopy(first, NONCE_PREFIX_OFFSET, second, NONCE_PREFIX_OFFSET, NONCE_PREFIX_SIZE);
+
+        byte[] firstCiphertext = EncryptionUtil.encryptSegment(first, 0, false, plaintext, plaintext.length);
+        byte[] secondCiphertext = EncryptionUtil.encryptSegment(second, 0, false, plaintext, plaintext.length);
+        assertFalse("Files sharing a nonce prefix should still be encrypted under different keys",
+                Arrays.equals(firstCiphertext, secondCiphertext));
+        assertArrayEquals(plaintext, EncryptionUtil.decryptSegment(second, 0, false, secondCiphertext));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] plaintext = new byte[3 * EncryptionUtil.SEGMENT_SIZE + 100];
+        new Random().nextBytes(plaintext);
+        assertArrayEquals(plaintext, EncryptionUtil.decrypt(EncryptionUtil.encrypt(plaintext)));
+    }
+}
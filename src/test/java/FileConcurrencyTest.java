@@ -0,0 +1,178 @@
+import hello.Application;
+import hello.constants.FileConstants;
+import hello.exceptions.FileNotInStorageException;
+import hello.models.AppFile;
+import hello.services.FileService;
+import hello.util.ContentEncoding;
+import hello.util.EncryptionUtil;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, classes = Application.class)
+public class FileConcurrencyTest {
+
+    private static final int THREADS = 16;
+
+    private static final int OPERATIONS = 40;
+
+    private static final String CLIENT_SECRET_VALUE = "stress";
+
+    /* Spans several encryption segments so a torn read would mix versions */
+    private static final int FILE_SIZE = 150 * 1024;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    @Autowired
+    private FileService fileService;
+
+    @Test
+    public void concurrentUploadsAreAllIndexed() throws Exception {
+        ConcurrentLinkedQueue<String> uploaded = new ConcurrentLinkedQueue<>();
+        List<Throwable> failures = runConcurrently(THREADS, thread -> {
+            for (int i = 0; i < OPERATIONS; i++) {
+                uploaded.add(upload(version(i)));
+            }
+        });
+        assertEquals("Concurrent uploads failed: " + failures, Collections.emptyList(), failures);
+
+        Set<String> listed = fileService.getFiles(FileConstants.ROOT_PATH).stream().map(AppFile::getName).collect(Collectors.toSet());
+        assertEquals("Every upload should get its own id", THREADS * OPERATIONS, uploaded.stream().distinct().count());
+        assertTrue("Every uploaded file should be listed", listed.containsAll(uploaded));
+    }
+
+    @Test
+    public void readersNeverSeePartialUpdates() throws Exception {
+        String fileId = upload(version(0));
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Throwable> failures = runConcurrently(THREADS, thread -> {
+            if (thread < 2) {
+                for (int i = 0; i < OPERATIONS; i++) {
+                    fileService.updateFile(multipartFile(version(i % 8)), FileConstants.ROOT_PATH, fileId, CLIENT_SECRET_VALUE, null);
+                }
+                writing.set(false);
+            } else {
+                do {
+                    assertIsAVersion(read(fileId));
+                } while (writing.get());
+            }
+        });
+        assertEquals("Readers saw a partially updated file: " + failures, Collections.emptyList(), failures);
+    }
+
+    @Test
+    public void deletedFilesAreNeverReadPartially() throws Exception {
+        List<String> fileIds = new ArrayList<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            fileIds.add(upload(version(i)));
+        }
+        List<Throwable> failures = runConcurrently(THREADS, thread -> {
+            for (String fileId : fileIds) {
+                if (thread == 0) {
+                    fileService.deleteFile(fileId, FileConstants.ROOT_PATH, CLIENT_SECRET_VALUE);
+                } else {
+                    try {
+                        assertIsAVersion(read(fileId));
+                    } catch (FileNotInStorageException e) {
+                        // Deleted before this reader got to it
+                    }
+                }
+            }
+        });
+        assertEquals("Reading while deleting failed: " + failures, Collections.emptyList(), failures);
+
+        Set<String> listed = fileService.getFiles(FileConstants.ROOT_PATH).stream().map(AppFile::getName).collect(Collectors.toSet());
+        for (String fileId : fileIds) {
+            assertFalse("Deleted files should not be listed", listed.contains(fileId));
+        }
+    }
+
+    private String upload(byte[] content) throws Exception {
+        return (String) fileService.uploadFile(multipartFile(content), FileConstants.ROOT_PATH, CLIENT_SECRET_VALUE).getBody();
+    }
+
+    /* Generated files compress well, so they are decoded after decrypting them */
+    private byte[] read(String fileId) throws Exception {
+        ContentEncoding encoding = ContentEncoding.of(fileService.getMetadata(fileId).getEncoding());
+        try (SeekableByteChannel channel = fileService.openFile(fileId, FileConstants.ROOT_PATH)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            long length = EncryptionUtil.plaintextSize(channel.size());
+            if (encoding == null) {
+                EncryptionUtil.decrypt(channel, 0, length - 1, output);
+            } else {
+                try (OutputStream decoder = encoding.decoder(output)) {
+                    EncryptionUtil.decrypt(channel, encoding.getHeaderSize(), length - 1 - encoding.getTrailerSize(), decoder);
+                }
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private void assertIsAVersion(byte[] content) {
+        assertEquals("Read a file of the wrong size", FILE_SIZE, content.length);
+        assertTrue("Read a file mixing several versions", Arrays.equals(version(content[FILE_SIZE - 1]), content));
+    }
+
+    /* A PNG signature, so the upload passes content sniffing, followed by the version number repeated */
+    private byte[] version(int version) {
+        byte[] content = new byte[FILE_SIZE];
+        Arrays.fill(content, (byte) version);
+        System.arraycopy(PNG_SIGNATURE, 0, content, 0, PNG_SIGNATURE.length);
+        return content;
+    }
+
+    private MockMultipartFile multipartFile(byte[] content) {
+        return new MockMultipartFile("file", "stress.png", MediaType.IMAGE_PNG_VALUE, content);
+    }
+
+    private List<Throwable> runConcurrently(int threads, ConcurrentTask task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    task.run(thread);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue("Concurrent tasks did not finish in time", executor.awaitTermination(2, TimeUnit.MINUTES));
+        return new ArrayList<>(failures);
+    }
+
+    private interface ConcurrentTask {
+        void run(int thread) throws Exception;
+    }
+}
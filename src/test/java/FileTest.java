@@ -1,7 +1,10 @@
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import hello.Application;
+import hello.constants.FileConstants;
+import hello.services.ContentStore;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,6 +13,7 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -20,9 +24,27 @@ import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, classes = Application.class)
@@ -40,6 +62,9 @@ public class FileTest {
     @Autowired
     private TestRestTemplate restTemplate;
 
+    @Autowired
+    private ContentStore contentStore;
+
     private String url = "/%s";
 
     private static final String CLIENT_SECRET_KEY = "client_secret";
@@ -125,6 +150,104 @@ public class FileTest {
         assertEquals("Wrong status code for updating a file", HttpStatus.OK, updateResponse.getStatusCode());
     }
 
+    @Test
+    public void uploadDuplicateFiles() throws Exception {
+        byte[] content = new byte[100 * 1024];
+        new Random().nextBytes(content);
+        System.arraycopy(FileUtils.readFileToByteArray(testFile), 0, content, 0, 8);
+        File duplicate = File.createTempFile("duplicate", ".png");
+        duplicate.deleteOnExit();
+        FileUtils.writeByteArrayToFile(duplicate, content);
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity(duplicate.getName(), duplicate);
+        String firstId = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class).getBody();
+        String secondId = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class).getBody();
+        String otherId = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, "other" + CLIENT_SECRET_VALUE), String.class).getBody();
+        String contentKey = ownerContentKey(CLIENT_SECRET_VALUE, content);
+        String otherContentKey = ownerContentKey("other" + CLIENT_SECRET_VALUE, content);
+        assertTrue("Identical uploads of an owner should share their stored content", contentStore.contains(contentKey));
+        assertTrue("Other owners should not share it", contentStore.contains(otherContentKey) && !otherContentKey.equals(contentKey));
+
+        restTemplate.exchange(String.format(url,  "file/" + firstId), HttpMethod.DELETE, new HttpEntity<>(null, getHeaders(CLIENT_SECRET_KEY, CLIENT_SECRET_VALUE)), JsonNode.class);
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(String.format(url,  "file/" + secondId), HttpMethod.GET, null, byte[].class);
+        assertArrayEquals("Deleting a duplicate should keep the shared content", content, getResponse.getBody());
+
+        restTemplate.exchange(String.format(url,  "file/" + secondId), HttpMethod.DELETE, new HttpEntity<>(null, getHeaders(CLIENT_SECRET_KEY, CLIENT_SECRET_VALUE)), JsonNode.class);
+        assertFalse("Content should be deleted with its last reference", contentStore.contains(contentKey));
+        assertTrue("Content of other owners should be kept", contentStore.contains(otherContentKey));
+        restTemplate.exchange(String.format(url,  "file/" + otherId), HttpMethod.DELETE, new HttpEntity<>(null, getHeaders(CLIENT_SECRET_KEY, "other" + CLIENT_SECRET_VALUE)), JsonNode.class);
+    }
+
+    /* Content is shared by the uploads of one owner only, under an HMAC of its hash keyed by the owner */
+    private static String ownerContentKey(String owner, byte[] content) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(("owner:" + owner).getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return String.format("%064x", new BigInteger(1, mac.doFinal(MessageDigest.getInstance("SHA-256").digest(content))));
+    }
+
+    @Test
+    public void getCompressedFile() throws Exception {
+        StringBuilder pdf = new StringBuilder("%PDF-1.4\n");
+        for (int i = 0; i < 5000; i++) {
+            pdf.append(i).append(" 0 obj << /Type /Page /Parent 1 0 R >> endobj\n");
+        }
+        byte[] content = pdf.toString().getBytes(StandardCharsets.US_ASCII);
+        File pdfFile = File.createTempFile("compressible", ".pdf");
+        pdfFile.deleteOnExit();
+        FileUtils.writeByteArrayToFile(pdfFile, content);
+        HttpHeaders pdfHeaders = new HttpHeaders();
+        pdfHeaders.setContentType(MediaType.APPLICATION_PDF);
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<>();
+        map.add("file", new HttpEntity<>(new FileSystemResource(pdfFile), pdfHeaders));
+        String fileId = restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(map, CLIENT_SECRET_VALUE), String.class).getBody();
+        String getEndpointUrl = String.format(url,  "file/" + fileId);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+        ResponseEntity<byte[]> encoded = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, new HttpEntity<>(null, headers), byte[].class);
+        assertEquals("Compressible files should be sent compressed", "gzip", encoded.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertTrue("Compressed file should be smaller", encoded.getBody().length < content.length / 2);
+        try (GZIPInputStream decoded = new GZIPInputStream(new ByteArrayInputStream(encoded.getBody()))) {
+            assertArrayEquals("Compressed file does not match the uploaded one", content, IOUtils.toByteArray(decoded));
+        }
+
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "identity");
+        ResponseEntity<byte[]> identity = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, new HttpEntity<>(null, headers), byte[].class);
+        assertEquals("Files should be decompressed for clients not accepting the encoding", null, identity.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertArrayEquals("Decompressed file does not match the uploaded one", content, identity.getBody());
+    }
+
+    @Test
+    public void getFileNotModified() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(getImageEntity(testFile.getName(), testFile), CLIENT_SECRET_VALUE), String.class);
+        String getEndpointUrl = String.format(url,  "file/" + response.getBody());
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, null, byte[].class);
+        String etag = getResponse.getHeaders().getETag();
+        assertNotNull("Files should be sent with an ETag", etag);
+        assertTrue("Files should be sent with a Last-Modified date", getResponse.getHeaders().getLastModified() > 0);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(etag);
+        ResponseEntity<byte[]> notModified = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, new HttpEntity<>(null, headers), byte[].class);
+        assertEquals("Wrong status code for getting an unchanged file", HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+    }
+
+    @Test
+    public void updateFileIfMatch() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(getImageEntity(testFile.getName(), testFile), CLIENT_SECRET_VALUE), String.class);
+        String fileUrl = String.format(url,  "file/" + response.getBody());
+        String etag = restTemplate.exchange(fileUrl, HttpMethod.GET, null, byte[].class).getHeaders().getETag();
+
+        HttpHeaders headers = getHeaders(CLIENT_SECRET_KEY, CLIENT_SECRET_VALUE);
+        headers.setIfMatch(etag);
+        ResponseEntity<JsonNode> updateResponse = restTemplate.exchange(fileUrl, HttpMethod.PUT, new HttpEntity<>(getImageEntity(testSecondFile.getName(), testSecondFile), headers), JsonNode.class);
+        assertEquals("Wrong status code for updating a file with its current ETag", HttpStatus.OK, updateResponse.getStatusCode());
+        ResponseEntity<JsonNode> staleResponse = restTemplate.exchange(fileUrl, HttpMethod.PUT, new HttpEntity<>(getImageEntity(testFile.getName(), testFile), headers), JsonNode.class);
+        assertEquals("Wrong status code for updating a file with a stale ETag", HttpStatus.PRECONDITION_FAILED, staleResponse.getStatusCode());
+    }
+
     @Test
     public void updateFileNoClientSecret() throws Exception {
         String endpointUrl = String.format(url,  "file");
@@ -156,6 +279,109 @@ public class FileTest {
         ResponseEntity<String> getResponse = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, null, String.class);
         assertEquals("Wrong status code for getting a file", HttpStatus.OK, getResponse.getStatusCode());
     }
+
+    @Test
+    public void getFileContent() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class);
+        String getEndpointUrl = String.format(url,  "file/" + response.getBody());
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, null, byte[].class);
+        assertArrayEquals("Downloaded file does not match the uploaded one", FileUtils.readFileToByteArray(testFile), getResponse.getBody());
+        assertEquals("Wrong content type for a downloaded file", MediaType.IMAGE_PNG, getResponse.getHeaders().getContentType());
+        assertEquals("Wrong content length for a downloaded file", testFile.length(), getResponse.getHeaders().getContentLength());
+    }
+
+    @Test
+    public void getCachedFileAfterUpdate() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(getImageEntity(testFile.getName(), testFile), CLIENT_SECRET_VALUE), String.class);
+        String getEndpointUrl = String.format(url,  "file/" + response.getBody());
+        restTemplate.exchange(getEndpointUrl, HttpMethod.GET, null, byte[].class);
+        long hits = restTemplate.exchange(String.format(url,  "stats/cache"), HttpMethod.GET, null, JsonNode.class).getBody().get("hits").asLong();
+        ResponseEntity<byte[]> cached = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, null, byte[].class);
+        assertArrayEquals("Cached file does not match the uploaded one", FileUtils.readFileToByteArray(testFile), cached.getBody());
+        assertTrue("A second read should hit the cache",
+                restTemplate.exchange(String.format(url,  "stats/cache"), HttpMethod.GET, null, JsonNode.class).getBody().get("hits").asLong() > hits);
+
+        restTemplate.exchange(getEndpointUrl, HttpMethod.PUT, getHttpEntity(getImageEntity(testSecondFile.getName(), testSecondFile), CLIENT_SECRET_VALUE), JsonNode.class);
+        ResponseEntity<byte[]> updated = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, null, byte[].class);
+        assertArrayEquals("An update should invalidate the cached content", FileUtils.readFileToByteArray(testSecondFile), updated.getBody());
+    }
+
+    @Test
+    public void getRendition() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(getImageEntity(testFile.getName(), testFile), CLIENT_SECRET_VALUE), String.class);
+        String renditionUrl = String.format(url,  "file/" + response.getBody() + "?w=64");
+        ResponseEntity<byte[]> rendition = restTemplate.exchange(renditionUrl, HttpMethod.GET, null, byte[].class);
+        assertEquals("Wrong status code for getting a rendition", HttpStatus.OK, rendition.getStatusCode());
+        assertEquals("Wrong content type for a rendition", MediaType.IMAGE_PNG, rendition.getHeaders().getContentType());
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(rendition.getBody()));
+        assertEquals("A rendition should fit the requested width", 64, image.getWidth());
+        assertEquals("A rendition should keep the aspect ratio", 31, image.getHeight());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(rendition.getHeaders().getETag());
+        assertEquals("An unchanged rendition should not be sent again", HttpStatus.NOT_MODIFIED,
+                restTemplate.exchange(renditionUrl, HttpMethod.GET, new HttpEntity<>(headers), byte[].class).getStatusCode());
+
+        restTemplate.exchange(String.format(url,  "file/" + response.getBody()), HttpMethod.PUT,
+                getHttpEntity(getImageEntity(testSecondFile.getName(), testSecondFile), CLIENT_SECRET_VALUE), JsonNode.class);
+        ResponseEntity<byte[]> updated = restTemplate.exchange(renditionUrl, HttpMethod.GET, null, byte[].class);
+        assertFalse("An update should change the rendition's ETag", rendition.getHeaders().getETag().equals(updated.getHeaders().getETag()));
+        assertEquals("An update should invalidate the rendition", 47, ImageIO.read(new ByteArrayInputStream(updated.getBody())).getHeight());
+    }
+
+    @Test
+    public void getRenditionInvalidSize() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(getImageEntity(testFile.getName(), testFile), CLIENT_SECRET_VALUE), String.class);
+        for (String size : new String[]{"w=0&h=0", "w=-1", "w=100000"}) {
+            ResponseEntity<byte[]> rendition = restTemplate.exchange(String.format(url,  "file/" + response.getBody() + "?" + size), HttpMethod.GET, null, byte[].class);
+            assertEquals("Wrong status code for a rendition of size " + size, HttpStatus.BAD_REQUEST, rendition.getStatusCode());
+        }
+    }
+
+    @Test
+    public void getFileRange() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class);
+        String getEndpointUrl = String.format(url,  "file/" + response.getBody());
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=65000-140000");
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, new HttpEntity<>(null, headers), byte[].class);
+        assertEquals("Wrong status code for getting a range of a file", HttpStatus.PARTIAL_CONTENT, getResponse.getStatusCode());
+        assertArrayEquals("Downloaded range does not match the uploaded file",
+                Arrays.copyOfRange(FileUtils.readFileToByteArray(testFile), 65000, 140001), getResponse.getBody());
+    }
+
+    @Test
+    public void getFileMultipleRanges() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class);
+        String getEndpointUrl = String.format(url,  "file/" + response.getBody());
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=0-99,-100");
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, new HttpEntity<>(null, headers), byte[].class);
+        assertEquals("Wrong status code for getting several ranges of a file", HttpStatus.PARTIAL_CONTENT, getResponse.getStatusCode());
+        assertEquals("Wrong content type for getting several ranges of a file", "multipart/byteranges", getResponse.getHeaders().getContentType().toString().split(";")[0]);
+    }
+
+    @Test
+    public void getFileRangeNotSatisfiable() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class);
+        String getEndpointUrl = String.format(url,  "file/" + response.getBody());
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RANGE, "bytes=999999999-");
+        ResponseEntity<String> getResponse = restTemplate.exchange(getEndpointUrl, HttpMethod.GET, new HttpEntity<>(null, headers), String.class);
+        assertEquals("Wrong status code for getting a range outside of a file", HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, getResponse.getStatusCode());
+    }
+
     @Test
     public void uploadWrongFormatFile() throws Exception {
         String endpointUrl = String.format(url,  "file");
@@ -164,6 +390,14 @@ public class FileTest {
         assertEquals("Wrong status code for adding a new file with wrong format", HttpStatus.BAD_REQUEST, response.getStatusCode());
     }
 
+    @Test
+    public void uploadMislabeledFile() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity("test1.png", testTxtFile);
+        ResponseEntity<String> response = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class);
+        assertEquals("Wrong status code for adding a text file declared as an image", HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
     @Test
     public void updateWrongFormatFile() throws Exception {
         String endpointUrl = String.format(url,  "file");
@@ -200,6 +434,198 @@ public class FileTest {
         assertEquals("If there are no files it should return an empty list", ArrayNode.class, response.getBody().getClass());
     }
 
+    @Test
+    public void getFilesPaginated() throws Exception {
+        String owner = UUID.randomUUID().toString();
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        for (int i = 0; i < 3; i++) {
+            restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(map, owner), String.class);
+        }
+        HttpEntity<?> entity = new HttpEntity<>(null, getHeaders(CLIENT_SECRET_KEY, owner));
+        ResponseEntity<JsonNode> firstPage = restTemplate.exchange(String.format(url,  "files?owned=true&limit=2"), HttpMethod.GET, entity, JsonNode.class);
+        assertEquals("The first page should be full", 2, firstPage.getBody().size());
+        String cursor = firstPage.getHeaders().getFirst(FileConstants.NEXT_CURSOR_HEADER);
+        assertNotNull("A full page should come with a cursor", cursor);
+
+        ResponseEntity<JsonNode> secondPage = restTemplate.exchange(String.format(url,  "files?owned=true&limit=2&cursor=" + cursor), HttpMethod.GET, entity, JsonNode.class);
+        assertEquals("The second page should hold the remaining file", 1, secondPage.getBody().size());
+        assertTrue("Pages should be sorted by name", firstPage.getBody().get(1).get("name").asText().compareTo(secondPage.getBody().get(0).get("name").asText()) < 0);
+    }
+
+    @Test
+    public void getFilesBySizeNotPaged() throws Exception {
+        String owner = UUID.randomUUID().toString();
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        for (int i = 0; i < 2; i++) {
+            restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(map, owner), String.class);
+        }
+        HttpEntity<?> entity = new HttpEntity<>(null, getHeaders(CLIENT_SECRET_KEY, owner));
+        ResponseEntity<JsonNode> page = restTemplate.exchange(String.format(url,  "files?owned=true&sort=size&limit=1"), HttpMethod.GET, entity, JsonNode.class);
+        assertEquals("A limit should still cut the listing", 1, page.getBody().size());
+        assertFalse("Only name order should come with a cursor", page.getHeaders().containsKey(FileConstants.NEXT_CURSOR_HEADER));
+
+        String cursor = Base64.getUrlEncoder().withoutPadding().encodeToString("0:a".getBytes(StandardCharsets.UTF_8));
+        ResponseEntity<JsonNode> response = restTemplate.exchange(String.format(url,  "files?sort=size&limit=1&cursor=" + cursor), HttpMethod.GET, entity, JsonNode.class);
+        assertEquals("Cursors should only page listings sorted by name", HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void uploadFiles() throws Exception {
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        map.add("file", getImageEntity(testSecondFile.getName(), testSecondFile).getFirst("file"));
+        map.add("file", getTextEntity().getFirst("file"));
+        ResponseEntity<JsonNode> response = restTemplate.postForEntity(String.format(url,  "files"), getHttpEntity(map, CLIENT_SECRET_VALUE), JsonNode.class);
+        assertEquals("Wrong status code for uploading a batch", HttpStatus.OK, response.getStatusCode());
+        assertEquals("Every file should have a result", 3, response.getBody().size());
+        assertEquals(HttpStatus.CREATED.value(), response.getBody().get(0).get("status").asInt());
+        assertEquals("Files of a not allowed format should fail on their own", HttpStatus.BAD_REQUEST.value(), response.getBody().get(2).get("status").asInt());
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(String.format(url,  "file/" + response.getBody().get(1).get("id").asText()),
+                HttpMethod.GET, null, byte[].class);
+        assertArrayEquals("Files of a batch should be stored like single uploads", FileUtils.readFileToByteArray(testSecondFile), getResponse.getBody());
+    }
+
+    @Test
+    public void deleteFiles() throws Exception {
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        String first = restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(map, CLIENT_SECRET_VALUE), String.class).getBody();
+        String second = restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(map, CLIENT_SECRET_VALUE), String.class).getBody();
+        String other = restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(map, "other"), String.class).getBody();
+        HttpEntity<?> entity = new HttpEntity<>(null, getHeaders(CLIENT_SECRET_KEY, CLIENT_SECRET_VALUE));
+
+        ResponseEntity<JsonNode> forbidden = restTemplate.exchange(String.format(url,  "files?ids=" + first + "," + other), HttpMethod.DELETE, entity, JsonNode.class);
+        assertEquals("Wrong status code for deleting a batch with a file of someone else", HttpStatus.FORBIDDEN, forbidden.getStatusCode());
+        assertEquals("No file of a rejected batch should be deleted", HttpStatus.OK,
+                restTemplate.exchange(String.format(url,  "file/" + first), HttpMethod.GET, null, byte[].class).getStatusCode());
+
+        ResponseEntity<JsonNode> response = restTemplate.exchange(String.format(url,  "files?ids=" + first + "," + second), HttpMethod.DELETE, entity, JsonNode.class);
+        assertEquals("Wrong status code for deleting a batch", HttpStatus.OK, response.getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, restTemplate.exchange(String.format(url,  "file/" + first), HttpMethod.GET, null, String.class).getStatusCode());
+        assertEquals(HttpStatus.NOT_FOUND, restTemplate.exchange(String.format(url,  "file/" + second), HttpMethod.GET, null, String.class).getStatusCode());
+    }
+
+    @Test
+    public void getFilesArchive() throws Exception {
+        String first = restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(getImageEntity(testFile.getName(), testFile), CLIENT_SECRET_VALUE), String.class).getBody();
+        String second = restTemplate.postForEntity(String.format(url,  "file"), getHttpEntity(getImageEntity(testSecondFile.getName(), testSecondFile), CLIENT_SECRET_VALUE), String.class).getBody();
+        ResponseEntity<byte[]> response = restTemplate.exchange(String.format(url,  "files/archive?ids=" + first + "," + second), HttpMethod.GET, null, byte[].class);
+        assertEquals("Wrong status code for getting an archive", HttpStatus.OK, response.getStatusCode());
+
+        try (ZipInputStream archive = new ZipInputStream(new ByteArrayInputStream(response.getBody()))) {
+            assertEquals(first, archive.getNextEntry().getName());
+            assertArrayEquals("Archived file does not match the uploaded one", FileUtils.readFileToByteArray(testFile), IOUtils.toByteArray(archive));
+            assertEquals(second, archive.getNextEntry().getName());
+            assertArrayEquals("Archived file does not match the uploaded one", FileUtils.readFileToByteArray(testSecondFile), IOUtils.toByteArray(archive));
+            assertEquals("The archive should hold only the given files", null, archive.getNextEntry());
+        }
+        assertEquals("Wrong status code for an archive of a missing file", HttpStatus.NOT_FOUND,
+                restTemplate.exchange(String.format(url,  "files/archive?ids=" + first + ",missing.png"), HttpMethod.GET, null, String.class).getStatusCode());
+    }
+
+    @Test
+    public void getFilesInvalidQuery() {
+        ResponseEntity<JsonNode> response = restTemplate.exchange(String.format(url,  "files?sort=color"), HttpMethod.GET, null, JsonNode.class);
+        assertEquals("Wrong status code for an unknown sort", HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void getCryptoStats() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class);
+        restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class);
+        ResponseEntity<JsonNode> response = restTemplate.exchange(String.format(url,  "stats/crypto"), HttpMethod.GET, null, JsonNode.class);
+        assertEquals("Wrong status code for getting the crypto stats", HttpStatus.OK, response.getStatusCode());
+        assertTrue("Ciphers should be reused across uploads", response.getBody().get("ciphersReused").asLong() > 0);
+    }
+
+    @Test
+    public void getMetrics() throws Exception {
+        String endpointUrl = String.format(url,  "file");
+        MultiValueMap<String, Object> map = getImageEntity(testFile.getName(), testFile);
+        String fileId = restTemplate.postForEntity(endpointUrl, getHttpEntity(map, CLIENT_SECRET_VALUE), String.class).getBody();
+        restTemplate.exchange(String.format(url,  "file/" + fileId), HttpMethod.GET, null, byte[].class);
+        ResponseEntity<String> response = restTemplate.exchange(String.format(url,  "metrics"), HttpMethod.GET, null, String.class);
+        assertEquals("Wrong status code for getting the metrics", HttpStatus.OK, response.getStatusCode());
+        assertTrue("Metrics should be in the Prometheus text format", response.getHeaders().getContentType().toString().startsWith("text/plain"));
+        String metrics = response.getBody();
+        assertTrue("Uploads should be timed by endpoint", metrics.contains("http_request_duration_seconds_count{method=\"POST\",endpoint=\"/file\"}"));
+        // Downloads are timed when their response completes, which the client may see a moment before the server does
+        String download = "http_request_duration_seconds_count{method=\"GET\",endpoint=\"/file/{fileName:.+}\"}";
+        for (int i = 0; i < 50 && !metrics.contains(download); i++) {
+            Thread.sleep(20);
+            metrics = restTemplate.getForObject(String.format(url,  "metrics"), String.class);
+        }
+        assertTrue("Downloads should be timed once complete", metrics.contains(download));
+        assertTrue(metrics.contains("stage_duration_seconds_bucket{stage=\"encrypt\",le=\"+Inf\"}"));
+        assertTrue(metrics.contains("# TYPE crypto_bytes_total counter"));
+        assertTrue(metrics.contains("downloads_in_flight "));
+    }
+
+    @Test
+    public void resumableUpload() throws Exception {
+        byte[] content = new byte[150 * 1024];
+        new Random().nextBytes(content);
+        System.arraycopy(FileUtils.readFileToByteArray(testFile), 0, content, 0, 8);
+        HttpHeaders headers = getUploadHeaders();
+        headers.set(FileConstants.UPLOAD_LENGTH_HEADER, Integer.toString(content.length));
+        ResponseEntity<String> created = restTemplate.exchange(String.format(url,  "uploads"), HttpMethod.POST, new HttpEntity<>(null, headers), String.class);
+        assertEquals("Wrong status code for creating an upload", HttpStatus.CREATED, created.getStatusCode());
+        String uploadUrl = created.getHeaders().getLocation().getPath();
+
+        ResponseEntity<String> firstChunk = sendChunk(uploadUrl, 0, Arrays.copyOfRange(content, 0, 70000));
+        assertEquals("Wrong status code for sending a chunk", HttpStatus.NO_CONTENT, firstChunk.getStatusCode());
+        assertEquals("70000", firstChunk.getHeaders().getFirst(FileConstants.UPLOAD_OFFSET_HEADER));
+        ResponseEntity<String> offset = restTemplate.exchange(uploadUrl, HttpMethod.HEAD, new HttpEntity<>(null, getUploadHeaders()), String.class);
+        assertEquals("The offset should count every byte sent", "70000", offset.getHeaders().getFirst(FileConstants.UPLOAD_OFFSET_HEADER));
+        assertEquals("Wrong status code for a chunk at a stale offset", HttpStatus.CONFLICT,
+                sendChunk(uploadUrl, 0, Arrays.copyOfRange(content, 0, 70000)).getStatusCode());
+        assertEquals(HttpStatus.NO_CONTENT, sendChunk(uploadUrl, 70000, Arrays.copyOfRange(content, 70000, content.length)).getStatusCode());
+
+        ResponseEntity<String> completed = restTemplate.exchange(uploadUrl + "/complete", HttpMethod.POST, new HttpEntity<>(null, getUploadHeaders()), String.class);
+        assertEquals("Wrong status code for finishing an upload", HttpStatus.CREATED, completed.getStatusCode());
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(String.format(url,  "file/" + completed.getBody()), HttpMethod.GET, null, byte[].class);
+        assertArrayEquals("The finished upload should hold every chunk", content, getResponse.getBody());
+        assertEquals(MediaType.IMAGE_PNG, getResponse.getHeaders().getContentType());
+        assertEquals("\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(MessageDigest.getInstance("SHA-256").digest(content)) + "\"",
+                getResponse.getHeaders().getETag());
+        assertEquals("A finished upload should be gone", HttpStatus.NOT_FOUND,
+                restTemplate.exchange(uploadUrl, HttpMethod.DELETE, new HttpEntity<>(null, getUploadHeaders()), String.class).getStatusCode());
+    }
+
+    @Test
+    public void getLargeFile() throws Exception {
+        // Bigger than the cache takes, so it is decrypted and written in several chunks
+        byte[] content = new byte[5 * 1024 * 1024 + 1000];
+        new Random().nextBytes(content);
+        System.arraycopy(FileUtils.readFileToByteArray(testFile), 0, content, 0, 8);
+        HttpHeaders headers = getUploadHeaders();
+        headers.set(FileConstants.UPLOAD_LENGTH_HEADER, Integer.toString(content.length));
+        String uploadUrl = restTemplate.exchange(String.format(url,  "uploads"), HttpMethod.POST, new HttpEntity<>(null, headers), String.class)
+                .getHeaders().getLocation().getPath();
+        sendChunk(uploadUrl, 0, content);
+        String fileName = restTemplate.exchange(uploadUrl + "/complete", HttpMethod.POST, new HttpEntity<>(null, getUploadHeaders()), String.class).getBody();
+
+        ResponseEntity<byte[]> getResponse = restTemplate.exchange(String.format(url,  "file/" + fileName), HttpMethod.GET, null, byte[].class);
+        assertEquals(HttpStatus.OK, getResponse.getStatusCode());
+        assertArrayEquals("Downloaded file does not match the uploaded one", content, getResponse.getBody());
+        HttpHeaders rangeHeaders = new HttpHeaders();
+        rangeHeaders.set(HttpHeaders.RANGE, "bytes=1000000-4500000");
+        ResponseEntity<byte[]> rangeResponse = restTemplate.exchange(String.format(url,  "file/" + fileName), HttpMethod.GET, new HttpEntity<>(null, rangeHeaders), byte[].class);
+        assertArrayEquals("Downloaded range does not match the uploaded file", Arrays.copyOfRange(content, 1000000, 4500001), rangeResponse.getBody());
+    }
+
+    @Test
+    public void resumableUploadWrongFormat() throws Exception {
+        byte[] content = FileUtils.readFileToByteArray(testTxtFile);
+        HttpHeaders headers = getUploadHeaders();
+        headers.set(FileConstants.UPLOAD_LENGTH_HEADER, Integer.toString(content.length));
+        String uploadUrl = restTemplate.exchange(String.format(url,  "uploads"), HttpMethod.POST, new HttpEntity<>(null, headers), String.class)
+                .getHeaders().getLocation().getPath();
+        assertEquals("Wrong status code for uploading a not allowed format", HttpStatus.BAD_REQUEST, sendChunk(uploadUrl, 0, content).getStatusCode());
+        assertEquals("A rejected upload should be gone", HttpStatus.NOT_FOUND,
+                restTemplate.exchange(uploadUrl, HttpMethod.DELETE, new HttpEntity<>(null, getUploadHeaders()), String.class).getStatusCode());
+    }
+
     private MultiValueMap<String, Object> getImageEntity(String fileName, File testFile) throws Exception {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.IMAGE_PNG);
@@ -234,6 +660,21 @@ public class FileTest {
         return map;
     }
 
+    /* PATCH through the method override, since the default request factory can't send PATCH */
+    private ResponseEntity<String> sendChunk(String uploadUrl, long offset, byte[] chunk) {
+        HttpHeaders headers = getUploadHeaders();
+        headers.setContentType(MediaType.parseMediaType(FileConstants.UPLOAD_CHUNK_TYPE));
+        headers.set(FileConstants.UPLOAD_OFFSET_HEADER, Long.toString(offset));
+        headers.set("X-HTTP-Method-Override", "PATCH");
+        return restTemplate.exchange(uploadUrl, HttpMethod.POST, new HttpEntity<>(chunk, headers), String.class);
+    }
+
+    private HttpHeaders getUploadHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(CLIENT_SECRET_KEY, CLIENT_SECRET_VALUE);
+        return headers;
+    }
+
     private HttpHeaders getHeaders(String clientSecretKey, String clientSecretValue) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.MULTIPART_FORM_DATA);
@@ -0,0 +1,61 @@
+import hello.util.HashRing;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashRingTest {
+
+    private static final int KEYS = 30000;
+
+    private static final List<String> NODES = Arrays.asList("http://localhost:8081", "http://localhost:8082", "http://localhost:8083");
+
+    @Test
+    public void ownersAreDistinctPrimaryFirst() {
+        HashRing ring = new HashRing(NODES, 160);
+        for (int i = 0; i < 1000; i++) {
+            String key = "file-" + i + ".png";
+            List<String> owners = ring.owners(key, 2);
+            assertEquals("Owners should be distinct instances", 2, new HashSet<>(owners).size());
+            assertEquals("The primary should come first", ring.primary(key), owners.get(0));
+            assertEquals("There can't be more owners than instances", 3, ring.owners(key, 5).size());
+        }
+        assertEquals("Rings built from the same instances should agree",
+                new HashRing(NODES, 160).owners("file-1.png", 3), ring.owners("file-1.png", 3));
+    }
+
+    @Test
+    public void keysSpreadEvenly() {
+        HashRing ring = new HashRing(NODES, 160);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.primary("file-" + i + ".png"), 1, Integer::sum);
+        }
+        for (String node : NODES) {
+            int count = counts.getOrDefault(node, 0);
+            assertTrue("Uneven share of keys for " + node + ": " + count, Math.abs(count - KEYS / 3) < KEYS / 3 / 4);
+        }
+    }
+
+    @Test
+    public void joiningMovesOnlyKeysToTheNewInstance() {
+        HashRing before = new HashRing(NODES, 160);
+        HashRing after = new HashRing(Arrays.asList("http://localhost:8081", "http://localhost:8082", "http://localhost:8083",
+                "http://localhost:8084"), 160);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "file-" + i + ".png";
+            if (!before.primary(key).equals(after.primary(key))) {
+                assertEquals("Keys should only move to the instance that joined", "http://localhost:8084", after.primary(key));
+                moved++;
+            }
+        }
+        assertTrue("About a quarter of the keys should move, not " + moved, moved > KEYS / 6 && moved < KEYS / 3);
+    }
+}
@@ -0,0 +1,327 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import hello.Application;
+import hello.constants.FileConstants;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Mixed upload, update, download and delete traffic from many owners against the running application, at a target
+ * rate. Requests are started on a fixed schedule whether or not earlier ones finished, and latency is taken from when
+ * a request was due rather than when it was sent, so a slow server shows up in the percentiles instead of just
+ * lowering the rate. A file is only used by one request at a time, so the last bytes acknowledged for each file are
+ * known: downloads are checked against them while the load runs, and every file is checked once it is over.
+ *
+ * Defaults keep the run short. Longer runs are configured with system properties, for example
+ * mvn test -Dtest=LoadTest -Dload.duration-ms=60000 -Dload.rate=500 -Dload.mix=upload=1,update=1,download=8
+ * and results are written as JSON to load.output, to compare runs of different builds.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, classes = Application.class)
+public class LoadTest {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final long durationMillis = Long.getLong("load.duration-ms", 3000);
+    private final int rate = Integer.getInteger("load.rate", 40);
+    private final int concurrency = Integer.getInteger("load.concurrency", 16);
+    private final int owners = Integer.getInteger("load.owners", 8);
+    private final int minSize = Integer.getInteger("load.min-size", 1024);
+    private final int maxSize = Integer.getInteger("load.max-size", 64 * 1024);
+    private final String mix = System.getProperty("load.mix", "upload=3,update=3,download=3,delete=1");
+    private final File output = new File(System.getProperty("load.output", "target/load-test/results.json"));
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    private enum Operation {
+        UPLOAD, UPDATE, DOWNLOAD, DELETE
+    }
+
+    /* A stored file and the bytes last written to it */
+    private static class Tracked {
+        private final String owner;
+        private String fileId;
+        private byte[] content;
+
+        private Tracked(String owner) {
+            this.owner = owner;
+        }
+    }
+
+    /* Latencies of one operation and how its requests ended */
+    private static class Results {
+        private long[] latencies = new long[1024];
+        private int count;
+        private int rejected;
+        private final List<String> failures = new ArrayList<>();
+
+        private synchronized void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        private synchronized void reject() {
+            rejected++;
+        }
+
+        private synchronized void fail(String failure) {
+            failures.add(failure);
+        }
+
+        /* Nearest-rank percentile, in milliseconds */
+        private double percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(rank - 1, 0)] / 1e6;
+        }
+
+        private synchronized Map<String, Object> summary(double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("completed", count);
+            summary.put("rejected", rejected);
+            summary.put("failed", failures.size());
+            summary.put("throughput", count / seconds);
+            summary.put("p50Millis", percentile(sorted, 50));
+            summary.put("p99Millis", percentile(sorted, 99));
+            summary.put("p999Millis", percentile(sorted, 99.9));
+            summary.put("maxMillis", sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+            return summary;
+        }
+    }
+
+    private final Map<Operation, Results> results = new EnumMap<>(Operation.class);
+    private final ConcurrentLinkedQueue<Tracked> idle = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Tracked> deleted = new ConcurrentLinkedQueue<>();
+
+    @Test
+    public void mixedLoad() throws Exception {
+        for (Operation operation : Operation.values()) {
+            results.put(operation, new Results());
+        }
+        Operation[] schedule = schedule();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long started = System.nanoTime();
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long requests = TimeUnit.MILLISECONDS.toNanos(durationMillis) / interval;
+        for (long i = 0; i < requests; i++) {
+            long due = started + i * interval;
+            LockSupport.parkNanos(due - System.nanoTime());
+            Operation operation = schedule[(int) (i % schedule.length)];
+            workers.execute(() -> run(operation, due));
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        List<String> mismatches = verify();
+        writeResults(seconds, mismatches);
+
+        List<String> failures = new ArrayList<>(mismatches);
+        for (Results operationResults : results.values()) {
+            failures.addAll(operationResults.failures);
+        }
+        assertEquals("Requests failed or files didn't hold the last bytes written to them", Collections.emptyList(), failures);
+    }
+
+    /* The mix spread over a cycle of operations, shuffled so each kind comes at an even pace */
+    private Operation[] schedule() {
+        List<Operation> cycle = new ArrayList<>();
+        for (String weight : mix.split(",")) {
+            String[] pair = weight.split("=");
+            for (int i = 0; i < Integer.parseInt(pair[1].trim()); i++) {
+                cycle.add(Operation.valueOf(pair[0].trim().toUpperCase()));
+            }
+        }
+        Collections.shuffle(cycle, new Random(0));
+        return cycle.toArray(new Operation[0]);
+    }
+
+    private void run(Operation operation, long due) {
+        Tracked file = operation == Operation.UPLOAD ? null : idle.poll();
+        if (file == null) {
+            // Nothing stored yet, or every file is in use
+            operation = Operation.UPLOAD;
+            file = new Tracked("owner-" + ThreadLocalRandom.current().nextInt(owners));
+        }
+        Results operationResults = results.get(operation);
+        try {
+            HttpStatus status = send(operation, file, operationResults);
+            if (status == HttpStatus.SERVICE_UNAVAILABLE) {
+                operationResults.reject();
+            } else {
+                operationResults.record(System.nanoTime() - due);
+            }
+        } catch (Exception e) {
+            operationResults.fail(operation + " " + file.fileId + ": " + e);
+        }
+        if (operation == Operation.DELETE && file.content == null) {
+            deleted.add(file);
+        } else if (file.fileId != null) {
+            idle.add(file);
+        }
+    }
+
+    private HttpStatus send(Operation operation, Tracked file, Results operationResults) throws Exception {
+        String path = "/file/" + file.fileId;
+        switch (operation) {
+            case UPLOAD: {
+                byte[] content = newContent();
+                ResponseEntity<String> response = restTemplate.postForEntity("/file", multipart(content, file.owner), String.class);
+                if (response.getStatusCode() == HttpStatus.CREATED) {
+                    file.fileId = response.getBody();
+                    file.content = content;
+                } else if (response.getStatusCode() != HttpStatus.SERVICE_UNAVAILABLE) {
+                    operationResults.fail("UPLOAD returned " + response.getStatusCode());
+                }
+                return response.getStatusCode();
+            }
+            case UPDATE: {
+                byte[] content = newContent();
+                ResponseEntity<String> response = restTemplate.exchange(path, HttpMethod.PUT, multipart(content, file.owner), String.class);
+                if (response.getStatusCode() == HttpStatus.OK) {
+                    file.content = content;
+                } else if (response.getStatusCode() != HttpStatus.SERVICE_UNAVAILABLE) {
+                    operationResults.fail("UPDATE " + file.fileId + " returned " + response.getStatusCode());
+                }
+                return response.getStatusCode();
+            }
+            case DOWNLOAD: {
+                ResponseEntity<byte[]> response = restTemplate.getForEntity(path, byte[].class);
+                if (response.getStatusCode() == HttpStatus.OK) {
+                    if (!Arrays.equals(file.content, response.getBody())) {
+                        operationResults.fail("DOWNLOAD " + file.fileId + " didn't return the last bytes written");
+                    }
+                } else if (response.getStatusCode() != HttpStatus.SERVICE_UNAVAILABLE) {
+                    operationResults.fail("DOWNLOAD " + file.fileId + " returned " + response.getStatusCode());
+                }
+                return response.getStatusCode();
+            }
+            default: {
+                ResponseEntity<String> response = restTemplate.exchange(path, HttpMethod.DELETE, new HttpEntity<>(null, headers(file.owner)), String.class);
+                if (response.getStatusCode() == HttpStatus.OK) {
+                    file.content = null;
+                } else {
+                    operationResults.fail("DELETE " + file.fileId + " returned " + response.getStatusCode());
+                }
+                return response.getStatusCode();
+            }
+        }
+    }
+
+    /* Once the load is over, every stored file has to decrypt to its last bytes and every deleted one has to be gone */
+    private List<String> verify() {
+        List<String> mismatches = new ArrayList<>();
+        for (Tracked file : idle) {
+            ResponseEntity<byte[]> response = restTemplate.getForEntity("/file/" + file.fileId, byte[].class);
+            if (response.getStatusCode() != HttpStatus.OK || !Arrays.equals(file.content, response.getBody())) {
+                mismatches.add(file.fileId + " doesn't hold the last bytes written to it (" + response.getStatusCode() + ")");
+            }
+        }
+        for (Tracked file : deleted) {
+            ResponseEntity<byte[]> response = restTemplate.getForEntity("/file/" + file.fileId, byte[].class);
+            if (response.getStatusCode() != HttpStatus.NOT_FOUND) {
+                mismatches.add(file.fileId + " is still there after being deleted (" + response.getStatusCode() + ")");
+            }
+        }
+        return mismatches;
+    }
+
+    private void writeResults(double seconds, List<String> mismatches) throws Exception {
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("durationMillis", durationMillis);
+        config.put("rate", rate);
+        config.put("concurrency", concurrency);
+        config.put("owners", owners);
+        config.put("minSize", minSize);
+        config.put("maxSize", maxSize);
+        config.put("mix", mix);
+
+        Map<String, Object> operations = new LinkedHashMap<>();
+        int completed = 0;
+        for (Map.Entry<Operation, Results> entry : results.entrySet()) {
+            operations.put(entry.getKey().name().toLowerCase(), entry.getValue().summary(seconds));
+            completed += entry.getValue().count;
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("javaVersion", System.getProperty("java.version"));
+        report.put("config", config);
+        report.put("seconds", seconds);
+        report.put("throughput", completed / seconds);
+        report.put("operations", operations);
+        report.put("filesVerified", idle.size() + deleted.size());
+        report.put("mismatches", mismatches);
+
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(output, report);
+    }
+
+    /* Random content behind a PNG signature, of a random size within the configured bounds */
+    private byte[] newContent() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] content = new byte[minSize + random.nextInt(maxSize - minSize + 1)];
+        random.nextBytes(content);
+        System.arraycopy(PNG_SIGNATURE, 0, content, 0, PNG_SIGNATURE.length);
+        return content;
+    }
+
+    private HttpEntity<?> multipart(byte[] content, String owner) {
+        HttpHeaders partHeaders = new HttpHeaders();
+        partHeaders.setContentType(MediaType.IMAGE_PNG);
+        MultiValueMap<String, Object> map = new LinkedMultiValueMap<>();
+        map.add("file", new HttpEntity<>(new ByteArrayResource(content) {
+            @Override
+            public String getFilename() {
+                return "load.png";
+            }
+        }, partHeaders));
+        return new HttpEntity<>(map, headers(owner));
+    }
+
+    private HttpHeaders headers(String owner) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.MULTIPART_FORM_DATA);
+        headers.set(FileConstants.CLIENT_SECRET_HEADER, owner);
+        return headers;
+    }
+}
@@ -0,0 +1,126 @@
+import hello.models.FileMetadata;
+import hello.services.FileIndex;
+import hello.services.MetadataLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataLogTest {
+
+    private static final int SNAPSHOT_ENTRIES = 1_000_000;
+
+    private static final int LOG_ENTRIES = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversFromSnapshotAndLogTail() throws Exception {
+        Path directory = folder.newFolder("metadata").toPath();
+
+        FileIndex fileIndex = new FileIndex();
+        MetadataLog metadataLog = new MetadataLog(fileIndex, directory);
+        metadataLog.open();
+        for (int i = 0; i < SNAPSHOT_ENTRIES; i++) {
+            fileIndex.put(fileId(i), metadata(i));
+        }
+        metadataLog.close();
+
+        fileIndex = new FileIndex();
+        metadataLog = new MetadataLog(fileIndex, directory);
+        metadataLog.open();
+        assertEquals("The snapshot should hold every file", SNAPSHOT_ENTRIES, fileIndex.getFiles().size());
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (int i = 0; i < LOG_ENTRIES; i++) {
+            pending.add(metadataLog.logPut(fileId(SNAPSHOT_ENTRIES + i), metadata(SNAPSHOT_ENTRIES + i)));
+            pending.add(metadataLog.logDelete(fileId(i)));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        Path crashed = copy(directory, folder.newFolder("crashed").toPath());
+        metadataLog.close();
+        // Only the recovered index should take up the heap while recovery is timed
+        fileIndex = null;
+        metadataLog = null;
+        pending = null;
+        System.gc();
+
+        FileIndex recovered = new FileIndex();
+        MetadataLog recoveredLog = new MetadataLog(recovered, crashed);
+        long start = System.nanoTime();
+        recoveredLog.open();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals("Listings should see every recovered file", SNAPSHOT_ENTRIES, recovered.getFileIds().size());
+        recoveredLog.close();
+
+        assertEquals("Recovery lost files", SNAPSHOT_ENTRIES, recovered.getFiles().size());
+        assertNull("Deleted files should stay deleted", recovered.get(fileId(0)));
+        assertFalse("Deleted files should not be listed", recovered.getFileIds().contains(fileId(0)));
+        assertEquals("Files from the log tail should be recovered", metadata(SNAPSHOT_ENTRIES + 1), recovered.get(fileId(SNAPSHOT_ENTRIES + 1)));
+        assertEquals("Files from the snapshot should be recovered", metadata(LOG_ENTRIES + 1), recovered.get(fileId(LOG_ENTRIES + 1)));
+        assertTrue("Recovery took " + elapsed + " ms", elapsed < 1000);
+    }
+
+    @Test
+    public void ignoresTornLogTail() throws Exception {
+        Path directory = folder.newFolder("metadata").toPath();
+        FileIndex fileIndex = new FileIndex();
+        MetadataLog metadataLog = new MetadataLog(fileIndex, directory);
+        metadataLog.open();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            pending.add(metadataLog.logPut(fileId(i), metadata(i)));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+        Path crashed = copy(directory, folder.newFolder("crashed").toPath());
+        metadataLog.close();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(crashed, "log-*")) {
+            for (Path log : logs) {
+                Files.write(log, new byte[]{0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+            }
+        }
+
+        FileIndex recovered = new FileIndex();
+        MetadataLog recoveredLog = new MetadataLog(recovered, crashed);
+        recoveredLog.open();
+        recoveredLog.close();
+        assertEquals("Every complete record should be recovered", 100, recovered.getFiles().size());
+        assertEquals("Recovered metadata does not match", metadata(99), recovered.get(fileId(99)));
+    }
+
+    private String fileId(int i) {
+        return String.format("%08d-0000-0000-0000-000000000000.png", i);
+    }
+
+    private FileMetadata metadata(int i) {
+        FileMetadata metadata = new FileMetadata();
+        // A few owners that aren't ASCII
+        metadata.setOwner((i % 1000 == 0 ? "ownér" : "owner") + (i % 100));
+        metadata.setSize(i * 10L);
+        metadata.setContentType("image/png");
+        metadata.setCreatedAt(1500000000000L + i);
+        return metadata;
+    }
+
+    private Path copy(Path source, Path target) throws Exception {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(source)) {
+            for (Path file : files) {
+                Files.copy(file, target.resolve(file.getFileName()));
+            }
+        }
+        return target;
+    }
+}
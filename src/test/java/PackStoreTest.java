@@ -0,0 +1,154 @@
+import hello.services.PackStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PackStoreTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static final int OBJECT_SIZE = 4000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversObjectsAfterRestart() throws Exception {
+        Path directory = folder.newFolder("packs").toPath();
+        byte[][] objects = objects(40);
+
+        PackStore packs = open(directory);
+        for (int i = 0; i < objects.length; i++) {
+            packs.append(key(i), file(objects[i]));
+        }
+        packs.append(key(0), file(objects[1]));
+        packs.remove(key(2));
+        packs.close();
+
+        packs = open(directory);
+        assertArrayEquals("The latest record of a key should win", objects[1], read(packs, key(0)));
+        for (int i = 3; i < objects.length; i++) {
+            assertArrayEquals(objects[i], read(packs, key(i)));
+        }
+        packs.close();
+    }
+
+    @Test
+    public void ignoresTornRecord() throws Exception {
+        Path directory = folder.newFolder("packs").toPath();
+        byte[][] objects = objects(2);
+        PackStore packs = open(directory);
+        packs.append(key(0), file(objects[0]));
+        packs.append(key(1), file(objects[1]));
+        packs.close();
+        // As if the server stopped in the middle of writing the second record
+        Path segment = segments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(100), 12 + key(0).length() + OBJECT_SIZE + 12 + key(1).length() + 100);
+        }
+
+        packs = open(directory);
+        assertArrayEquals(objects[0], read(packs, key(0)));
+        assertFalse("A torn record should be dropped", packs.contains(key(1)));
+        packs.append(key(1), file(objects[1]));
+        packs.close();
+        assertArrayEquals("Appends should go on from the last whole record", objects[1], read(open(directory), key(1)));
+    }
+
+    @Test
+    public void compactsGarbage() throws Exception {
+        Path directory = folder.newFolder("packs").toPath();
+        byte[][] objects = objects(60);
+        PackStore packs = open(directory);
+        for (int i = 0; i < objects.length; i++) {
+            packs.append(key(i), file(objects[i]));
+        }
+        int segments = segments(directory).size();
+        assertTrue("Objects should span several segments", segments > 2);
+        for (int i = 0; i < objects.length; i++) {
+            if (i % 4 != 0) {
+                packs.remove(key(i));
+            }
+        }
+        SeekableByteChannel held = packs.open(key(0));
+
+        packs.compact();
+        assertTrue("Segments that are mostly garbage should be deleted", segments(directory).size() < segments);
+        assertEquals(packs.getLiveBytes(), (long) (objects.length / 4) * OBJECT_SIZE);
+        for (int i = 0; i < objects.length; i++) {
+            if (i % 4 == 0) {
+                assertArrayEquals("Live objects should survive compaction", objects[i], read(packs, key(i)));
+            } else {
+                assertNull(packs.open(key(i)));
+            }
+        }
+        ByteBuffer content = ByteBuffer.allocate(OBJECT_SIZE);
+        held.read(content);
+        assertArrayEquals("Readers of a compacted segment should keep reading it", objects[0], content.array());
+        packs.close();
+
+        packs = open(directory);
+        assertArrayEquals(objects[4], read(packs, key(4)));
+        packs.close();
+    }
+
+    private PackStore open(Path directory) throws IOException {
+        PackStore packs = new PackStore(directory, SEGMENT_SIZE, SEGMENT_SIZE, 0.5);
+        packs.open();
+        return packs;
+    }
+
+    private byte[][] objects(int count) {
+        Random random = new Random();
+        byte[][] objects = new byte[count][OBJECT_SIZE];
+        for (byte[] object : objects) {
+            random.nextBytes(object);
+        }
+        return objects;
+    }
+
+    private String key(int i) {
+        return String.format("%064x", i);
+    }
+
+    private Path file(byte[] content) throws IOException {
+        Path path = folder.newFile().toPath();
+        Files.write(path, content);
+        return path;
+    }
+
+    private byte[] read(PackStore packs, String key) throws IOException {
+        try (SeekableByteChannel channel = packs.open(key)) {
+            ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+            channel.read(content);
+            return content.array();
+        }
+    }
+
+    private List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
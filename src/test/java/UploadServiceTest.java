@@ -0,0 +1,154 @@
+import hello.constants.FileErrorMessages;
+import hello.exceptions.FileNotInStorageException;
+import hello.exceptions.InsufficientStorageException;
+import hello.models.FileMetadata;
+import hello.services.ClusterService;
+import hello.services.FileService;
+import hello.services.UploadService;
+import hello.util.EncryptionUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UploadServiceTest {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int LENGTH = 300_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resumesAfterRestart() throws Exception {
+        Path directory = folder.newFolder("uploads").toPath();
+        byte[] content = content();
+
+        UploadService uploadService = open(directory);
+        String id = uploadService.create("owner", LENGTH);
+        uploadService.append(id, "owner", 0, -1, chunk(content, 0, 100_000));
+        uploadService.close();
+
+        uploadService = open(directory);
+        assertEquals("The offset should survive a restart", 100_000, uploadService.getStatus(id, "owner").getOffset());
+        assertEquals(LENGTH, uploadService.append(id, "owner", 100_000, -1, chunk(content, 100_000, LENGTH)));
+        uploadService.close();
+    }
+
+    @Test
+    public void resumesFromSegmentsWrittenBeforeCrash() throws Exception {
+        Path directory = folder.newFolder("uploads").toPath();
+        byte[] content = content();
+
+        UploadService uploadService = open(directory);
+        String id = uploadService.create("owner", LENGTH);
+        uploadService.append(id, "owner", 0, -1, chunk(content, 0, 100_000));
+        Path state = directory.resolve(id + ".state");
+        Path savedState = Files.copy(state, folder.getRoot().toPath().resolve("saved.state"));
+        uploadService.append(id, "owner", 100_000, -1, chunk(content, 100_000, 250_000));
+        uploadService.close();
+        // As if the server stopped after appending the segments but before saving the state
+        Files.copy(savedState, state, StandardCopyOption.REPLACE_EXISTING);
+
+        uploadService = open(directory);
+        long segmentsEnd = 3L * EncryptionUtil.SEGMENT_SIZE;
+        assertEquals("The offset should move to the end of the segments on disk", segmentsEnd, uploadService.getStatus(id, "owner").getOffset());
+        assertEquals(LENGTH, uploadService.append(id, "owner", segmentsEnd, -1, chunk(content, (int) segmentsEnd, LENGTH)));
+        uploadService.close();
+    }
+
+    @Test
+    public void sniffsTypeFromSegmentsWrittenBeforeCrash() throws Exception {
+        Path directory = folder.newFolder("uploads").toPath();
+        byte[] content = content();
+
+        UploadService uploadService = open(directory);
+        String id = uploadService.create("owner", LENGTH);
+        Path state = directory.resolve(id + ".state");
+        Path savedState = Files.copy(state, folder.getRoot().toPath().resolve("saved.state"));
+        uploadService.append(id, "owner", 0, -1, chunk(content, 0, 250_000));
+        uploadService.close();
+        // As if the server stopped during the first chunk, before the type was sniffed and saved
+        Files.copy(savedState, state, StandardCopyOption.REPLACE_EXISTING);
+
+        uploadService = open(directory);
+        String[] storedType = new String[1];
+        ReflectionTestUtils.setField(uploadService, "fileService", new FileService() {
+            @Override
+            public String storeEncryptedFile(Path encryptedPath, byte[] hash, FileMetadata metadata, String fileExtension,
+                                             String rootPath, String clientSecret) {
+                storedType[0] = metadata.getContentType();
+                return "stored";
+            }
+        });
+        long segmentsEnd = 3L * EncryptionUtil.SEGMENT_SIZE;
+        assertEquals(segmentsEnd, uploadService.getStatus(id, "owner").getOffset());
+        uploadService.append(id, "owner", segmentsEnd, -1, chunk(content, (int) segmentsEnd, LENGTH));
+        uploadService.complete(id, "owner", folder.getRoot().toString());
+        assertEquals("The type should be sniffed from the start of the upload", MediaType.IMAGE_PNG_VALUE, storedType[0]);
+        uploadService.close();
+    }
+
+    @Test
+    public void failedCompletionEndsTheUpload() throws Exception {
+        Path directory = folder.newFolder("uploads").toPath();
+        byte[] content = content();
+
+        UploadService uploadService = open(directory);
+        // Like a commit over quota after the data file was moved into the content store
+        ReflectionTestUtils.setField(uploadService, "fileService", new FileService() {
+            @Override
+            public String storeEncryptedFile(Path encryptedPath, byte[] hash, FileMetadata metadata, String fileExtension,
+                                             String rootPath, String clientSecret) throws IOException {
+                Files.delete(encryptedPath);
+                throw new InsufficientStorageException(FileErrorMessages.QUOTA_EXCEEDED);
+            }
+        });
+        String id = uploadService.create("owner", LENGTH);
+        uploadService.append(id, "owner", 0, -1, chunk(content, 0, LENGTH));
+        try {
+            uploadService.complete(id, "owner", folder.getRoot().toString());
+            fail("The completion should fail like the commit");
+        } catch (InsufficientStorageException expected) {
+        }
+        try {
+            uploadService.complete(id, "owner", folder.getRoot().toString());
+            fail("A retry should find the upload gone");
+        } catch (FileNotInStorageException expected) {
+        }
+        uploadService.close();
+    }
+
+    private UploadService open(Path directory) throws Exception {
+        UploadService uploadService = new UploadService(directory, TimeUnit.DAYS.toMillis(1), Long.MAX_VALUE);
+        ReflectionTestUtils.setField(uploadService, "fileService", new FileService());
+        ReflectionTestUtils.setField(uploadService, "clusterService", new ClusterService());
+        uploadService.open();
+        return uploadService;
+    }
+
+    private byte[] content() {
+        byte[] content = new byte[LENGTH];
+        new Random().nextBytes(content);
+        System.arraycopy(PNG_SIGNATURE, 0, content, 0, PNG_SIGNATURE.length);
+        return content;
+    }
+
+    private ByteArrayInputStream chunk(byte[] content, int from, int to) {
+        return new ByteArrayInputStream(Arrays.copyOfRange(content, from, to));
+    }
+}